@@ -0,0 +1,271 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl;
+
+import static org.jboss.sasl.anonymous.AbstractAnonymousFactory.ANONYMOUS;
+import static org.jboss.sasl.digest.DigestMD5ServerFactory.DIGEST_MD5;
+import static org.jboss.sasl.gssapi.GssapiServerFactory.GSSAPI;
+import static org.jboss.sasl.localuser.LocalUserSaslFactory.JBOSS_LOCAL_USER;
+import static org.jboss.sasl.plain.PlainServerFactory.PLAIN;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslClientFactory;
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+import javax.security.sasl.SaslServerFactory;
+
+import org.jboss.sasl.anonymous.AnonymousClientFactory;
+import org.jboss.sasl.anonymous.AnonymousServerFactory;
+import org.jboss.sasl.digest.DigestMD5ClientFactory;
+import org.jboss.sasl.digest.DigestMD5ServerFactory;
+import org.jboss.sasl.gssapi.GssapiClientFactory;
+import org.jboss.sasl.gssapi.GssapiServerFactory;
+import org.jboss.sasl.localuser.LocalUserClientFactory;
+import org.jboss.sasl.localuser.LocalUserServerFactory;
+import org.jboss.sasl.plain.PlainClientFactory;
+import org.jboss.sasl.plain.PlainServerFactory;
+
+/**
+ * Direct access to the mechanism factories of the JBoss SASL provider.
+ * <p/>
+ * {@link javax.security.sasl.Sasl#createSaslServer(String, String, String, Map, CallbackHandler)} and
+ * {@link javax.security.sasl.Sasl#createSaslClient(String[], String, String, String, Map, CallbackHandler)} walk every
+ * registered {@link java.security.Provider} and reflectively instantiate the factory classes named in its property table
+ * on each call. This class instead holds a single pre-instantiated instance of each of our factories, indexed by
+ * mechanism; callers that create many participants can resolve the mechanism index once with
+ * {@link #getMechanismIndex(String)} and use the {@code int} variants from then on.
+ * <p/>
+ * All of the factories held here are safe for concurrent use. They are not all stateless: the GSSAPI factories keep
+ * static caches of the delegate factories they wrap and of the client identities shared between participants, so
+ * those caches are shared by every caller of this class.
+ */
+public final class JBossSaslFactories {
+
+    private static final String[] MECHANISM_NAMES = { JBOSS_LOCAL_USER, GSSAPI, DIGEST_MD5, PLAIN, ANONYMOUS };
+
+    // NOTE: these arrays are indexed in the same order as MECHANISM_NAMES; a null entry means there is no
+    // implementation of that side of the mechanism.
+
+    private static final SaslServerFactory[] SERVER_FACTORIES = {
+            new LocalUserServerFactory(),
+            new GssapiServerFactory(),
+            new DigestMD5ServerFactory(),
+            new PlainServerFactory(),
+            new AnonymousServerFactory()
+    };
+
+    private static final SaslClientFactory[] CLIENT_FACTORIES = {
+            new LocalUserClientFactory(),
+            new GssapiClientFactory(),
+            new DigestMD5ClientFactory(),
+            new PlainClientFactory(),
+            new AnonymousClientFactory()
+    };
+
+    /**
+     * Get the names of all mechanisms known to this registry, in order of index.
+     *
+     * @return a copy of the mechanism names
+     */
+    public static String[] getMechanismNames() {
+        return MECHANISM_NAMES.clone();
+    }
+
+    /**
+     * Get the index of the named mechanism.
+     *
+     * @param mechanism the mechanism name
+     * @return the index of the mechanism, or {@code -1} if it is not provided by JBoss SASL
+     */
+    public static int getMechanismIndex(final String mechanism) {
+        if (mechanism != null) {
+            for (int i = 0; i < MECHANISM_NAMES.length; i++) {
+                if (MECHANISM_NAMES[i].equals(mechanism)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the server factory for the named mechanism.
+     *
+     * @param mechanism the mechanism name
+     * @return the shared factory instance, or {@code null} if there is no server implementation of the mechanism
+     */
+    public static SaslServerFactory getServerFactory(final String mechanism) {
+        final int index = getMechanismIndex(mechanism);
+        return index < 0 ? null : SERVER_FACTORIES[index];
+    }
+
+    /**
+     * Get the server factory for the mechanism at the given index.
+     *
+     * @param index the mechanism index as returned by {@link #getMechanismIndex(String)}
+     * @return the shared factory instance, or {@code null} if there is no server implementation of the mechanism
+     * @throws IllegalArgumentException if the index does not identify a mechanism
+     */
+    public static SaslServerFactory getServerFactory(final int index) {
+        checkIndex(index);
+        return SERVER_FACTORIES[index];
+    }
+
+    /**
+     * Get the client factory for the named mechanism.
+     *
+     * @param mechanism the mechanism name
+     * @return the shared factory instance, or {@code null} if there is no client implementation of the mechanism
+     */
+    public static SaslClientFactory getClientFactory(final String mechanism) {
+        final int index = getMechanismIndex(mechanism);
+        return index < 0 ? null : CLIENT_FACTORIES[index];
+    }
+
+    /**
+     * Get the client factory for the mechanism at the given index.
+     *
+     * @param index the mechanism index as returned by {@link #getMechanismIndex(String)}
+     * @return the shared factory instance, or {@code null} if there is no client implementation of the mechanism
+     * @throws IllegalArgumentException if the index does not identify a mechanism
+     */
+    public static SaslClientFactory getClientFactory(final int index) {
+        checkIndex(index);
+        return CLIENT_FACTORIES[index];
+    }
+
+    /**
+     * Create a {@link SaslServer} for the named mechanism.
+     *
+     * @param mechanism the mechanism name
+     * @param protocol the protocol
+     * @param serverName the server name
+     * @param props the properties, may be {@code null}
+     * @param cbh the callback handler
+     * @return the server, or {@code null} if the mechanism is unknown or is excluded by the policy properties
+     * @throws SaslException if the server could not be created
+     */
+    public static SaslServer createServer(final String mechanism, final String protocol, final String serverName,
+            final Map<String, ?> props, final CallbackHandler cbh) throws SaslException {
+        final int index = getMechanismIndex(mechanism);
+        return index < 0 ? null : createServer(index, protocol, serverName, props, cbh);
+    }
+
+    /**
+     * Create a {@link SaslServer} for the mechanism at the given index.
+     *
+     * @param index the mechanism index as returned by {@link #getMechanismIndex(String)}
+     * @param protocol the protocol
+     * @param serverName the server name
+     * @param props the properties, may be {@code null}
+     * @param cbh the callback handler
+     * @return the server, or {@code null} if there is no server implementation or it is excluded by the policy properties
+     * @throws SaslException if the server could not be created
+     * @throws IllegalArgumentException if the index does not identify a mechanism
+     */
+    public static SaslServer createServer(final int index, final String protocol, final String serverName,
+            final Map<String, ?> props, final CallbackHandler cbh) throws SaslException {
+        checkIndex(index);
+        final SaslServerFactory factory = SERVER_FACTORIES[index];
+        final String mechanism = MECHANISM_NAMES[index];
+        final Map<String, ?> properties = props == null ? Collections.<String, Object> emptyMap() : props;
+        if (factory == null || ! isIncluded(mechanism, factory.getMechanismNames(properties))) {
+            return null;
+        }
+        return factory.createSaslServer(mechanism, protocol, serverName, properties, cbh);
+    }
+
+    /**
+     * Create a {@link SaslClient} for the first of the given mechanisms that is available and permitted by the policy
+     * properties.
+     *
+     * @param mechanisms the mechanism names in order of preference
+     * @param authorizationId the possibly {@code null} authorization ID
+     * @param protocol the protocol
+     * @param serverName the server name
+     * @param props the properties, may be {@code null}
+     * @param cbh the callback handler
+     * @return the client, or {@code null} if none of the mechanisms can be used
+     * @throws SaslException if the client could not be created
+     */
+    public static SaslClient createClient(final String[] mechanisms, final String authorizationId, final String protocol,
+            final String serverName, final Map<String, ?> props, final CallbackHandler cbh) throws SaslException {
+        for (String mechanism : mechanisms) {
+            final int index = getMechanismIndex(mechanism);
+            if (index >= 0) {
+                final SaslClient client = createClient(index, authorizationId, protocol, serverName, props, cbh);
+                if (client != null) {
+                    return client;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create a {@link SaslClient} for the mechanism at the given index.
+     *
+     * @param index the mechanism index as returned by {@link #getMechanismIndex(String)}
+     * @param authorizationId the possibly {@code null} authorization ID
+     * @param protocol the protocol
+     * @param serverName the server name
+     * @param props the properties, may be {@code null}
+     * @param cbh the callback handler
+     * @return the client, or {@code null} if there is no client implementation or it is excluded by the policy properties
+     * @throws SaslException if the client could not be created
+     * @throws IllegalArgumentException if the index does not identify a mechanism
+     */
+    public static SaslClient createClient(final int index, final String authorizationId, final String protocol,
+            final String serverName, final Map<String, ?> props, final CallbackHandler cbh) throws SaslException {
+        checkIndex(index);
+        final SaslClientFactory factory = CLIENT_FACTORIES[index];
+        final String mechanism = MECHANISM_NAMES[index];
+        final Map<String, ?> properties = props == null ? Collections.<String, Object> emptyMap() : props;
+        if (factory == null || ! isIncluded(mechanism, factory.getMechanismNames(properties))) {
+            return null;
+        }
+        return factory.createSaslClient(new String[] { mechanism }, authorizationId, protocol, serverName, properties, cbh);
+    }
+
+    private static void checkIndex(final int index) {
+        if (index < 0 || index >= MECHANISM_NAMES.length) {
+            throw new IllegalArgumentException("Invalid mechanism index " + index);
+        }
+    }
+
+    private static boolean isIncluded(final String mechanism, final String[] names) {
+        for (String name : names) {
+            if (mechanism.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private JBossSaslFactories() {
+    }
+}
@@ -37,7 +37,9 @@ import org.jboss.sasl.anonymous.AnonymousClientFactory;
 import org.jboss.sasl.anonymous.AnonymousServerFactory;
 import org.jboss.sasl.digest.DigestMD5ClientFactory;
 import org.jboss.sasl.digest.DigestMD5ServerFactory;
+import org.jboss.sasl.gssapi.GssapiClientFactory;
 import org.jboss.sasl.gssapi.GssapiServerFactory;
+import org.jboss.sasl.plain.PlainClientFactory;
 import org.jboss.sasl.plain.PlainServerFactory;
 import org.jboss.sasl.localuser.LocalUserClientFactory;
 import org.jboss.sasl.localuser.LocalUserServerFactory;
@@ -63,15 +65,18 @@ public final class JBossSaslProvider extends Provider {
      */
     public JBossSaslProvider() {
         super("jboss-sasl", 1.0, INFO);
-        // NOTE: make sure that all client and server factories listed here also end up in the META-INF/services files.
+        // NOTE: make sure that all client and server factories listed here also end up in the META-INF/services files
+        // and in JBossSaslFactories.
         put(SASL_CLIENT_FACTORY + DOT + ANONYMOUS, AnonymousClientFactory.class.getName());
         put(SASL_SERVER_FACTORY + DOT + ANONYMOUS, AnonymousServerFactory.class.getName());
         put(SASL_SERVER_FACTORY + DOT + PLAIN, PlainServerFactory.class.getName());
+        put(SASL_CLIENT_FACTORY + DOT + PLAIN, PlainClientFactory.class.getName());
         put(SASL_CLIENT_FACTORY + DOT + DIGEST_MD5, DigestMD5ClientFactory.class.getName());
         put(SASL_SERVER_FACTORY + DOT + DIGEST_MD5, DigestMD5ServerFactory.class.getName());
         put(SASL_SERVER_FACTORY + DOT + JBOSS_LOCAL_USER, LocalUserServerFactory.class.getName());
         put(SASL_CLIENT_FACTORY + DOT + JBOSS_LOCAL_USER, LocalUserClientFactory.class.getName());
         put(SASL_SERVER_FACTORY + DOT + GSSAPI, GssapiServerFactory.class.getName());
+        put(SASL_CLIENT_FACTORY + DOT + GSSAPI, GssapiClientFactory.class.getName());
     }
 
     /**
@@ -46,7 +46,7 @@ public class AnonymousServerFactory extends AbstractAnonymousFactory implements
             return null;
         }
 
-        return new AnonymousSaslServer(protocol, serverName, cbh);
+        return applyAdmissionController(new AnonymousSaslServer(protocol, serverName, cbh), props);
     }
 
 }
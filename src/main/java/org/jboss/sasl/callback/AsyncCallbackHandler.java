@@ -0,0 +1,66 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+
+/**
+ * A {@link CallbackHandler} that can handle callbacks without blocking the calling thread, for example while a
+ * credential is looked up in a remote store.
+ * <p/>
+ * Server mechanisms use {@link #handle(Callback[], Completion)} when evaluated with
+ * {@link org.jboss.sasl.util.AsyncSaslServer#evaluateResponse(byte[], org.jboss.sasl.util.SaslEvaluationListener)}, the
+ * evaluation is suspended until the handler signals the {@link Completion} and then resumes on the signalling thread.
+ * The blocking {@link #handle(Callback[])} is still used by the blocking evaluation methods.
+ */
+public interface AsyncCallbackHandler extends CallbackHandler {
+
+    /**
+     * Start handling the callbacks, the handler must eventually call exactly one method of the completion, on any thread.
+     *
+     * @param callbacks the callbacks to handle, they may be retained until the completion is signalled
+     * @param completion the completion to signal
+     */
+    void handle(Callback[] callbacks, Completion completion);
+
+    /**
+     * Signals that callbacks passed to {@link AsyncCallbackHandler#handle(Callback[], Completion)} have been handled.
+     */
+    interface Completion {
+
+        /**
+         * The callbacks have been handled.
+         */
+        void handled();
+
+        /**
+         * Handling the callbacks failed, the exception is reported to the mechanism exactly as if it had been thrown by
+         * {@link CallbackHandler#handle(Callback[])}.
+         *
+         * @param cause the failure, usually an {@link java.io.IOException} or an
+         *        {@link javax.security.auth.callback.UnsupportedCallbackException}
+         */
+        void failed(Exception cause);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.sasl.AuthorizeCallback;
+
+/**
+ * A cache of the decisions made by the {@link javax.security.auth.callback.CallbackHandler} for {@link AuthorizeCallback},
+ * allowing server mechanisms to skip the callback for a recently authorized authentication and authorization ID pair.
+ * <p/>
+ * Both granted and refused decisions are cached, refusals with their own, usually shorter, time to live so that granting
+ * access takes effect quickly. Once the cache is full the least recently used decision is evicted. Applications must call
+ * {@link #invalidate(String)} or {@link #invalidateAll()} when permissions change if the change must take effect within
+ * the time to live. A decision is only cached if no invalidation happened while the callback handler was making it.
+ * <p/>
+ * The cache is supplied to the DIGEST-MD5, PLAIN and JBOSS-LOCAL-USER server mechanisms using the
+ * {@link #AUTHORIZATION_CACHE} property and may be shared by any number of servers and mechanisms, decisions are only
+ * reused by servers of the same mechanism, protocol and server name. Servers which share those but make authorization
+ * decisions with different callback handlers must each be given their own cache.
+ */
+public final class AuthorizationCache {
+
+    /**
+     * The property used to supply an {@link AuthorizationCache} to the server mechanisms.
+     */
+    public static final String AUTHORIZATION_CACHE = "org.jboss.sasl.authorization_cache";
+
+    /**
+     * The cache state taken before a decision is made, a decision is cached under the stamp taken before the callback
+     * handler was called so that an invalidation made during the callback is not hidden by the cache.
+     */
+    public static final class Stamp {
+
+        private final long invalidations;
+
+        private Stamp(final long invalidations) {
+            this.invalidations = invalidations;
+        }
+    }
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Map<Key, Decision> decisions;
+    // the number of calls to invalidate and invalidateAll, guarded by decisions
+    private long invalidations;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param ttl the time a granted decision is cached
+     * @param negativeTtl the time a refused decision is cached, {@code 0} to never cache refusals
+     * @param unit the unit of the times to live
+     * @param maxEntries the maximum number of decisions held
+     */
+    public AuthorizationCache(final long ttl, final long negativeTtl, final TimeUnit unit, final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        ttlNanos = unit.toNanos(ttl);
+        negativeTtlNanos = unit.toNanos(negativeTtl);
+        decisions = new LinkedHashMap<Key, Decision>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(final Map.Entry<Key, Decision> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Apply the cached decision to the callback.
+     *
+     * @param mechanism the name of the mechanism of the server
+     * @param protocol the protocol of the server
+     * @param serverName the server name of the server
+     * @param realm the realm the user authenticated in, or {@code null} if the mechanism has no realm
+     * @param callback the callback
+     * @return {@code true} if a decision was cached and has been applied, {@code false} if the callback must be handled
+     */
+    public boolean lookup(final String mechanism, final String protocol, final String serverName, final String realm,
+            final AuthorizeCallback callback) {
+        final Key key = new Key(mechanism, protocol, serverName, realm, callback.getAuthenticationID(),
+                callback.getAuthorizationID());
+        final Decision decision;
+        synchronized (decisions) {
+            decision = decisions.get(key);
+        }
+        if (decision == null || System.nanoTime() - decision.expiry > 0) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        callback.setAuthorized(decision.authorized);
+        if (decision.authorized) {
+            callback.setAuthorizedID(decision.authorizedId);
+        }
+        return true;
+    }
+
+    /**
+     * Take the stamp to cache a decision under, this must be called before the callback handler is called.
+     *
+     * @return the stamp
+     */
+    public Stamp stamp() {
+        synchronized (decisions) {
+            return new Stamp(invalidations);
+        }
+    }
+
+    /**
+     * Cache the decision made by the callback handler. The decision is not cached if the cache was invalidated since the
+     * stamp was taken.
+     *
+     * @param mechanism the name of the mechanism of the server
+     * @param protocol the protocol of the server
+     * @param serverName the server name of the server
+     * @param realm the realm the user authenticated in, or {@code null} if the mechanism has no realm
+     * @param callback the handled callback
+     * @param stamp the stamp taken by {@link #stamp()} before the callback handler was called
+     */
+    public void store(final String mechanism, final String protocol, final String serverName, final String realm,
+            final AuthorizeCallback callback, final Stamp stamp) {
+        final boolean authorized = callback.isAuthorized();
+        if (authorized == false && negativeTtlNanos <= 0) {
+            return;
+        }
+        final Key key = new Key(mechanism, protocol, serverName, realm, callback.getAuthenticationID(),
+                callback.getAuthorizationID());
+        final Decision decision = new Decision(authorized, callback.getAuthorizedID(),
+                System.nanoTime() + (authorized ? ttlNanos : negativeTtlNanos));
+        synchronized (decisions) {
+            if (stamp.invalidations == invalidations) {
+                decisions.put(key, decision);
+            }
+        }
+    }
+
+    /**
+     * Discard the cached decisions for an authentication ID.
+     *
+     * @param authenticationId the authentication ID
+     */
+    public void invalidate(final String authenticationId) {
+        synchronized (decisions) {
+            invalidations++;
+            final Iterator<Key> keys = decisions.keySet().iterator();
+            while (keys.hasNext()) {
+                if (authenticationId.equals(keys.next().authenticationId)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard all cached decisions.
+     */
+    public void invalidateAll() {
+        synchronized (decisions) {
+            invalidations++;
+            decisions.clear();
+        }
+    }
+
+    /**
+     * Get the number of lookups that found a decision.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups that found no decision, or only an expired one.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of decisions currently held, including expired decisions that have not yet been evicted.
+     *
+     * @return the number of decisions
+     */
+    public int size() {
+        synchronized (decisions) {
+            return decisions.size();
+        }
+    }
+
+    private static final class Key {
+
+        private final String mechanism;
+        private final String protocol;
+        private final String serverName;
+        private final String realm;
+        private final String authenticationId;
+        private final String authorizationId;
+        private final int hashCode;
+
+        private Key(final String mechanism, final String protocol, final String serverName, final String realm,
+                final String authenticationId, final String authorizationId) {
+            this.mechanism = mechanism;
+            this.protocol = protocol;
+            this.serverName = serverName;
+            this.realm = realm;
+            this.authenticationId = authenticationId;
+            this.authorizationId = authorizationId;
+            int hashCode = mechanism.hashCode();
+            hashCode = 31 * hashCode + hashCodeOf(protocol);
+            hashCode = 31 * hashCode + hashCodeOf(serverName);
+            hashCode = 31 * hashCode + hashCodeOf(realm);
+            hashCode = 31 * hashCode + authenticationId.hashCode();
+            this.hashCode = 31 * hashCode + hashCodeOf(authorizationId);
+        }
+
+        private static int hashCodeOf(final String value) {
+            return value == null ? 0 : value.hashCode();
+        }
+
+        private static boolean equal(final String a, final String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(final Object other) {
+            if (other instanceof Key == false) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return hashCode == key.hashCode && authenticationId.equals(key.authenticationId) && mechanism.equals(key.mechanism)
+                    && equal(protocol, key.protocol) && equal(serverName, key.serverName) && equal(realm, key.realm)
+                    && equal(authorizationId, key.authorizationId);
+        }
+    }
+
+    private static final class Decision {
+        private final boolean authorized;
+        private final String authorizedId;
+        private final long expiry;
+
+        private Decision(final boolean authorized, final String authorizedId, final long expiry) {
+            this.authorized = authorized;
+            this.authorizedId = authorizedId;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import static org.jboss.sasl.callback.CallbackBulkheadException.Reason.SATURATED;
+import static org.jboss.sasl.callback.CallbackBulkheadException.Reason.TIMED_OUT;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+
+/**
+ * A {@link CallbackHandler} decorator isolating the threads calling the mechanisms from a slow or unresponsive backend.
+ * <p/>
+ * The wrapped handler is run on threads owned by this handler, at most {@code maxInFlight} calls are in flight at once
+ * and the calling thread waits at most the timeout for each. A call that times out keeps its place until the wrapped
+ * handler returns, so a backend that hangs can never occupy more than {@code maxInFlight} threads. When every place is
+ * taken further callbacks fail immediately. Both failures are reported as a {@link CallbackBulkheadException}, which the
+ * mechanisms pass to the caller of {@code evaluateResponse} unwrapped.
+ * <p/>
+ * As the wrapped handler runs on another thread it must not depend on the context of the calling thread.
+ */
+public final class BulkheadCallbackHandler implements CallbackHandler {
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int ABANDONED = 2;
+
+    private final CallbackHandler delegate;
+    private final Semaphore permits;
+    private final long timeoutNanos;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param delegate the callback handler to isolate
+     * @param name the name of the backend, used to name the threads
+     * @param maxInFlight the maximum number of calls to the wrapped handler in flight at once
+     * @param timeout the time the calling thread waits for the wrapped handler
+     * @param unit the unit of the timeout
+     */
+    public BulkheadCallbackHandler(final CallbackHandler delegate, final String name, final int maxInFlight, final long timeout,
+            final TimeUnit unit) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.delegate = delegate;
+        permits = new Semaphore(maxInFlight);
+        timeoutNanos = unit.toNanos(timeout);
+        // the permits bound the queue, no more than maxInFlight tasks are ever submitted
+        executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(final Runnable task) {
+                        final Thread thread = new Thread(task, name + " callback " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void handle(final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+        if (permits.tryAcquire() == false) {
+            throw new CallbackBulkheadException(SATURATED, "Too many callbacks in flight");
+        }
+        final Call call = new Call(callbacks);
+        final Future<?> future;
+        try {
+            future = executor.submit(call);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        try {
+            future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            call.abandon();
+            future.cancel(true);
+            throw new CallbackBulkheadException(TIMED_OUT, "Callbacks not handled within the timeout");
+        } catch (InterruptedException e) {
+            call.abandon();
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for callbacks");
+        } catch (ExecutionException e) {
+            // not expected, the call records any failure of the wrapped handler
+            throw new IOException("Callback handler invocation failed", e.getCause());
+        }
+        final Throwable cause = call.failure;
+        if (cause != null) {
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof UnsupportedCallbackException) {
+                throw (UnsupportedCallbackException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Callback handler invocation failed", cause);
+        }
+    }
+
+    /**
+     * A call to the wrapped handler, its place is released when it returns or, if it never started, when abandoned.
+     */
+    private final class Call implements Runnable {
+
+        private final Callback[] callbacks;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private volatile Throwable failure;
+
+        private Call(final Callback[] callbacks) {
+            this.callbacks = callbacks;
+        }
+
+        public void run() {
+            if (state.compareAndSet(QUEUED, RUNNING) == false) {
+                return;
+            }
+            try {
+                delegate.handle(callbacks);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                permits.release();
+            }
+        }
+
+        void abandon() {
+            if (state.compareAndSet(QUEUED, ABANDONED)) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Get the number of calls that may currently be started.
+     *
+     * @return the number of available places
+     */
+    public int getAvailable() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * Stop the threads of this handler, calls in flight are interrupted.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
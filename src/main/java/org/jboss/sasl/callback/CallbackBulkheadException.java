@@ -0,0 +1,63 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import javax.security.sasl.SaslException;
+
+/**
+ * Thrown by {@link BulkheadCallbackHandler} when callbacks are not handled by the wrapped handler in time.
+ */
+public class CallbackBulkheadException extends SaslException {
+
+    private static final long serialVersionUID = 4871403127796330961L;
+
+    /**
+     * Why the callbacks were not handled.
+     */
+    public enum Reason {
+        /**
+         * The maximum number of callbacks were already in flight, the wrapped handler was not called.
+         */
+        SATURATED,
+        /**
+         * The wrapped handler did not return within the timeout.
+         */
+        TIMED_OUT
+    }
+
+    private final Reason reason;
+
+    public CallbackBulkheadException(final Reason reason, final String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /**
+     * Get the reason the callbacks were not handled.
+     *
+     * @return the reason
+     */
+    public Reason getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.RealmCallback;
+
+/**
+ * A {@link CallbackHandler} decorator which coalesces concurrent identical credential lookups into a single call to the
+ * wrapped handler, the result, or failure, of that call is handed to every caller that was waiting for it.
+ * <p/>
+ * A credential lookup is a set of callbacks holding a {@link NameCallback}, an optional {@link RealmCallback} and exactly
+ * one {@link PasswordCallback}, {@link DigestHashCallback} or {@link VerifyPasswordCallback}, as used by the DIGEST-MD5 and
+ * PLAIN mechanisms. Lookups are identical if they are of the same kind for the same realm and user name and, for
+ * {@link VerifyPasswordCallback}, the same password. Nothing is cached, once the wrapped handler returns the next lookup
+ * calls it again. All other callbacks are passed straight to the wrapped handler.
+ */
+public final class CoalescingCallbackHandler implements CallbackHandler {
+
+    private final CallbackHandler delegate;
+    private final ConcurrentMap<Key, Flight> inFlight = new ConcurrentHashMap<Key, Flight>();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param delegate the callback handler performing the lookups
+     */
+    public CoalescingCallbackHandler(final CallbackHandler delegate) {
+        this.delegate = delegate;
+    }
+
+    public void handle(final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+        final Key key = Key.of(callbacks);
+        if (key == null) {
+            delegate.handle(callbacks);
+            return;
+        }
+        try {
+            while (true) {
+                final Flight flight = new Flight();
+                final Flight existing = inFlight.putIfAbsent(key, flight);
+                if (existing == null) {
+                    lead(key, flight, callbacks);
+                    return;
+                }
+                if (existing.join()) {
+                    try {
+                        existing.await();
+                        existing.copyTo(callbacks);
+                    } finally {
+                        existing.release();
+                    }
+                    return;
+                }
+                // the lookup finished while joining, remove it if its leader has not done so yet and try again
+                inFlight.remove(key, existing);
+            }
+        } finally {
+            key.clear();
+        }
+    }
+
+    private void lead(final Key key, final Flight flight, final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+        try {
+            delegate.handle(callbacks);
+            flight.copyFrom(callbacks);
+        } catch (IOException e) {
+            flight.failure = e;
+            throw e;
+        } catch (UnsupportedCallbackException e) {
+            flight.failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            flight.failure = e;
+            throw e;
+        } catch (Error e) {
+            flight.failure = e;
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+            flight.complete();
+            flight.release();
+        }
+    }
+
+    private static final class Key {
+
+        private static final int PASSWORD = 1;
+        private static final int HASH = 2;
+        private static final int VERIFY = 3;
+
+        private final int kind;
+        private final String realm;
+        private final String name;
+        private final char[] password;
+        private final int hashCode;
+
+        private Key(final int kind, final String realm, final String name, final char[] password) {
+            this.kind = kind;
+            this.realm = realm;
+            this.name = name;
+            this.password = password;
+            int hashCode = kind;
+            hashCode = 31 * hashCode + (realm == null ? 0 : realm.hashCode());
+            hashCode = 31 * hashCode + name.hashCode();
+            this.hashCode = 31 * hashCode + (password == null ? 0 : Arrays.hashCode(password));
+        }
+
+        static Key of(final Callback[] callbacks) {
+            String realm = null;
+            String name = null;
+            int kind = 0;
+            char[] password = null;
+            for (Callback current : callbacks) {
+                if (current instanceof RealmCallback && realm == null) {
+                    realm = ((RealmCallback) current).getDefaultText();
+                } else if (current instanceof NameCallback && name == null) {
+                    name = ((NameCallback) current).getDefaultName();
+                } else if (current instanceof PasswordCallback && kind == 0) {
+                    kind = PASSWORD;
+                } else if (current instanceof DigestHashCallback && kind == 0) {
+                    kind = HASH;
+                } else if (current instanceof VerifyPasswordCallback && kind == 0) {
+                    kind = VERIFY;
+                    if (current instanceof VerifyPasswordCharsCallback) {
+                        password = ((VerifyPasswordCharsCallback) current).getPasswordChars().clone();
+                    } else {
+                        final String value = ((VerifyPasswordCallback) current).getPassword();
+                        password = value == null ? null : value.toCharArray();
+                    }
+                } else {
+                    // not a plain credential lookup
+                    if (password != null) {
+                        Arrays.fill(password, '\0');
+                    }
+                    return null;
+                }
+            }
+            if (name == null || kind == 0) {
+                if (password != null) {
+                    Arrays.fill(password, '\0');
+                }
+                return null;
+            }
+            return new Key(kind, realm, name, password);
+        }
+
+        void clear() {
+            if (password != null) {
+                Arrays.fill(password, '\0');
+            }
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(final Object other) {
+            if (other instanceof Key == false) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return hashCode == key.hashCode && kind == key.kind && name.equals(key.name)
+                    && (realm == null ? key.realm == null : realm.equals(key.realm)) && Arrays.equals(password, key.password);
+        }
+    }
+
+    private static final class Flight {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        // The leader and every joined waiter hold a reference, the results are cleared when the last is released.
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        // Written by the leader before done is counted down.
+        private Throwable failure;
+        private String name;
+        private char[] password;
+        private byte[] hash;
+        private boolean verified;
+
+        boolean join() {
+            int current;
+            do {
+                current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (references.compareAndSet(current, current + 1) == false);
+            return true;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                if (password != null) {
+                    Arrays.fill(password, '\0');
+                }
+                if (hash != null) {
+                    Arrays.fill(hash, (byte) 0);
+                }
+            }
+        }
+
+        void complete() {
+            done.countDown();
+        }
+
+        void await() throws InterruptedIOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a concurrent credential lookup");
+            }
+        }
+
+        void copyFrom(final Callback[] callbacks) {
+            for (Callback current : callbacks) {
+                if (current instanceof NameCallback) {
+                    name = ((NameCallback) current).getName();
+                } else if (current instanceof PasswordCallback) {
+                    password = ((PasswordCallback) current).getPassword();
+                } else if (current instanceof DigestHashCallback) {
+                    final byte[] hash = ((DigestHashCallback) current).getHash();
+                    this.hash = hash == null ? null : hash.clone();
+                } else if (current instanceof VerifyPasswordCallback) {
+                    verified = ((VerifyPasswordCallback) current).isVerified();
+                }
+            }
+        }
+
+        void copyTo(final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+            final Throwable failure = this.failure;
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof UnsupportedCallbackException) {
+                throw (UnsupportedCallbackException) failure;
+            } else if (failure != null) {
+                throw new IOException("Concurrent credential lookup failed", failure);
+            }
+            for (Callback current : callbacks) {
+                if (current instanceof NameCallback) {
+                    if (name != null) {
+                        ((NameCallback) current).setName(name);
+                    }
+                } else if (current instanceof PasswordCallback) {
+                    if (password != null) {
+                        ((PasswordCallback) current).setPassword(password);
+                    }
+                } else if (current instanceof DigestHashCallback) {
+                    if (hash != null) {
+                        ((DigestHashCallback) current).setHash(hash.clone());
+                    }
+                } else if (current instanceof VerifyPasswordCallback) {
+                    ((VerifyPasswordCallback) current).setVerified(verified);
+                }
+            }
+        }
+    }
+}
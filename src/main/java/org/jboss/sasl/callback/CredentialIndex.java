@@ -0,0 +1,277 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+
+import org.jboss.sasl.util.HexConverter;
+import org.jboss.sasl.util.UsernamePasswordHashUtil;
+
+/**
+ * An immutable index of the pre-digested { username : realm : password } hashes of the users of one realm.
+ * <p/>
+ * The user names and hashes are held in two contiguous byte arrays addressed by an open addressed table of ints, so
+ * each user costs the length of the name plus around 30 bytes and a lookup does not allocate. Changes are made by building
+ * a new index, see {@link CredentialIndexCallbackHandler}.
+ */
+public final class CredentialIndex {
+
+    private static final int HASH_LENGTH = 16;
+
+    private static final ThreadLocal<UsernamePasswordHashUtil> HASH_UTILS = new ThreadLocal<UsernamePasswordHashUtil>() {
+        protected UsernamePasswordHashUtil initialValue() {
+            try {
+                return new UsernamePasswordHashUtil();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final String realm;
+    // user names back to back, each encoded one char at a time as modified UTF-8
+    private final byte[] names;
+    // the end of the name of each entry, its start is the end of the previous entry
+    private final int[] ends;
+    private final byte[] hashes;
+    // entry index plus one, zero is an empty slot
+    private final int[] table;
+    private final int mask;
+
+    private CredentialIndex(final String realm, final byte[] names, final int[] ends, final byte[] hashes, final int[] table) {
+        this.realm = realm;
+        this.names = names;
+        this.ends = ends;
+        this.hashes = hashes;
+        this.table = table;
+        mask = table.length - 1;
+    }
+
+    /**
+     * Build an index from properties in the {@code username=hexhash} format, as written by
+     * {@link UsernamePasswordHashUtil}.
+     *
+     * @param realm the realm of the users
+     * @param users the user names and hex encoded hashes
+     * @return the index
+     * @throws IllegalArgumentException if a hash is not a hex encoded 16 byte hash
+     */
+    public static CredentialIndex build(final String realm, final Properties users) {
+        final int size = users.size();
+        int slots = 16;
+        while (slots < size * 2) {
+            slots <<= 1;
+        }
+        int length = 0;
+        for (Object username : users.keySet()) {
+            length += encodedLength((String) username);
+        }
+
+        final byte[] names = new byte[length];
+        final int[] ends = new int[size];
+        final byte[] hashes = new byte[size * HASH_LENGTH];
+        final int[] table = new int[slots];
+        final int mask = slots - 1;
+        int entry = 0;
+        int pos = 0;
+        for (Map.Entry<Object, Object> user : users.entrySet()) {
+            final String username = (String) user.getKey();
+            final byte[] hash = HexConverter.convertFromHex(((String) user.getValue()).trim());
+            if (hash.length != HASH_LENGTH) {
+                throw new IllegalArgumentException("Hash for " + username + " is not " + HASH_LENGTH + " bytes");
+            }
+            pos = encode(username, names, pos);
+            ends[entry] = pos;
+            System.arraycopy(hash, 0, hashes, entry * HASH_LENGTH, HASH_LENGTH);
+            int index = spread(username.hashCode()) & mask;
+            while (table[index] != 0) {
+                index = index + 1 & mask;
+            }
+            table[index] = ++entry;
+        }
+        return new CredentialIndex(realm, names, ends, hashes, table);
+    }
+
+    /**
+     * Build an index from a properties file in the {@code username=hexhash} format read as UTF-8.
+     *
+     * @param realm the realm of the users
+     * @param file the properties file
+     * @return the index
+     * @throws IOException if the file can not be read, is not a valid properties file or holds an invalid hash
+     */
+    public static CredentialIndex load(final String realm, final File file) throws IOException {
+        final Properties users = new Properties();
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            users.load(new InputStreamReader(in, "UTF-8"));
+        } catch (IllegalArgumentException e) {
+            // a malformed unicode escape
+            throw new IOException("Invalid properties file " + file, e);
+        } finally {
+            in.close();
+        }
+        try {
+            return build(realm, users);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid hash in " + file, e);
+        }
+    }
+
+    /**
+     * Get the realm of the users.
+     *
+     * @return the realm
+     */
+    public String getRealm() {
+        return realm;
+    }
+
+    /**
+     * Get the number of users.
+     *
+     * @return the number of users
+     */
+    public int size() {
+        return ends.length;
+    }
+
+    /**
+     * Check if the index holds a user.
+     *
+     * @param username the user name
+     * @return {@code true} if the index holds a hash for the user
+     */
+    public boolean contains(final String username) {
+        return find(username) >= 0;
+    }
+
+    /**
+     * Get the { username : realm : password } hash of a user.
+     *
+     * @param username the user name
+     * @return a copy of the hash, or {@code null} if the index does not hold the user
+     */
+    public byte[] getHash(final String username) {
+        final int entry = find(username);
+        if (entry < 0) {
+            return null;
+        }
+        final byte[] hash = new byte[HASH_LENGTH];
+        System.arraycopy(hashes, entry * HASH_LENGTH, hash, 0, HASH_LENGTH);
+        return hash;
+    }
+
+    /**
+     * Verify the password of a user.
+     *
+     * @param username the user name
+     * @param password the password
+     * @return {@code true} if the index holds the user and the hash of the password matches
+     */
+    public boolean verify(final String username, final char[] password) {
+        final int entry = find(username);
+        if (entry < 0) {
+            return false;
+        }
+        final byte[] actual = HASH_UTILS.get().generateHashedURP(username, realm, password);
+        int diff = 0;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            diff |= actual[i] ^ hashes[entry * HASH_LENGTH + i];
+        }
+        return diff == 0;
+    }
+
+    private int find(final String username) {
+        int index = spread(username.hashCode()) & mask;
+        int slot;
+        while ((slot = table[index]) != 0) {
+            if (matches(slot - 1, username)) {
+                return slot - 1;
+            }
+            index = index + 1 & mask;
+        }
+        return -1;
+    }
+
+    private boolean matches(final int entry, final String username) {
+        int pos = entry == 0 ? 0 : ends[entry - 1];
+        final int end = ends[entry];
+        final int length = username.length();
+        for (int i = 0; i < length; i++) {
+            final char c = username.charAt(i);
+            if (c != 0 && c < 0x80) {
+                if (pos + 1 > end || names[pos++] != (byte) c) {
+                    return false;
+                }
+            } else if (c < 0x800) {
+                if (pos + 2 > end || names[pos++] != (byte) (0xC0 | c >> 6) || names[pos++] != (byte) (0x80 | c & 0x3F)) {
+                    return false;
+                }
+            } else {
+                if (pos + 3 > end || names[pos++] != (byte) (0xE0 | c >> 12) || names[pos++] != (byte) (0x80 | c >> 6 & 0x3F)
+                        || names[pos++] != (byte) (0x80 | c & 0x3F)) {
+                    return false;
+                }
+            }
+        }
+        return pos == end;
+    }
+
+    private static int encodedLength(final String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            length += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return length;
+    }
+
+    private static int encode(final String value, final byte[] target, int pos) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c != 0 && c < 0x80) {
+                target[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                target[pos++] = (byte) (0xC0 | c >> 6);
+                target[pos++] = (byte) (0x80 | c & 0x3F);
+            } else {
+                target[pos++] = (byte) (0xE0 | c >> 12);
+                target[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                target[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return pos;
+    }
+
+    private static int spread(final int hashCode) {
+        final int h = hashCode * 0x9E3779B9;
+        return h ^ h >>> 16;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
+import javax.security.sasl.RealmCallback;
+
+/**
+ * A {@link CallbackHandler} supplying {@link DigestHashCallback} and verifying {@link VerifyPasswordCallback} from a
+ * {@link CredentialIndex} of a properties file in the {@code username=hexhash} format, which is reloaded when it changes.
+ * <p/>
+ * The file is checked for a change of its modification time or length at a fixed interval. When it has changed a new
+ * index is built in the background and replaces the current one once complete, handshakes keep reading the index they
+ * started with and never wait for a reload. If the file can not be read the current index is kept and loading is retried
+ * at the next check.
+ * <p/>
+ * Hashes are only supplied for the realm of the index, a {@link RealmCallback} for another realm finds no users. Any
+ * other callbacks are passed to the delegate handler, without a delegate an {@link AuthorizeCallback} is authorized only
+ * if the authorization ID is the authentication ID.
+ */
+public final class CredentialIndexCallbackHandler implements CallbackHandler {
+
+    private final File file;
+    private final String realm;
+    private final CallbackHandler delegate;
+    private final ScheduledExecutorService executor;
+    private final boolean ownExecutor;
+    private final ScheduledFuture<?> check;
+
+    private volatile CredentialIndex index;
+    // the modification time and length of the file the current index was loaded from
+    private volatile long lastModified;
+    private volatile long length;
+
+    /**
+     * Construct a new instance checking for changes using a daemon thread owned by this handler.
+     *
+     * @param file the properties file of user names and hex encoded hashes
+     * @param realm the realm of the users
+     * @param checkInterval the interval between checks of the file
+     * @param unit the unit of the interval
+     * @param delegate the handler for callbacks other than those of the credential lookup, may be {@code null}
+     * @throws IOException if the file can not be loaded
+     */
+    public CredentialIndexCallbackHandler(final File file, final String realm, final long checkInterval, final TimeUnit unit,
+            final CallbackHandler delegate) throws IOException {
+        this(file, realm, checkInterval, unit, delegate, null);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param file the properties file of user names and hex encoded hashes
+     * @param realm the realm of the users
+     * @param checkInterval the interval between checks of the file
+     * @param unit the unit of the interval
+     * @param delegate the handler for callbacks other than those of the credential lookup, may be {@code null}
+     * @param executor the executor to check and reload on or {@code null} to use a single daemon thread owned by this
+     *        handler
+     * @throws IOException if the file can not be loaded
+     */
+    public CredentialIndexCallbackHandler(final File file, final String realm, final long checkInterval, final TimeUnit unit,
+            final CallbackHandler delegate, final ScheduledExecutorService executor) throws IOException {
+        if (checkInterval <= 0) {
+            throw new IllegalArgumentException("checkInterval must be greater than 0");
+        }
+        this.file = file;
+        this.realm = realm;
+        this.delegate = delegate;
+        reload();
+        if (executor == null) {
+            ScheduledThreadPoolExecutor ownedExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CredentialIndexCallbackHandler reload");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ownedExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            this.executor = ownedExecutor;
+            this.ownExecutor = true;
+        } else {
+            this.executor = executor;
+            this.ownExecutor = false;
+        }
+        check = this.executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (file.lastModified() != lastModified || file.length() != length) {
+                    try {
+                        reload();
+                    } catch (IOException ignored) {
+                        // keep the current index, the file may be part written
+                    } catch (RuntimeException ignored) {
+                        // likewise, and an exception thrown from here would cancel any further checks
+                    }
+                }
+            }
+        }, checkInterval, checkInterval, unit);
+    }
+
+    /**
+     * Load the file now and replace the current index, regardless of whether it has changed.
+     *
+     * @throws IOException if the file can not be loaded, the current index is kept
+     */
+    public synchronized void reload() throws IOException {
+        // read the stamp first, a change while loading is picked up by the next check
+        final long modified = file.lastModified();
+        final long fileLength = file.length();
+        index = CredentialIndex.load(realm, file);
+        lastModified = modified;
+        length = fileLength;
+    }
+
+    /**
+     * Get the current index.
+     *
+     * @return the current index
+     */
+    public CredentialIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Stop checking the file for changes, the current index remains in use.
+     */
+    public void close() {
+        check.cancel(false);
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    public void handle(final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+        // one index for the whole call
+        final CredentialIndex index = this.index;
+        String callbackRealm = null;
+        String username = null;
+        DigestHashCallback hashCallback = null;
+        VerifyPasswordCallback verifyCallback = null;
+        List<Callback> remaining = null;
+        for (Callback current : callbacks) {
+            if (current instanceof RealmCallback) {
+                final RealmCallback rcb = (RealmCallback) current;
+                callbackRealm = rcb.getText() != null ? rcb.getText() : rcb.getDefaultText();
+            } else if (current instanceof NameCallback) {
+                final NameCallback ncb = (NameCallback) current;
+                username = ncb.getName() != null ? ncb.getName() : ncb.getDefaultName();
+            } else if (current instanceof DigestHashCallback) {
+                hashCallback = (DigestHashCallback) current;
+            } else if (current instanceof VerifyPasswordCallback) {
+                verifyCallback = (VerifyPasswordCallback) current;
+            } else if (delegate != null) {
+                if (remaining == null) {
+                    remaining = new ArrayList<Callback>(callbacks.length);
+                }
+                remaining.add(current);
+            } else if (current instanceof AuthorizeCallback) {
+                final AuthorizeCallback acb = (AuthorizeCallback) current;
+                acb.setAuthorized(acb.getAuthenticationID().equals(acb.getAuthorizationID()));
+            } else {
+                throw new UnsupportedCallbackException(current);
+            }
+        }
+        final boolean known = username != null && (callbackRealm == null || callbackRealm.equals(index.getRealm()));
+        if (hashCallback != null) {
+            hashCallback.setHash(known ? index.getHash(username) : null);
+        }
+        if (verifyCallback != null) {
+            boolean verified = false;
+            if (known) {
+                if (verifyCallback instanceof VerifyPasswordCharsCallback) {
+                    verified = index.verify(username, ((VerifyPasswordCharsCallback) verifyCallback).getPasswordChars());
+                } else if (verifyCallback.getPassword() != null) {
+                    verified = index.verify(username, verifyCallback.getPassword().toCharArray());
+                }
+            }
+            verifyCallback.setVerified(verified);
+        }
+        if (remaining != null) {
+            delegate.handle(remaining.toArray(new Callback[remaining.size()]));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The layout of the files read by {@link MappedDigestHashCallbackHandler} and written by {@link DigestHashFileBuilder}.
+ * <p/>
+ * All values are big endian. The file starts with a header of {@link #HEADER_LENGTH} bytes:
+ * <pre>
+ * int     magic
+ * int     version
+ * int     number of slots, a power of two
+ * int     number of entries
+ * byte[16] salt
+ * </pre>
+ * followed by an open addressed table of slots of {@link #SLOT_LENGTH} bytes, each holding the 16 byte fingerprint of the
+ * realm and user name followed by the 16 byte { username : realm : password } hash, or zeros if the slot is empty.
+ * Collisions are resolved by linear probing from the slot selected by the first eight bytes of the fingerprint.
+ * <p/>
+ * The fingerprint is the MD5 of the salt, the realm, a zero byte and the user name, the realm and user name are encoded as
+ * modified UTF-8 so neither can contain a zero byte.
+ */
+final class DigestHashFile {
+
+    static final int MAGIC = 0x4A534448;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 32;
+    static final int SLOT_LENGTH = 32;
+    static final int HASH_LENGTH = 16;
+    static final int SALT_LENGTH = 16;
+    /**
+     * The largest table which can be mapped as a single buffer.
+     */
+    static final int MAX_SLOTS = 1 << 25;
+
+    static final int SLOTS_OFFSET = 8;
+    static final int ENTRIES_OFFSET = 12;
+    static final int SALT_OFFSET = 16;
+
+    private static final ThreadLocal<Fingerprint> FINGERPRINTS = new ThreadLocal<Fingerprint>() {
+        protected Fingerprint initialValue() {
+            return new Fingerprint();
+        }
+    };
+
+    /**
+     * Compute the fingerprint of a realm and user name, the result is held by the calling thread until its next call.
+     *
+     * @param salt the salt of the file
+     * @param realm the realm
+     * @param username the user name
+     * @return the fingerprint of the calling thread
+     */
+    static Fingerprint fingerprint(final byte[] salt, final String realm, final String username) {
+        final Fingerprint fingerprint = FINGERPRINTS.get();
+        fingerprint.compute(salt, realm, username);
+        return fingerprint;
+    }
+
+    static final class Fingerprint {
+
+        private final MessageDigest digest;
+        private final byte[] value = new byte[16];
+        private byte[] buffer = new byte[64];
+
+        long high;
+        long low;
+
+        private Fingerprint() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void compute(final byte[] salt, final String realm, final String username) {
+            digest.update(salt);
+            update(realm);
+            digest.update((byte) 0);
+            update(username);
+            try {
+                digest.digest(value, 0, value.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            high = toLong(value, 0);
+            low = toLong(value, 8);
+        }
+
+        boolean isEmpty() {
+            return high == 0 && low == 0;
+        }
+
+        private void update(final String value) {
+            final int length = value.length();
+            if (buffer.length < length * 3) {
+                buffer = new byte[length * 3];
+            }
+            int pos = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c != 0 && c < 0x80) {
+                    buffer[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[pos++] = (byte) (0xC0 | c >> 6);
+                    buffer[pos++] = (byte) (0x80 | c & 0x3F);
+                } else {
+                    buffer[pos++] = (byte) (0xE0 | c >> 12);
+                    buffer[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buffer[pos++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            digest.update(buffer, 0, pos);
+        }
+
+        private static long toLong(final byte[] bytes, final int offs) {
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = result << 8 | bytes[offs + i] & 0xFF;
+            }
+            return result;
+        }
+    }
+
+    private DigestHashFile() {
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import static org.jboss.sasl.callback.DigestHashFile.ENTRIES_OFFSET;
+import static org.jboss.sasl.callback.DigestHashFile.HASH_LENGTH;
+import static org.jboss.sasl.callback.DigestHashFile.HEADER_LENGTH;
+import static org.jboss.sasl.callback.DigestHashFile.MAGIC;
+import static org.jboss.sasl.callback.DigestHashFile.MAX_SLOTS;
+import static org.jboss.sasl.callback.DigestHashFile.SALT_LENGTH;
+import static org.jboss.sasl.callback.DigestHashFile.SALT_OFFSET;
+import static org.jboss.sasl.callback.DigestHashFile.SLOTS_OFFSET;
+import static org.jboss.sasl.callback.DigestHashFile.SLOT_LENGTH;
+import static org.jboss.sasl.callback.DigestHashFile.VERSION;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+import org.jboss.sasl.util.HexConverter;
+
+/**
+ * Builds the files read by {@link MappedDigestHashCallbackHandler} from pre-digested { username : realm : password }
+ * hashes.
+ * <p/>
+ * Run from the command line it converts properties files in the {@code username=hexhash} format, as written by
+ * {@link org.jboss.sasl.util.UsernamePasswordHashUtil}, each file holding the users of one realm:
+ * <pre>
+ * DigestHashFileBuilder target realm users.properties [realm users.properties ...]
+ * </pre>
+ * Only the fingerprints and hashes are held in memory while building, the table is written through a mapping of the
+ * target file. A file holds at most 16M users.
+ */
+public final class DigestHashFileBuilder {
+
+    private static final int MAX_ENTRIES = MAX_SLOTS / 2;
+
+    private final byte[] salt = new byte[SALT_LENGTH];
+    private long[] fingerprints = new long[32];
+    private byte[] hashes = new byte[16 * HASH_LENGTH];
+    private int count;
+
+    /**
+     * Construct a new builder with a new random salt.
+     */
+    public DigestHashFileBuilder() {
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * Add a user, a user added again replaces the earlier hash.
+     *
+     * @param realm the realm
+     * @param username the user name
+     * @param hash the { username : realm : password } hash
+     */
+    public void add(final String realm, final String username, final byte[] hash) {
+        if (hash.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("Hash for " + username + " is not " + HASH_LENGTH + " bytes");
+        }
+        if (count == MAX_ENTRIES) {
+            throw new IllegalStateException("A digest hash file can not hold more than " + MAX_ENTRIES + " users");
+        }
+        final DigestHashFile.Fingerprint fingerprint = DigestHashFile.fingerprint(salt, realm, username);
+        if (fingerprint.isEmpty()) {
+            // an empty slot, not going to happen
+            throw new IllegalStateException("Can not add " + username);
+        }
+        if (count * 2 == fingerprints.length) {
+            fingerprints = Arrays.copyOf(fingerprints, fingerprints.length * 2);
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+        }
+        fingerprints[count * 2] = fingerprint.high;
+        fingerprints[count * 2 + 1] = fingerprint.low;
+        System.arraycopy(hash, 0, hashes, count * HASH_LENGTH, HASH_LENGTH);
+        count++;
+    }
+
+    /**
+     * Add a user.
+     *
+     * @param realm the realm
+     * @param username the user name
+     * @param hexHash the hex encoded { username : realm : password } hash
+     */
+    public void add(final String realm, final String username, final String hexHash) {
+        add(realm, username, HexConverter.convertFromHex(hexHash.trim()));
+    }
+
+    /**
+     * Add the users of a realm from properties in the {@code username=hexhash} format.
+     *
+     * @param realm the realm
+     * @param users the user names and hex encoded hashes
+     */
+    public void add(final String realm, final Properties users) {
+        for (Map.Entry<Object, Object> entry : users.entrySet()) {
+            add(realm, (String) entry.getKey(), (String) entry.getValue());
+        }
+    }
+
+    /**
+     * Write the file, an existing file is replaced. The file must not be written while it is mapped by a
+     * {@link MappedDigestHashCallbackHandler}, write a new file instead.
+     *
+     * @param target the file to write
+     * @return the number of users written
+     * @throws IOException if the file can not be written
+     */
+    public int write(final File target) throws IOException {
+        int slots = 16;
+        while (slots < count * 2) {
+            slots <<= 1;
+        }
+        final int mask = slots - 1;
+        final RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_LENGTH + (long) slots * SLOT_LENGTH);
+            final MappedByteBuffer table = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            int entries = 0;
+            for (int i = 0; i < count; i++) {
+                final long high = fingerprints[i * 2];
+                final long low = fingerprints[i * 2 + 1];
+                int index = (int) high & mask;
+                while (true) {
+                    final int offs = HEADER_LENGTH + index * SLOT_LENGTH;
+                    final long existingHigh = table.getLong(offs);
+                    final long existingLow = table.getLong(offs + 8);
+                    if (existingHigh == 0 && existingLow == 0) {
+                        entries++;
+                    } else if (existingHigh != high || existingLow != low) {
+                        index = index + 1 & mask;
+                        continue;
+                    }
+                    table.putLong(offs, high);
+                    table.putLong(offs + 8, low);
+                    table.position(offs + 16);
+                    table.put(hashes, i * HASH_LENGTH, HASH_LENGTH);
+                    break;
+                }
+            }
+            table.putInt(0, MAGIC);
+            table.putInt(4, VERSION);
+            table.putInt(SLOTS_OFFSET, slots);
+            table.putInt(ENTRIES_OFFSET, entries);
+            table.position(SALT_OFFSET);
+            table.put(salt);
+            table.force();
+            return entries;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length % 2 == 0) {
+            System.out.println("Usage : DigestHashFileBuilder Target Realm UsersFile [Realm UsersFile ...]");
+            return;
+        }
+
+        DigestHashFileBuilder builder = new DigestHashFileBuilder();
+        for (int i = 1; i < args.length; i += 2) {
+            Properties users = new Properties();
+            FileInputStream in = new FileInputStream(args[i + 1]);
+            try {
+                users.load(new InputStreamReader(in, "UTF-8"));
+            } finally {
+                in.close();
+            }
+            builder.add(args[i], users);
+        }
+
+        System.out.println("Wrote " + builder.write(new File(args[0])) + " users to " + args[0]);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import static org.jboss.sasl.callback.DigestHashFile.ENTRIES_OFFSET;
+import static org.jboss.sasl.callback.DigestHashFile.HASH_LENGTH;
+import static org.jboss.sasl.callback.DigestHashFile.HEADER_LENGTH;
+import static org.jboss.sasl.callback.DigestHashFile.MAGIC;
+import static org.jboss.sasl.callback.DigestHashFile.MAX_SLOTS;
+import static org.jboss.sasl.callback.DigestHashFile.SALT_LENGTH;
+import static org.jboss.sasl.callback.DigestHashFile.SALT_OFFSET;
+import static org.jboss.sasl.callback.DigestHashFile.SLOTS_OFFSET;
+import static org.jboss.sasl.callback.DigestHashFile.SLOT_LENGTH;
+import static org.jboss.sasl.callback.DigestHashFile.VERSION;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
+import javax.security.sasl.RealmCallback;
+
+/**
+ * A {@link CallbackHandler} supplying {@link DigestHashCallback} from a memory mapped file of pre-digested
+ * { username : realm : password } hashes, for use by the DIGEST-MD5 mechanism with the
+ * {@code org.jboss.sasl.digest.pre_digested} property set.
+ * <p/>
+ * The file is written by {@link DigestHashFileBuilder} and is read in place, the table of users is not held on the heap and
+ * a lookup does not allocate beyond the hash handed to the callback. The file must not be modified while it is mapped,
+ * to change the users write a new file and create a new handler.
+ * <p/>
+ * The realm and user name are taken from the {@link RealmCallback} and {@link NameCallback}, if no value has been set the
+ * default supplied by the mechanism is used. If the user is not in the file no hash is set. Any other callbacks are passed
+ * to the delegate handler, without a delegate an {@link AuthorizeCallback} is authorized only if the authorization ID is
+ * the authentication ID.
+ */
+public final class MappedDigestHashCallbackHandler implements CallbackHandler {
+
+    private final ByteBuffer table;
+    private final byte[] salt = new byte[SALT_LENGTH];
+    private final int mask;
+    private final int size;
+    private final CallbackHandler delegate;
+
+    /**
+     * Construct a new instance without a delegate.
+     *
+     * @param file the file written by {@link DigestHashFileBuilder}
+     * @throws IOException if the file can not be read or is not a digest hash file
+     */
+    public MappedDigestHashCallbackHandler(final File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param file the file written by {@link DigestHashFileBuilder}
+     * @param delegate the handler for callbacks other than those of the hash lookup, may be {@code null}
+     * @throws IOException if the file can not be read or is not a digest hash file
+     */
+    public MappedDigestHashCallbackHandler(final File file, final CallbackHandler delegate) throws IOException {
+        this.delegate = delegate;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            if (length < HEADER_LENGTH || length > Integer.MAX_VALUE) {
+                throw invalid(file);
+            }
+            // the mapping remains valid once the channel is closed
+            table = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            raf.close();
+        }
+        final int slots = table.getInt(SLOTS_OFFSET);
+        if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION || slots <= 0 || slots > MAX_SLOTS
+                || (slots & slots - 1) != 0 || table.capacity() != HEADER_LENGTH + slots * SLOT_LENGTH) {
+            throw invalid(file);
+        }
+        mask = slots - 1;
+        size = table.getInt(ENTRIES_OFFSET);
+        if (size < 0 || size > slots) {
+            throw invalid(file);
+        }
+        for (int i = 0; i < SALT_LENGTH; i++) {
+            salt[i] = table.get(SALT_OFFSET + i);
+        }
+    }
+
+    private static IOException invalid(final File file) {
+        return new IOException(file + " is not a valid digest hash file");
+    }
+
+    public void handle(final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+        String realm = null;
+        String username = null;
+        DigestHashCallback hashCallback = null;
+        List<Callback> remaining = null;
+        for (Callback current : callbacks) {
+            if (current instanceof RealmCallback) {
+                final RealmCallback rcb = (RealmCallback) current;
+                realm = rcb.getText() != null ? rcb.getText() : rcb.getDefaultText();
+            } else if (current instanceof NameCallback) {
+                final NameCallback ncb = (NameCallback) current;
+                username = ncb.getName() != null ? ncb.getName() : ncb.getDefaultName();
+            } else if (current instanceof DigestHashCallback) {
+                hashCallback = (DigestHashCallback) current;
+            } else if (delegate != null) {
+                if (remaining == null) {
+                    remaining = new ArrayList<Callback>(callbacks.length);
+                }
+                remaining.add(current);
+            } else if (current instanceof AuthorizeCallback) {
+                final AuthorizeCallback acb = (AuthorizeCallback) current;
+                acb.setAuthorized(acb.getAuthenticationID().equals(acb.getAuthorizationID()));
+            } else {
+                throw new UnsupportedCallbackException(current);
+            }
+        }
+        if (hashCallback != null && username != null) {
+            hashCallback.setHash(getHash(realm == null ? "" : realm, username));
+        }
+        if (remaining != null) {
+            delegate.handle(remaining.toArray(new Callback[remaining.size()]));
+        }
+    }
+
+    /**
+     * Get the { username : realm : password } hash of a user.
+     *
+     * @param realm the realm
+     * @param username the user name
+     * @return the hash, or {@code null} if the user is not in the file
+     */
+    public byte[] getHash(final String realm, final String username) {
+        final int slot = find(realm, username);
+        if (slot < 0) {
+            return null;
+        }
+        final byte[] hash = new byte[HASH_LENGTH];
+        final int offs = slot + SLOT_LENGTH - HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            hash[i] = table.get(offs + i);
+        }
+        return hash;
+    }
+
+    /**
+     * Check if a user is in the file.
+     *
+     * @param realm the realm
+     * @param username the user name
+     * @return {@code true} if the file holds a hash for the user
+     */
+    public boolean contains(final String realm, final String username) {
+        return find(realm, username) >= 0;
+    }
+
+    /**
+     * Get the number of users in the file.
+     *
+     * @return the number of users
+     */
+    public int size() {
+        return size;
+    }
+
+    private int find(final String realm, final String username) {
+        final DigestHashFile.Fingerprint fingerprint = DigestHashFile.fingerprint(salt, realm, username);
+        if (fingerprint.isEmpty()) {
+            return -1;
+        }
+        // absolute reads only, the buffer is shared by all threads
+        int index = (int) fingerprint.high & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            final int offs = HEADER_LENGTH + index * SLOT_LENGTH;
+            final long high = table.getLong(offs);
+            final long low = table.getLong(offs + 8);
+            if (high == fingerprint.high && low == fingerprint.low) {
+                return offs;
+            } else if (high == 0 && low == 0) {
+                return -1;
+            }
+            index = index + 1 & mask;
+        }
+        return -1;
+    }
+}
@@ -40,6 +40,13 @@ public class VerifyPasswordCallback implements Callback {
         this.password = password;
     }
 
+    /**
+     * Constructor for sub-classes holding the password in another form, they must override {@link #getPassword()}.
+     */
+    protected VerifyPasswordCallback() {
+        this.password = null;
+    }
+
     public String getPassword() {
         return password;
     }
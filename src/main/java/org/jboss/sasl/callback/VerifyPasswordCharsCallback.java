@@ -0,0 +1,63 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.callback;
+
+import java.util.Arrays;
+
+/**
+ * A {@link VerifyPasswordCallback} holding the password as a {@code char[]} which the mechanism clears once the callback
+ * has been handled.
+ * <p/>
+ * CallbackHandlers that are aware of this class should use {@link #getPasswordChars()} and must not retain the array,
+ * calling {@link #getPassword()} still works but creates a {@link String} copy of the password.
+ */
+public class VerifyPasswordCharsCallback extends VerifyPasswordCallback {
+
+    private final char[] password;
+
+    public VerifyPasswordCharsCallback(final char[] password) {
+        this.password = password;
+    }
+
+    /**
+     * Get the password, the array is cleared once the callback has been handled.
+     *
+     * @return the password
+     */
+    public char[] getPasswordChars() {
+        return password;
+    }
+
+    @Override
+    public String getPassword() {
+        return new String(password);
+    }
+
+    /**
+     * Overwrite the password with zeros.
+     */
+    public void clearPassword() {
+        Arrays.fill(password, '\0');
+    }
+
+}
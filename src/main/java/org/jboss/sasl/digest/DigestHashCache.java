@@ -0,0 +1,280 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.digest;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, expiring cache of the { username : realm : password } hashes used by the DIGEST-MD5 server, allowing
+ * repeated logins to skip both the {@link javax.security.auth.callback.CallbackHandler} and the hashing of the password.
+ * <p/>
+ * Entries are held in flat arrays of fixed size, grouped into sets of eight slots selected by the realm and user name, so
+ * the memory used is fixed when the cache is constructed. When a set is full the entry closest to expiry is replaced.
+ * A hash is only cached once a client has authenticated with it and a cached hash a client fails to authenticate with is
+ * discarded and looked up again, so a changed password is picked up at the next login. Applications that must reject the
+ * previous password immediately either call {@link #invalidate(String, String)} or {@link #invalidateAll()}, or supply
+ * {@link CredentialVersions} whose version for the user is compared on every lookup.
+ * <p/>
+ * The cache is supplied to the server using the {@link #HASH_CACHE} property and may be shared by any number of servers
+ * that use the same character set.
+ */
+public final class DigestHashCache {
+
+    /**
+     * The property used to supply a {@link DigestHashCache} to the DIGEST-MD5 server.
+     */
+    public static final String HASH_CACHE = "org.jboss.sasl.digest.hash_cache";
+
+    /**
+     * Supplies the current version of the credentials of a user, for example a counter incremented or a timestamp updated
+     * whenever the password is changed.
+     */
+    public interface CredentialVersions {
+
+        /**
+         * Get the current version of the credentials of a user, this is called for every cache hit and must be cheap.
+         *
+         * @param realm the realm
+         * @param username the user name
+         * @return the version
+         */
+        long getVersion(String realm, String username);
+    }
+
+    /**
+     * The credential version and cache state taken before a hash is obtained, a hash is cached under the stamp taken before
+     * it was looked up so that a change of password or an invalidation made during the lookup is not hidden by the cache.
+     */
+    public static final class Stamp {
+
+        private final long version;
+        private final long epoch;
+        private final long invalidations;
+
+        private Stamp(final long version, final long epoch, final long invalidations) {
+            this.version = version;
+            this.epoch = epoch;
+            this.invalidations = invalidations;
+        }
+    }
+
+    private static final int HASH_LENGTH = 16;
+    private static final int SET_SIZE = 8;
+
+    private final long ttlNanos;
+    private final CredentialVersions versions;
+    private final AtomicLong epoch = new AtomicLong();
+    private final int setMask;
+    private final Object[] locks;
+    // the number of calls to invalidate for each lock, guarded by the lock
+    private final long[] invalidations;
+
+    // slot i holds realms[i], usernames[i] and hashes[i * HASH_LENGTH, (i + 1) * HASH_LENGTH)
+    private final String[] realms;
+    private final String[] usernames;
+    private final byte[] hashes;
+    private final long[] expiries;
+    private final long[] epochs;
+    private final long[] entryVersions;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param ttl the time a hash remains cached
+     * @param unit the unit of the time to live
+     * @param maxEntries the number of hashes held, rounded up to a multiple of eight that is a power of two
+     */
+    public DigestHashCache(final long ttl, final TimeUnit unit, final int maxEntries) {
+        this(ttl, unit, maxEntries, null);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param ttl the time a hash remains cached
+     * @param unit the unit of the time to live
+     * @param maxEntries the number of hashes held, rounded up to a multiple of eight that is a power of two
+     * @param versions the source of credential versions, or {@code null} if hashes are only invalidated explicitly
+     */
+    public DigestHashCache(final long ttl, final TimeUnit unit, final int maxEntries, final CredentialVersions versions) {
+        if (maxEntries < 1 || maxEntries > 1 << 26) {
+            throw new IllegalArgumentException("maxEntries out of range");
+        }
+        ttlNanos = unit.toNanos(ttl);
+        this.versions = versions;
+        int sets = 1;
+        while (sets * SET_SIZE < maxEntries) {
+            sets <<= 1;
+        }
+        setMask = sets - 1;
+        locks = new Object[Math.min(sets, 64)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        invalidations = new long[locks.length];
+        final int slots = sets * SET_SIZE;
+        realms = new String[slots];
+        usernames = new String[slots];
+        hashes = new byte[slots * HASH_LENGTH];
+        expiries = new long[slots];
+        epochs = new long[slots];
+        entryVersions = new long[slots];
+    }
+
+    /**
+     * Get the cached hash of a user.
+     *
+     * @param realm the realm
+     * @param username the user name
+     * @return a copy of the hash, or {@code null} if none is cached
+     */
+    public byte[] get(final String realm, final String username) {
+        final long version = versions == null ? 0 : versions.getVersion(realm, username);
+        final long epoch = this.epoch.get();
+        final long now = System.nanoTime();
+        final int set = setOf(realm, username);
+        synchronized (locks[set & locks.length - 1]) {
+            final int slot = find(set, realm, username);
+            if (slot < 0) {
+                return null;
+            }
+            if (expiries[slot] - now < 0 || epochs[slot] != epoch || entryVersions[slot] != version) {
+                clear(slot);
+                return null;
+            }
+            final byte[] hash = new byte[HASH_LENGTH];
+            System.arraycopy(hashes, slot * HASH_LENGTH, hash, 0, HASH_LENGTH);
+            return hash;
+        }
+    }
+
+    /**
+     * Take the stamp to cache a hash under, this must be called before the hash is obtained.
+     *
+     * @param realm the realm
+     * @param username the user name
+     * @return the stamp
+     */
+    public Stamp stamp(final String realm, final String username) {
+        final long version = versions == null ? 0 : versions.getVersion(realm, username);
+        final long epoch = this.epoch.get();
+        final int lock = setOf(realm, username) & locks.length - 1;
+        synchronized (locks[lock]) {
+            return new Stamp(version, epoch, invalidations[lock]);
+        }
+    }
+
+    /**
+     * Cache the hash of a user. The hash is not cached if the cache was invalidated since the stamp was taken and is
+     * discarded at the next lookup if the credential version has changed.
+     *
+     * @param realm the realm
+     * @param username the user name
+     * @param hash the 16 byte { username : realm : password } hash
+     * @param stamp the stamp taken by {@link #stamp(String, String)} before the hash was obtained
+     */
+    public void put(final String realm, final String username, final byte[] hash, final Stamp stamp) {
+        if (hash.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("hash must be 16 bytes");
+        }
+        final long now = System.nanoTime();
+        final int set = setOf(realm, username);
+        final int lock = set & locks.length - 1;
+        synchronized (locks[lock]) {
+            if (stamp.epoch != epoch.get() || stamp.invalidations != invalidations[lock]) {
+                return;
+            }
+            int slot = find(set, realm, username);
+            if (slot < 0) {
+                // an empty slot, otherwise the one closest to expiry
+                final int first = set * SET_SIZE;
+                slot = first;
+                for (int i = first; i < first + SET_SIZE; i++) {
+                    if (usernames[i] == null) {
+                        slot = i;
+                        break;
+                    }
+                    if (expiries[i] - expiries[slot] < 0) {
+                        slot = i;
+                    }
+                }
+            }
+            realms[slot] = realm;
+            usernames[slot] = username;
+            System.arraycopy(hash, 0, hashes, slot * HASH_LENGTH, HASH_LENGTH);
+            expiries[slot] = now + ttlNanos;
+            epochs[slot] = stamp.epoch;
+            entryVersions[slot] = stamp.version;
+        }
+    }
+
+    /**
+     * Discard the cached hash of a user.
+     *
+     * @param realm the realm
+     * @param username the user name
+     */
+    public void invalidate(final String realm, final String username) {
+        final int set = setOf(realm, username);
+        final int lock = set & locks.length - 1;
+        synchronized (locks[lock]) {
+            invalidations[lock]++;
+            final int slot = find(set, realm, username);
+            if (slot >= 0) {
+                clear(slot);
+            }
+        }
+    }
+
+    /**
+     * Discard all cached hashes, this takes constant time as the entries are only discarded when next used.
+     */
+    public void invalidateAll() {
+        epoch.incrementAndGet();
+    }
+
+    private int setOf(final String realm, final String username) {
+        int h = realm.hashCode() * 31 + username.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & setMask;
+    }
+
+    private int find(final int set, final String realm, final String username) {
+        final int first = set * SET_SIZE;
+        for (int i = first; i < first + SET_SIZE; i++) {
+            if (username.equals(usernames[i]) && realm.equals(realms[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void clear(final int slot) {
+        realms[slot] = null;
+        usernames[slot] = null;
+        Arrays.fill(hashes, slot * HASH_LENGTH, (slot + 1) * HASH_LENGTH, (byte) 0);
+    }
+}
@@ -38,7 +38,13 @@ import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import org.jboss.logging.Logger;
+import org.jboss.sasl.callback.AuthorizationCache;
 import org.jboss.sasl.callback.DigestHashCallback;
+import org.jboss.sasl.util.AdmissionController;
+import org.jboss.sasl.util.AsyncEvaluation;
+import org.jboss.sasl.util.AsyncSaslServer;
+import org.jboss.sasl.util.SaslEvaluationListener;
+import org.jboss.sasl.util.UsernamePasswordHashUtil;
 
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
@@ -49,7 +55,6 @@ import javax.security.sasl.AuthorizeCallback;
 import javax.security.sasl.RealmCallback;
 import javax.security.sasl.Sasl;
 import javax.security.sasl.SaslException;
-import javax.security.sasl.SaslServer;
 
 /**
   * An implementation of the DIGEST-MD5 server SASL mechanism.
@@ -94,7 +99,7 @@ import javax.security.sasl.SaslServer;
   * @author Rosanna Lee
   */
 
-public final class DigestMD5Server extends DigestMD5Base implements SaslServer {
+public final class DigestMD5Server extends DigestMD5Base implements AsyncSaslServer {
     private static final String MY_CLASS_NAME = DigestMD5Server.class.getName();
 
     private static final String UTF8_DIRECTIVE = "charset=utf-8,";
@@ -153,10 +158,18 @@ public final class DigestMD5Server extends DigestMD5Base implements SaslServer {
     /** Should the impl request and use pre-digested passwords instead of generating the {username : realm : password} hash? */
     private boolean preDigestedPasswords;
     private final List<String> digestUris;
+    private final DigestHashCache hashCache;
+    private final String protocol;
+    private final String serverName;
+    private final AuthorizationCache authorizationCache;
+    private final AdmissionController admissionController;
+    private AdmissionController.Permit admission;
 
     DigestMD5Server(String protocol, String serverName, Map<String, ?> props, CallbackHandler cbh) throws SaslException {
         super(props, MY_CLASS_NAME, 1, cbh);
 
+        this.protocol = protocol;
+        this.serverName = serverName;
         serverRealms = new ArrayList<String>();
 
         // Defaults
@@ -201,6 +214,9 @@ public final class DigestMD5Server extends DigestMD5Base implements SaslServer {
             }
         }
         this.digestUris = Collections.unmodifiableList(digestUris);
+        hashCache = props == null ? null : (DigestHashCache) props.get(DigestHashCache.HASH_CACHE);
+        authorizationCache = props == null ? null : (AuthorizationCache) props.get(AuthorizationCache.AUTHORIZATION_CACHE);
+        admissionController = props == null ? null : (AdmissionController) props.get(AdmissionController.ADMISSION_CONTROLLER);
 
         encoding = (useUTF8 ? "UTF8" : "8859_1");
 
@@ -210,7 +226,25 @@ public final class DigestMD5Server extends DigestMD5Base implements SaslServer {
         }
     }
 
-    public  byte[] evaluateResponse(byte[] response) throws SaslException {
+    public byte[] evaluateResponse(byte[] response) throws SaslException {
+        if (step == 1 && admissionController != null && admission == null) {
+            admission = admissionController.admit(getMechanismName());
+        }
+        boolean suspended = false;
+        try {
+            return evaluate(response);
+        } catch (AsyncEvaluation.Suspended e) {
+            suspended = true;
+            throw e;
+        } finally {
+            // the place is held while the client answers the challenge
+            if (suspended == false && step != 3) {
+                releaseAdmission();
+            }
+        }
+    }
+
+    private byte[] evaluate(byte[] response) throws SaslException {
         if (response.length > MAX_RESPONSE_LENGTH) {
             throw new SaslException(
                 "DIGEST-MD5: Invalid digest response length. Got:  " +
@@ -292,6 +326,38 @@ public final class DigestMD5Server extends DigestMD5Base implements SaslServer {
         }
     }
 
+    public void dispose() throws SaslException {
+        releaseAdmission();
+        super.dispose();
+    }
+
+    private void releaseAdmission() {
+        final AdmissionController.Permit admission = this.admission;
+        if (admission != null) {
+            this.admission = null;
+            admission.release();
+        }
+    }
+
+    public void evaluateResponse(final byte[] response, final SaslEvaluationListener listener) {
+        AsyncEvaluation.evaluate(cbh, new AsyncEvaluation.Step() {
+            public byte[] evaluate(final CallbackHandler callbackHandler) throws SaslException {
+                final CallbackHandler cbh = DigestMD5Server.this.cbh;
+                final int step = DigestMD5Server.this.step;
+                DigestMD5Server.this.cbh = callbackHandler;
+                try {
+                    return evaluateResponse(response);
+                } catch (AsyncEvaluation.Suspended e) {
+                    // the step is evaluated again once the callbacks have been handled
+                    DigestMD5Server.this.step = step;
+                    throw e;
+                } finally {
+                    DigestMD5Server.this.cbh = cbh;
+                }
+            }
+        }, listener);
+    }
+
     /**
      * Generates challenge to be sent to client.
      *  digest-challenge  =
@@ -595,7 +661,78 @@ public final class DigestMD5Server extends DigestMD5Base implements SaslServer {
 
         // Ignore auth-param
 
-        // Get password need to generate verifying response
+        // A cached hash is only trusted once the client has authenticated with it, otherwise it is looked up again.
+        // The stamp is taken first so that a password changed during the lookup is not cached under the new version.
+        DigestHashCache.Stamp stamp = hashCache == null ? null : hashCache.stamp(negotiatedRealm, username);
+        byte[] userRealmPasswd = hashCache == null ? null : hashCache.get(negotiatedRealm, username);
+        boolean cachedHash = userRealmPasswd != null;
+        if (cachedHash == false) {
+            userRealmPasswd = acquireHash(username);
+        }
+
+        try {
+            // Validate response value sent by client
+            byte[] expectedResponse = generateExpectedResponse(digestUri, userRealmPasswd, cnonce, authzidBytes);
+            if (cachedHash && !Arrays.equals(responseFromClient, expectedResponse)) {
+                // The password may have changed since the hash was cached.
+                hashCache.invalidate(negotiatedRealm, username);
+                stamp = hashCache.stamp(negotiatedRealm, username);
+                Arrays.fill(userRealmPasswd, (byte) 0);
+                userRealmPasswd = acquireHash(username);
+                cachedHash = false;
+                expectedResponse = generateExpectedResponse(digestUri, userRealmPasswd, cnonce, authzidBytes);
+            }
+
+            if (!Arrays.equals(responseFromClient, expectedResponse)) {
+                throw new SaslException("DIGEST-MD5: digest response format " +
+                    "violation. Mismatched response.");
+            }
+
+            if (hashCache != null && cachedHash == false) {
+                hashCache.put(negotiatedRealm, username, userRealmPasswd, stamp);
+            }
+
+            // Ensure that authzid mapping is OK
+            try {
+                AuthorizeCallback acb =
+                    new AuthorizeCallback(username, authzidFromClient);
+                if (authorizationCache == null || authorizationCache.lookup(getMechanismName(), protocol, serverName, negotiatedRealm, acb) == false) {
+                    final AuthorizationCache.Stamp decisionStamp = authorizationCache == null ? null : authorizationCache.stamp();
+                    cbh.handle(new Callback[]{acb});
+                    if (authorizationCache != null) {
+                        authorizationCache.store(getMechanismName(), protocol, serverName, negotiatedRealm, acb, decisionStamp);
+                    }
+                }
+
+                if (acb.isAuthorized()) {
+                    authzid = acb.getAuthorizedID();
+                } else {
+                    throw new SaslException("DIGEST-MD5: " + username +
+                        " is not authorized to act as " + authzidFromClient);
+                }
+            } catch (SaslException e) {
+                throw e;
+            } catch (UnsupportedCallbackException e) {
+                throw new SaslException(
+                    "DIGEST-MD5: Cannot perform callback to check authzid", e);
+            } catch (IOException e) {
+                throw new SaslException(
+                    "DIGEST-MD5: IO error checking authzid", e);
+            }
+
+            return generateResponseAuth(digestUri, userRealmPasswd, cnonce,
+                    NONCE_COUNT_VALUE, authzidBytes);
+        } finally {
+            // Clear hash
+            Arrays.fill(userRealmPasswd, (byte) 0);
+        }
+    }
+
+    /**
+     * Acquire the { username : realm : password } hash for the user from the callback handler, hashing the password
+     * unless pre-digested passwords are in use.
+     */
+    private byte[] acquireHash(final String username) throws SaslException {
         char[] passwd = null;
         byte[] userRealmPasswd = null;
         try {
@@ -621,6 +758,8 @@ public final class DigestMD5Server extends DigestMD5Base implements SaslServer {
                 pcb.clearPassword();
             }
 
+        } catch (SaslException e) {
+            throw e;
         } catch (UnsupportedCallbackException e) {
             throw new SaslException(
                 "DIGEST-MD5: Cannot perform callback to acquire password", e);
@@ -640,106 +779,32 @@ public final class DigestMD5Server extends DigestMD5Base implements SaslServer {
                             " in realm : " + negotiatedRealm);
         }
 
+        if (preDigestedPasswords) {
+            return userRealmPasswd;
+        }
         try {
-            // Validate response value sent by client
-            byte[] expectedResponse;
-
-            try {
-                if (preDigestedPasswords) {
-                    expectedResponse = generateResponseValue("AUTHENTICATE",
-                            digestUri, negotiatedQop, userRealmPasswd, nonce /* use own nonce */,
-                            cnonce, NONCE_COUNT_VALUE, authzidBytes);
-                } else {
-                    expectedResponse = generateResponseValue("AUTHENTICATE",
-                            digestUri, negotiatedQop, username, negotiatedRealm,
-                            passwd, nonce /* use own nonce */,
-                            cnonce, NONCE_COUNT_VALUE, authzidBytes);
-                }
-
-            } catch (NoSuchAlgorithmException e) {
-                throw new SaslException(
-                    "DIGEST-MD5: problem duplicating client response", e);
-            } catch (IOException e) {
-                throw new SaslException(
-                    "DIGEST-MD5: problem duplicating client response", e);
-            }
-
-            if (!Arrays.equals(responseFromClient, expectedResponse)) {
-                throw new SaslException("DIGEST-MD5: digest response format " +
-                    "violation. Mismatched response.");
-            }
-
-            // Ensure that authzid mapping is OK
-            try {
-                AuthorizeCallback acb =
-                    new AuthorizeCallback(username, authzidFromClient);
-                cbh.handle(new Callback[]{acb});
-
-                if (acb.isAuthorized()) {
-                    authzid = acb.getAuthorizedID();
-                } else {
-                    throw new SaslException("DIGEST-MD5: " + username +
-                        " is not authorized to act as " + authzidFromClient);
-                }
-            } catch (SaslException e) {
-                throw e;
-            } catch (UnsupportedCallbackException e) {
-                throw new SaslException(
-                    "DIGEST-MD5: Cannot perform callback to check authzid", e);
-            } catch (IOException e) {
-                throw new SaslException(
-                    "DIGEST-MD5: IO error checking authzid", e);
-            }
-
-            if (preDigestedPasswords) {
-                return generateResponseAuth(digestUri, userRealmPasswd, cnonce,
-                        NONCE_COUNT_VALUE, authzidBytes);
-            } else {
-                return generateResponseAuth(digestUri, username, passwd, cnonce,
-                        NONCE_COUNT_VALUE, authzidBytes);
-            }
+            return new UsernamePasswordHashUtil().generateHashedURP(username, negotiatedRealm, passwd, useUTF8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new SaslException(
+                "DIGEST-MD5: problem duplicating client response", e);
         } finally {
             // Clear password
-            if (passwd != null) {
-                for (int i = 0; i < passwd.length; i++) {
-                    passwd[i] = 0;
-                }
-            } else if (userRealmPasswd != null) {
-                for (int i = 0; i < userRealmPasswd.length; i++) {
-                    userRealmPasswd[i] = 0;
-                }
-            }
+            Arrays.fill(passwd, '\0');
         }
     }
 
-    /**
-     * Server sends a message formatted as follows:
-     *    response-auth = "rspauth" "=" response-value
-     *   where response-value is calculated as above, using the values sent in
-     *   step two, except that if qop is "auth", then A2 is
-     *
-     *       A2 = { ":", digest-uri-value }
-     *
-     *   And if qop is "auth-int" or "auth-conf" then A2 is
-     *
-     *       A2 = { ":", digest-uri-value, ":00000000000000000000000000000000" }
-     *
-     */
-    private byte[] generateResponseAuth(String digestUri, String username, char[] passwd,
-        byte[] cnonce, int nonceCount, byte[] authzidBytes) throws SaslException {
-
-        // Construct response value
-
+    private byte[] generateExpectedResponse(final String digestUri, final byte[] userRealmPasswd, final byte[] cnonce,
+            final byte[] authzidBytes) throws SaslException {
         try {
-            byte[] responseValue = generateResponseValue("",
-                digestUri, negotiatedQop, username, negotiatedRealm,
-                passwd, nonce, cnonce, nonceCount, authzidBytes);
-
-            return generateChallenge(responseValue);
+            return generateResponseValue("AUTHENTICATE",
+                    digestUri, negotiatedQop, userRealmPasswd, nonce /* use own nonce */,
+                    cnonce, NONCE_COUNT_VALUE, authzidBytes);
         } catch (NoSuchAlgorithmException e) {
-            throw new SaslException("DIGEST-MD5: problem generating response", e);
+            throw new SaslException(
+                "DIGEST-MD5: problem duplicating client response", e);
         } catch (IOException e) {
-            throw new SaslException("DIGEST-MD5: problem generating response", e);
+            throw new SaslException(
+                "DIGEST-MD5: problem duplicating client response", e);
         }
     }
 
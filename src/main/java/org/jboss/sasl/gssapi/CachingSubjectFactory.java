@@ -0,0 +1,404 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.gssapi;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+
+/**
+ * A {@link SubjectFactory} that caches the {@link SubjectIdentity} obtained from another {@link SubjectFactory} for each
+ * protocol and server name.
+ * <p/>
+ * The cached identity is shared by every caller, each call to {@link #getSubjectIdentity(String, String)} returns a handle
+ * that holds a reference to it and disposing of the handle releases that reference. Where the {@link Subject} holds
+ * {@link KerberosTicket}s a replacement identity is obtained in the background before the earliest ticket expires, callers
+ * then receive the new identity and the previous one is disposed of once the last handle referencing it is disposed.
+ * <p/>
+ * Only the first call for a protocol and server name waits for the delegate.
+ */
+public class CachingSubjectFactory implements SubjectFactory {
+
+    private static final float DEFAULT_RENEWAL_FRACTION = 0.8f;
+
+    private static final long DEFAULT_MINIMUM_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private final SubjectFactory delegate;
+    private final float renewalFraction;
+    private final long minimumDelay;
+    private final ScheduledExecutorService executor;
+    private final boolean ownExecutor;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private volatile boolean closed;
+
+    /**
+     * Construct a new instance renewing at 80% of the remaining ticket lifetime using an executor owned by this factory.
+     *
+     * @param delegate - the {@link SubjectFactory} to obtain identities from.
+     */
+    public CachingSubjectFactory(final SubjectFactory delegate) {
+        this(delegate, DEFAULT_RENEWAL_FRACTION, DEFAULT_MINIMUM_DELAY, TimeUnit.MILLISECONDS, null);
+    }
+
+    /**
+     * Construct a new instance renewing at 80% of the remaining ticket lifetime using the supplied executor.
+     *
+     * @param delegate - the {@link SubjectFactory} to obtain identities from.
+     * @param executor - the executor to schedule renewals on, it is not shut down when this factory is closed.
+     */
+    public CachingSubjectFactory(final SubjectFactory delegate, final ScheduledExecutorService executor) {
+        this(delegate, DEFAULT_RENEWAL_FRACTION, DEFAULT_MINIMUM_DELAY, TimeUnit.MILLISECONDS, executor);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param delegate - the {@link SubjectFactory} to obtain identities from.
+     * @param renewalFraction - the fraction of the remaining ticket lifetime after which a replacement is obtained.
+     * @param minimumDelay - the minimum delay before a renewal, also used as the delay before retrying a failed renewal.
+     * @param unit - the unit of {@code minimumDelay}.
+     * @param executor - the executor to schedule renewals on or {@code null} to use a single daemon thread owned by this
+     *        factory.
+     */
+    public CachingSubjectFactory(final SubjectFactory delegate, final float renewalFraction, final long minimumDelay,
+            final TimeUnit unit, final ScheduledExecutorService executor) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate can not be null");
+        }
+        if (renewalFraction <= 0 || renewalFraction >= 1) {
+            throw new IllegalArgumentException("renewalFraction must be between 0 and 1");
+        }
+        this.delegate = delegate;
+        this.renewalFraction = renewalFraction;
+        this.minimumDelay = unit.toMillis(minimumDelay);
+        if (executor == null) {
+            ScheduledThreadPoolExecutor ownedExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CachingSubjectFactory renewal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ownedExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            this.executor = ownedExecutor;
+            this.ownExecutor = true;
+        } else {
+            this.executor = executor;
+            this.ownExecutor = false;
+        }
+    }
+
+    @Override
+    public SubjectIdentity getSubjectIdentity(final String protocol, final String serverName) {
+        if (closed) {
+            throw new IllegalStateException("CachingSubjectFactory has been closed.");
+        }
+        final String key = protocol + "/" + serverName;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry newEntry = new Entry(protocol, serverName);
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+
+        final CachedIdentity cached = entry.acquire();
+        return cached == null ? null : new Handle(cached);
+    }
+
+    /**
+     * Discard the cached identity for the specified protocol and server name, the next call to
+     * {@link #getSubjectIdentity(String, String)} will obtain a new identity from the delegate.
+     *
+     * @param protocol - the protocol.
+     * @param serverName - the serverName.
+     */
+    public void invalidate(final String protocol, final String serverName) {
+        Entry entry = entries.get(protocol + "/" + serverName);
+        if (entry != null) {
+            entry.retire();
+        }
+    }
+
+    /**
+     * Close this factory, cached identities are disposed of once all outstanding handles have been disposed.
+     */
+    public void close() {
+        closed = true;
+        if (ownExecutor) {
+            executor.shutdownNow();
+        }
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            it.next().retire();
+            it.remove();
+        }
+    }
+
+    /**
+     * Calculate the delay in milliseconds before the identity should be renewed.
+     *
+     * @param subject - the {@link Subject} of the identity.
+     * @return the delay, or {@code -1} if the {@link Subject} holds no expiring tickets.
+     */
+    long renewalDelay(final Subject subject) {
+        final long endTime = earliestEndTime(subject);
+        if (endTime < 0) {
+            return -1;
+        }
+        final long remaining = endTime - System.currentTimeMillis();
+        return Math.max(minimumDelay, (long) (remaining * renewalFraction));
+    }
+
+    /**
+     * Get the time at which the last of the tickets held by the cached identities expires.
+     *
+     * @return the time in milliseconds, or {@code -1} if no cached identity holds an expiring ticket.
+     */
+    long expiryTime() {
+        long latest = -1;
+        for (Entry entry : entries.values()) {
+            final CachedIdentity cached = entry.current;
+            if (cached != null) {
+                latest = Math.max(latest, earliestEndTime(cached.identity.getSubject()));
+            }
+        }
+        return latest;
+    }
+
+    private static long earliestEndTime(final Subject subject) {
+        final Set<KerberosTicket> tickets = AccessController.doPrivileged(new PrivilegedAction<Set<KerberosTicket>>() {
+
+            @Override
+            public Set<KerberosTicket> run() {
+                return subject.getPrivateCredentials(KerberosTicket.class);
+            }
+        });
+        long earliest = -1;
+        for (KerberosTicket current : tickets) {
+            Date endTime = current.getEndTime();
+            if (endTime != null && (earliest < 0 || endTime.getTime() < earliest)) {
+                earliest = endTime.getTime();
+            }
+        }
+        return earliest;
+    }
+
+    private void schedule(final Entry entry, final CachedIdentity toRenew, final long delay) {
+        if (closed) {
+            return;
+        }
+        try {
+            entry.renewal = executor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    entry.renew(toRenew);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down, the identity will be replaced once it is retired.
+        }
+    }
+
+    /**
+     * The cache entry for a single protocol and server name.
+     */
+    private final class Entry {
+
+        private final String protocol;
+        private final String serverName;
+
+        private volatile CachedIdentity current;
+        private volatile ScheduledFuture<?> renewal;
+
+        private Entry(final String protocol, final String serverName) {
+            this.protocol = protocol;
+            this.serverName = serverName;
+        }
+
+        CachedIdentity acquire() {
+            CachedIdentity cached = current;
+            if (cached != null && cached.reference()) {
+                return cached;
+            }
+
+            synchronized (this) {
+                cached = current;
+                if (cached == null) {
+                    cached = load();
+                    if (cached == null) {
+                        return null;
+                    }
+                }
+                cached.reference();
+                return cached;
+            }
+        }
+
+        /**
+         * Obtain a new identity from the delegate and make it current, must be called while holding the lock.
+         */
+        private CachedIdentity load() {
+            SubjectIdentity identity = delegate.getSubjectIdentity(protocol, serverName);
+            if (identity == null) {
+                return null;
+            }
+            CachedIdentity cached = new CachedIdentity(identity);
+            current = cached;
+            scheduleRenewal(cached);
+            return cached;
+        }
+
+        private void scheduleRenewal(final CachedIdentity cached) {
+            long delay = renewalDelay(cached.identity.getSubject());
+            if (delay >= 0) {
+                schedule(this, cached, delay);
+            }
+        }
+
+        /**
+         * Replace the identity scheduled for renewal, nothing is done if it has since been retired.
+         */
+        void renew(final CachedIdentity toRenew) {
+            if (closed || current != toRenew) {
+                return;
+            }
+            SubjectIdentity identity;
+            try {
+                identity = delegate.getSubjectIdentity(protocol, serverName);
+            } catch (RuntimeException e) {
+                identity = null;
+            }
+            if (identity == null) {
+                // Keep the current identity and try again later.
+                schedule(this, toRenew, minimumDelay);
+                return;
+            }
+
+            final CachedIdentity renewed = new CachedIdentity(identity);
+            synchronized (this) {
+                if (current != toRenew) {
+                    renewed.release();
+                    return;
+                }
+                current = renewed;
+            }
+            toRenew.release();
+            scheduleRenewal(renewed);
+        }
+
+        void retire() {
+            final CachedIdentity retired;
+            synchronized (this) {
+                retired = current;
+                current = null;
+            }
+            if (retired != null) {
+                retired.release();
+            }
+            // do not leave the task behind on an executor that outlives this factory
+            final ScheduledFuture<?> renewal = this.renewal;
+            if (renewal != null) {
+                renewal.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A reference counted identity, the cache itself holds one reference while it is current.
+     */
+    private static final class CachedIdentity {
+
+        private final SubjectIdentity identity;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private CachedIdentity(final SubjectIdentity identity) {
+            this.identity = identity;
+        }
+
+        boolean reference() {
+            int count;
+            do {
+                count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (references.compareAndSet(count, count + 1) == false);
+            return true;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                identity.dispose();
+            }
+        }
+    }
+
+    /**
+     * The {@link SubjectIdentity} returned to callers.
+     */
+    private static final class Handle implements SubjectIdentity {
+
+        private final CachedIdentity cached;
+        private final AtomicBoolean disposed = new AtomicBoolean();
+
+        private Handle(final CachedIdentity cached) {
+            this.cached = cached;
+        }
+
+        @Override
+        public Subject getSubject() {
+            if (disposed.get()) {
+                throw new IllegalStateException("dispose() has already been called on this SubjectIdentity.");
+            }
+            return cached.identity.getSubject();
+        }
+
+        @Override
+        public void dispose() {
+            if (disposed.compareAndSet(false, true)) {
+                cached.release();
+            }
+        }
+    }
+
+}
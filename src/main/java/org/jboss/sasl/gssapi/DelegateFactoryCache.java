@@ -0,0 +1,116 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.gssapi;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.sasl.JBossSaslProvider;
+
+/**
+ * Cache of the GSSAPI factories of the installed providers other than our own, the providers are only searched again if they
+ * have changed since the last call.
+ *
+ * @param <T> the factory type
+ */
+final class DelegateFactoryCache<T> {
+
+    private final Class<T> factoryType;
+    private final String key;
+
+    private volatile Snapshot<T> snapshot = new Snapshot<T>(new Provider[0], Collections.<T> emptyList());
+
+    DelegateFactoryCache(final Class<T> factoryType) {
+        this.factoryType = factoryType;
+        this.key = factoryType.getSimpleName() + "." + GssapiServerFactory.GSSAPI;
+    }
+
+    /**
+     * Get the candidate factories.
+     *
+     * @return the candidate factories in provider order
+     */
+    List<T> getFactories() {
+        Provider[] providers = Security.getProviders();
+        Snapshot<T> current = snapshot;
+        if (current.isFor(providers) == false) {
+            current = new Snapshot<T>(providers, load(providers));
+            snapshot = current;
+        }
+
+        return current.factories;
+    }
+
+    private List<T> load(final Provider[] providers) {
+        List<T> factories = new ArrayList<T>(1);
+        for (Provider current : providers) {
+            // Looking for the providers that are not our provider.
+            if (current instanceof JBossSaslProvider == false) {
+                String gssapiFactory = current.getProperty(key);
+
+                if (gssapiFactory != null) {
+                    try {
+                        factories.add(Class.forName(gssapiFactory, true, current.getClass().getClassLoader())
+                                .asSubclass(factoryType).newInstance());
+                    } catch (InstantiationException e) {
+                    } catch (IllegalAccessException e) {
+                    } catch (ClassNotFoundException e) {
+                    }
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(factories);
+    }
+
+    private static final class Snapshot<T> {
+
+        private final Provider[] providers;
+        private final List<T> factories;
+
+        private Snapshot(final Provider[] providers, final List<T> factories) {
+            this.providers = providers;
+            this.factories = factories;
+        }
+
+        /**
+         * Check if this snapshot was taken for the same providers in the same order, {@link Provider#equals(Object)} compares
+         * the content of the provider so identity is used instead.
+         */
+        private boolean isFor(final Provider[] current) {
+            if (current.length != providers.length) {
+                return false;
+            }
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] != providers[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.gssapi;
+
+import static org.jboss.sasl.gssapi.GssapiServerFactory.DELEGATE_FACTORY;
+import static org.jboss.sasl.gssapi.GssapiServerFactory.GSSAPI;
+import static org.jboss.sasl.gssapi.GssapiServerFactory.SUBJECT_FACTORY;
+import static org.jboss.sasl.gssapi.GssapiServerFactory.WRAP_AS_SUBJECT;
+
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslClientFactory;
+import javax.security.sasl.SaslException;
+
+/**
+ * A {@link SaslClientFactory} to locate the default GSSAPI mechanism and wrap it in our own version to ensure our identity is
+ * set on the access control context.
+ * <p/>
+ * The {@link SubjectFactory} is supplied using the same property as for {@link GssapiServerFactory}, unless it is already a
+ * {@link CachingSubjectFactory} it is wrapped in one that is shared by all clients using the same {@link SubjectFactory}, so
+ * all outbound connections to the same service principal reuse a single automatically renewed {@link Subject}. Once the
+ * last of its clients is disposed the shared cache is retained until the last of its Kerberos tickets expires, or for five
+ * minutes where its identities hold no tickets, so sequential connections do not each log in again; it is closed if no
+ * client has used it by then. All shared caches renew on a single daemon thread, callers wanting to control how long
+ * identities are retained supply a {@link CachingSubjectFactory} of their own and close it when done.
+ */
+public class GssapiClientFactory implements SaslClientFactory {
+
+    private static final DelegateFactoryCache<SaslClientFactory> DELEGATE_FACTORIES = new DelegateFactoryCache<SaslClientFactory>(SaslClientFactory.class);
+
+    // guarded by itself
+    private static final Map<SubjectFactory, SharedFactory> SHARED_FACTORIES = new HashMap<SubjectFactory, SharedFactory>();
+
+    private static final long DEFAULT_RETENTION = TimeUnit.MINUTES.toMillis(5);
+
+    @Override
+    public String[] getMechanismNames(Map<String, ?> props) {
+        if (props != null && props.containsKey(SUBJECT_FACTORY) && findFactoryForGssapi(props) != null) {
+            return new String[] { GSSAPI };
+        } else {
+            return new String[] {};
+        }
+    }
+
+    @Override
+    public SaslClient createSaslClient(final String[] mechanisms, final String authorizationId, final String protocol,
+            final String serverName, final Map<String, ?> props, final CallbackHandler cbh) throws SaslException {
+        if (isIncluded(mechanisms) == false || props == null) {
+            return null;
+        }
+        SubjectFactory factory = (SubjectFactory) props.get(SUBJECT_FACTORY);
+        if (factory != null) {
+            final SaslClientFactory saslFactory = findFactoryForGssapi(props);
+            if (saslFactory != null) {
+                final boolean wrapAsSubject = props.containsKey(WRAP_AS_SUBJECT) && Boolean.parseBoolean(String.valueOf(props.get(WRAP_AS_SUBJECT)));
+                final SubjectIdentity identity = getSubjectIdentity(factory, protocol, serverName);
+                if (identity != null)
+                    try {
+                        return Subject.doAs(identity.getSubject(), new PrivilegedExceptionAction<SaslClient>() {
+
+                            @Override
+                            public SaslClient run() throws SaslException {
+                                SaslClient realClient = saslFactory.createSaslClient(new String[] { GSSAPI }, authorizationId,
+                                        protocol, serverName, props, cbh);
+                                if (realClient == null) {
+                                    identity.dispose();
+                                    return null;
+                                }
+                                return new GssapiClient(identity, realClient, wrapAsSubject);
+                            }
+                        });
+                    } catch (PrivilegedActionException e) {
+                        identity.dispose();
+                        throw (SaslException) e.getException();
+                    }
+
+            }
+        }
+
+        return null;
+    }
+
+    private static SubjectIdentity getSubjectIdentity(final SubjectFactory factory, final String protocol,
+            final String serverName) {
+        if (factory instanceof CachingSubjectFactory) {
+            return factory.getSubjectIdentity(protocol, serverName);
+        }
+        final SharedFactory shared = SharedFactory.acquire(factory);
+        SubjectIdentity identity = null;
+        try {
+            identity = shared.caching.getSubjectIdentity(protocol, serverName);
+        } finally {
+            if (identity == null) {
+                shared.release();
+            }
+        }
+        return identity == null ? null : new SharedIdentity(shared, identity);
+    }
+
+    private static boolean isIncluded(final String[] mechanisms) {
+        for (String current : mechanisms) {
+            if (GSSAPI.equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private SaslClientFactory findFactoryForGssapi(Map<String, ?> props) {
+        Object delegate = props.get(DELEGATE_FACTORY);
+        if (delegate != null) {
+            return delegate instanceof SaslClientFactory && supportsGssapi((SaslClientFactory) delegate, props) ? (SaslClientFactory) delegate : null;
+        }
+
+        for (SaslClientFactory current : DELEGATE_FACTORIES.getFactories()) {
+            if (supportsGssapi(current, props)) {
+                return current;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean supportsGssapi(final SaslClientFactory factory, final Map<String, ?> props) {
+        for (String mech : factory.getMechanismNames(props)) {
+            if (GSSAPI.equals(mech)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The single daemon thread renewing the identities of every shared cache, created on first use.
+     */
+    private static final class RenewalExecutor {
+
+        static final ScheduledThreadPoolExecutor INSTANCE = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GssapiClientFactory renewal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * A {@link CachingSubjectFactory} shared by the clients using the same {@link SubjectFactory}, counting the clients
+     * still holding one of its identities and retained for the lifetime of its tickets once there are none.
+     */
+    private static final class SharedFactory {
+
+        private final SubjectFactory factory;
+        private final CachingSubjectFactory caching;
+        // guarded by SHARED_FACTORIES
+        private int references;
+        // guarded by SHARED_FACTORIES
+        private ScheduledFuture<?> expiry;
+
+        private SharedFactory(final SubjectFactory factory) {
+            this.factory = factory;
+            caching = new CachingSubjectFactory(factory, RenewalExecutor.INSTANCE);
+        }
+
+        static SharedFactory acquire(final SubjectFactory factory) {
+            synchronized (SHARED_FACTORIES) {
+                SharedFactory shared = SHARED_FACTORIES.get(factory);
+                if (shared == null) {
+                    shared = new SharedFactory(factory);
+                    SHARED_FACTORIES.put(factory, shared);
+                }
+                if (shared.expiry != null) {
+                    shared.expiry.cancel(false);
+                    shared.expiry = null;
+                }
+                shared.references++;
+                return shared;
+            }
+        }
+
+        void release() {
+            final long expiryTime = caching.expiryTime();
+            final long delay = expiryTime < 0 ? DEFAULT_RETENTION : expiryTime - System.currentTimeMillis();
+            synchronized (SHARED_FACTORIES) {
+                if (--references > 0) {
+                    return;
+                }
+                if (delay > 0) {
+                    expiry = RenewalExecutor.INSTANCE.schedule(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            expire();
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                SHARED_FACTORIES.remove(factory);
+            }
+            close();
+        }
+
+        /**
+         * Close the cache unless a client has acquired it since it was scheduled to expire.
+         */
+        void expire() {
+            synchronized (SHARED_FACTORIES) {
+                if (references > 0 || SHARED_FACTORIES.get(factory) != this) {
+                    return;
+                }
+                SHARED_FACTORIES.remove(factory);
+                expiry = null;
+            }
+            close();
+        }
+
+        private void close() {
+            caching.close();
+            // drop the cancelled renewals rather than leave them queued until they were due
+            RenewalExecutor.INSTANCE.purge();
+        }
+    }
+
+    /**
+     * The identity of a single client, releasing its reference to the shared cache when disposed.
+     */
+    private static final class SharedIdentity implements SubjectIdentity {
+
+        private final SharedFactory shared;
+        private final SubjectIdentity identity;
+        private final AtomicBoolean disposed = new AtomicBoolean();
+
+        private SharedIdentity(final SharedFactory shared, final SubjectIdentity identity) {
+            this.shared = shared;
+            this.identity = identity;
+        }
+
+        @Override
+        public Subject getSubject() {
+            return identity.getSubject();
+        }
+
+        @Override
+        public void dispose() {
+            if (disposed.compareAndSet(false, true)) {
+                try {
+                    identity.dispose();
+                } finally {
+                    shared.release();
+                }
+            }
+        }
+    }
+
+}
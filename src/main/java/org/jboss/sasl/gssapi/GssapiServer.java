@@ -29,19 +29,33 @@ import javax.security.auth.Subject;
 import javax.security.sasl.SaslException;
 import javax.security.sasl.SaslServer;
 
+import org.jboss.sasl.util.AdmissionController;
+import org.jboss.sasl.util.AsyncSaslServer;
+import org.jboss.sasl.util.SaslEvaluationListener;
+
 /**
  * A simple {@link SaslServer} to wrap calls to a realm GSSAPI sasl server.
+ * <p/>
+ * Only the calls establishing the context need the credentials of the {@link Subject}, once established {@code wrap} and
+ * {@code unwrap} are passed straight to the wrapped server unless configured otherwise.
  *
  * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
  */
-public class GssapiServer implements SaslServer {
+public class GssapiServer implements AsyncSaslServer {
 
     private SubjectIdentity identity;
     private final SaslServer wrapped;
+    private final boolean wrapAsSubject;
+    private final AdmissionController admissionController;
+    private boolean admitted;
+    private AdmissionController.Permit admission;
 
-    GssapiServer(final SubjectIdentity identity, final SaslServer toWrap) {
+    GssapiServer(final SubjectIdentity identity, final SaslServer toWrap, final boolean wrapAsSubject,
+            final AdmissionController admissionController) {
         this.identity = identity;
         this.wrapped = toWrap;
+        this.wrapAsSubject = wrapAsSubject;
+        this.admissionController = admissionController;
     }
 
     @Override
@@ -51,20 +65,54 @@ public class GssapiServer implements SaslServer {
 
     @Override
     public byte[] evaluateResponse(final byte[] response) throws SaslException {
+        if (admissionController != null && admitted == false) {
+            admitted = true;
+            admission = admissionController.admit(getMechanismName());
+        }
         Subject subject = identity.getSubject();
+        boolean ok = false;
         try {
-            return Subject.doAs(subject, new PrivilegedExceptionAction<byte[]>() {
+            final byte[] challenge = Subject.doAs(subject, new PrivilegedExceptionAction<byte[]>() {
 
                 @Override
                 public byte[] run() throws SaslException {
                     return wrapped.evaluateResponse(response);
                 }
             });
+            ok = true;
+            return challenge;
         } catch (PrivilegedActionException e) {
             throw (SaslException) e.getException();
+        } finally {
+            if (ok == false || wrapped.isComplete()) {
+                releaseAdmission();
+            }
         }
     }
 
+    private void releaseAdmission() {
+        final AdmissionController.Permit admission = this.admission;
+        if (admission != null) {
+            this.admission = null;
+            admission.release();
+        }
+    }
+
+    /**
+     * The wrapped mechanism invokes the callback handler itself, the evaluation always completes before returning.
+     */
+    @Override
+    public void evaluateResponse(final byte[] response, final SaslEvaluationListener listener) {
+        final byte[] challenge;
+        try {
+            challenge = evaluateResponse(response);
+        } catch (SaslException e) {
+            listener.failed(e);
+            return;
+        }
+        listener.evaluated(challenge);
+    }
+
     @Override
     public boolean isComplete() {
         return wrapped.isComplete();
@@ -77,6 +125,9 @@ public class GssapiServer implements SaslServer {
 
     @Override
     public byte[] unwrap(final byte[] incoming, final int offset, final int len) throws SaslException {
+        if (wrapAsSubject == false) {
+            return wrapped.unwrap(incoming, offset, len);
+        }
         Subject subject = identity.getSubject();
         try {
             return Subject.doAs(subject, new PrivilegedExceptionAction<byte[]>() {
@@ -93,6 +144,9 @@ public class GssapiServer implements SaslServer {
 
     @Override
     public byte[] wrap(final byte[] outgoing, final int offset, final int len) throws SaslException {
+        if (wrapAsSubject == false) {
+            return wrapped.wrap(outgoing, offset, len);
+        }
         Subject subject = identity.getSubject();
         try {
             return Subject.doAs(subject, new PrivilegedExceptionAction<byte[]>() {
@@ -114,6 +168,7 @@ public class GssapiServer implements SaslServer {
 
     @Override
     public void dispose() throws SaslException {
+        releaseAdmission();
         Subject subject = getSubject();
         try {
             Subject.doAs(subject, new PrivilegedExceptionAction<Void>() {
@@ -24,8 +24,6 @@ package org.jboss.sasl.gssapi;
 
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
-import java.security.Provider;
-import java.security.Security;
 import java.util.Map;
 
 import javax.security.auth.Subject;
@@ -34,7 +32,7 @@ import javax.security.sasl.SaslException;
 import javax.security.sasl.SaslServer;
 import javax.security.sasl.SaslServerFactory;
 
-import org.jboss.sasl.JBossSaslProvider;
+import org.jboss.sasl.util.AdmissionController;
 
 /**
  * A {@link SaslServerFactory} to locate the default GSSAPI mechanism and wrap it in our own version to ensure our identity is
@@ -46,8 +44,18 @@ public class GssapiServerFactory implements SaslServerFactory {
 
     public static final String GSSAPI = "GSSAPI";
     static final String SUBJECT_FACTORY = "org.jboss.sasl.gssapi.subject_factory";
-
-    private static final String GSSAPI_KEY = SaslServerFactory.class.getSimpleName() + "." + GSSAPI;
+    /**
+     * Property to supply the {@link SaslServerFactory} (or {@link javax.security.sasl.SaslClientFactory} for a client) to
+     * delegate to, if set the installed providers are not searched.
+     */
+    public static final String DELEGATE_FACTORY = "org.jboss.sasl.gssapi.delegate_factory";
+    /**
+     * Property to request that {@code wrap} and {@code unwrap} are also called within {@link Subject#doAs}, by default only
+     * the calls that establish the context are made as the {@link Subject}.
+     */
+    public static final String WRAP_AS_SUBJECT = "org.jboss.sasl.gssapi.wrap_as_subject";
+
+    private static final DelegateFactoryCache<SaslServerFactory> DELEGATE_FACTORIES = new DelegateFactoryCache<SaslServerFactory>(SaslServerFactory.class);
 
     @Override
     public String[] getMechanismNames(Map<String, ?> props) {
@@ -65,6 +73,7 @@ public class GssapiServerFactory implements SaslServerFactory {
         if (factory != null) {
             final SaslServerFactory saslFactory = findFactoryForGssapi(props);
             if (saslFactory != null) {
+                final boolean wrapAsSubject = props.containsKey(WRAP_AS_SUBJECT) && Boolean.parseBoolean(String.valueOf(props.get(WRAP_AS_SUBJECT)));
                 final SubjectIdentity identity = factory.getSubjectIdentity(protocol, serverName);
                 if (identity != null)
                     try {
@@ -73,7 +82,8 @@ public class GssapiServerFactory implements SaslServerFactory {
                             @Override
                             public SaslServer run() throws SaslException {
                                 SaslServer realServer = saslFactory.createSaslServer(mechanism, protocol, serverName, props, cbh);
-                                return new GssapiServer(identity, realServer);
+                                return new GssapiServer(identity, realServer, wrapAsSubject,
+                                        (AdmissionController) props.get(AdmissionController.ADMISSION_CONTROLLER));
                             }
                         });
                     } catch (PrivilegedActionException e) {
@@ -88,31 +98,27 @@ public class GssapiServerFactory implements SaslServerFactory {
     }
 
     private SaslServerFactory findFactoryForGssapi(Map<String, ?> props) {
-        Provider[] providers = Security.getProviders();
-
-        for (Provider current : providers) {
-            // Looking for the first provider that is not our provider.
-            if (current instanceof JBossSaslProvider == false) {
-                String gssapiFactory = current.getProperty(GSSAPI_KEY);
+        Object delegate = props.get(DELEGATE_FACTORY);
+        if (delegate != null) {
+            return delegate instanceof SaslServerFactory && supportsGssapi((SaslServerFactory) delegate, props) ? (SaslServerFactory) delegate : null;
+        }
 
-                if (gssapiFactory != null) {
-                    try {
-                        SaslServerFactory theFactory = Class.forName(gssapiFactory, true, current.getClass().getClassLoader())
-                                .asSubclass(SaslServerFactory.class).newInstance();
-                        for (String mech : theFactory.getMechanismNames(props)) {
-                            if (GSSAPI.equals(mech)) {
-                                return theFactory;
-                            }
-                        }
-                    } catch (InstantiationException e) {
-                    } catch (IllegalAccessException e) {
-                    } catch (ClassNotFoundException e) {
-                    }
-                }
+        for (SaslServerFactory current : DELEGATE_FACTORIES.getFactories()) {
+            if (supportsGssapi(current, props)) {
+                return current;
             }
         }
 
         return null;
     }
 
+    private static boolean supportsGssapi(final SaslServerFactory factory, final Map<String, ?> props) {
+        for (String mech : factory.getMechanismNames(props)) {
+            if (GSSAPI.equals(mech)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 }
@@ -23,6 +23,7 @@
 /**
  * Package to contain a GSSAPI mechanism, in this case the mechanism is simply
  * delegating to the locally available GSSAPI mechanism but wrapping the calls with an identity.
+ * Both the server and client side are wrapped.
  *
  * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
  */
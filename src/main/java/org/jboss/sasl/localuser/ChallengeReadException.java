@@ -0,0 +1,102 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.localuser;
+
+import javax.security.sasl.SaslException;
+
+/**
+ * Thrown by {@link LocalUserClient} when the challenge sent by the server can not be read.
+ */
+public class ChallengeReadException extends SaslException {
+
+    private static final long serialVersionUID = -2186470529012378411L;
+
+    /**
+     * Why the challenge could not be read.
+     */
+    public enum Reason {
+        /**
+         * The file does not exist, usually the server has already deleted or expired the challenge or the client is not
+         * on the same host.
+         */
+        MISSING,
+        /**
+         * The file exists but may not be read by the client, usually the client runs as a different user to the server.
+         */
+        PERMISSION_DENIED,
+        /**
+         * The file ends before the challenge.
+         */
+        SHORT,
+        /**
+         * The server named a file or offset that can not hold a challenge, the file was not read.
+         */
+        REFUSED,
+        /**
+         * Reading the file failed for another reason.
+         */
+        IO_ERROR
+    }
+
+    private final Reason reason;
+    private final String path;
+
+    public ChallengeReadException(final Reason reason, final String path, final Throwable cause) {
+        super(message(reason, path), cause);
+        this.reason = reason;
+        this.path = path;
+    }
+
+    private static String message(final Reason reason, final String path) {
+        switch (reason) {
+            case MISSING:
+                return "Server challenge file " + path + " does not exist";
+            case PERMISSION_DENIED:
+                return "Permission denied reading server challenge file " + path;
+            case SHORT:
+                return "Server challenge file " + path + " is too short";
+            case REFUSED:
+                return "Refused to read server challenge file " + path;
+            default:
+                return "Failed to read server challenge file " + path;
+        }
+    }
+
+    /**
+     * Get the reason the challenge could not be read.
+     *
+     * @return the reason
+     */
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Get the path of the challenge file.
+     *
+     * @return the path
+     */
+    public String getPath() {
+        return path;
+    }
+}
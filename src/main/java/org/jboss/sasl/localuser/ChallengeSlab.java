@@ -0,0 +1,250 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.localuser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single pre-created file, readable by the owner only, holding fixed size challenge slots.
+ * <p/>
+ * The file is memory mapped by the server and a slot is allocated per handshake from a lock-free free-list, this avoids
+ * creating, writing and deleting a file in the challenge directory for every handshake. The client is sent the path of the
+ * file together with the offset of its slot.
+ * <p/>
+ * While the slab is in use the server holds a lock on the byte just past its slots, so that another process sweeping the
+ * directory can tell a slab left behind by a JVM that did not exit cleanly from a live one.
+ */
+final class ChallengeSlab {
+
+    /**
+     * The tag of the empty initial message extension by which a client says it understands the path NUL offset reply.
+     */
+    static final byte EXTENSION = 'S';
+
+    /**
+     * The size of each slot, one challenge.
+     */
+    static final int SLOT_SIZE = 8;
+
+    private static final ConcurrentMap<File, ChallengeSlab> SLABS = new ConcurrentHashMap<File, ChallengeSlab>();
+
+    private final File file;
+    private final String path;
+    /**
+     * Kept open for the life of the slab, closing it would release the lock.
+     */
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    /**
+     * The next free slot after each slot, plus one so that zero marks the end of the list.
+     */
+    private final AtomicIntegerArray next;
+    /**
+     * The head of the free-list, the low 32 bits hold the slot index plus one and the high 32 bits a counter incremented on
+     * each update to avoid ABA problems.
+     */
+    private final AtomicLong head;
+
+    private ChallengeSlab(final File file, final RandomAccessFile raf, final MappedByteBuffer buffer, final int slots) {
+        this.file = file;
+        this.path = file.getAbsolutePath();
+        this.raf = raf;
+        this.buffer = buffer;
+        this.slots = slots;
+        next = new AtomicIntegerArray(slots);
+        for (int i = 0; i < slots - 1; i++) {
+            next.set(i, i + 2);
+        }
+        head = new AtomicLong(1);
+    }
+
+    /**
+     * Get the slab for the challenge directory, creating it if this is the first use.
+     *
+     * @param basePath the challenge directory
+     * @param slots the number of slots to create the slab with
+     * @return the slab
+     * @throws IOException if the slab file can not be created
+     */
+    static ChallengeSlab getInstance(final File basePath, final int slots) throws IOException {
+        ChallengeSlab slab = SLABS.get(basePath);
+        if (slab == null) {
+            synchronized (SLABS) {
+                slab = SLABS.get(basePath);
+                if (slab == null) {
+                    slab = create(basePath, slots);
+                    SLABS.put(basePath, slab);
+                }
+            }
+        }
+        return slab;
+    }
+
+    private static ChallengeSlab create(final File basePath, final int slots) throws IOException {
+        final File file = File.createTempFile("local", ".slab", basePath);
+        file.deleteOnExit();
+        // Restrict to the owner before anything is written.
+        if (! (file.setReadable(false, false) && file.setReadable(true, true) && file.setWritable(false, false) && file.setWritable(true, true))) {
+            file.delete();
+            throw new IOException("Unable to restrict permissions of challenge slab " + file);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean ok = false;
+        try {
+            final long length = (long) slots * SLOT_SIZE;
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            // Held until the JVM exits, outside the slots so that clients are never blocked from reading.
+            if (channel.tryLock(length, 1, false) == null) {
+                throw new IOException("Unable to lock challenge slab " + file);
+            }
+            ok = true;
+            return new ChallengeSlab(file, raf, buffer, slots);
+        } finally {
+            if (! ok) {
+                raf.close();
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Determine whether a slab file was left behind by a process that no longer holds its lock.
+     *
+     * @param file the slab file
+     * @return {@code true} if no process is using the slab
+     */
+    static boolean isAbandoned(final File file) {
+        for (ChallengeSlab slab : SLABS.values()) {
+            if (slab.file.equals(file)) {
+                return false;
+            }
+        }
+        final RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            // not ours to remove
+            return false;
+        }
+        try {
+            final FileLock lock = raf.getChannel().tryLock(raf.length(), 1, false);
+            if (lock == null) {
+                return false;
+            }
+            lock.release();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (OverlappingFileLockException e) {
+            // locked by this JVM
+            return false;
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Allocate a slot.
+     *
+     * @return the slot, or {@code -1} if all slots are in use
+     */
+    int allocate() {
+        long h;
+        int slot;
+        do {
+            h = head.get();
+            slot = (int) h - 1;
+            if (slot < 0) {
+                return -1;
+            }
+        } while (! head.compareAndSet(h, ((h >>> 32) + 1) << 32 | (next.get(slot) & 0xFFFFFFFFL)));
+        return slot;
+    }
+
+    /**
+     * Write a challenge to a slot.
+     *
+     * @param slot the allocated slot
+     * @param challenge the challenge of {@link #SLOT_SIZE} bytes
+     */
+    void write(final int slot, final byte[] challenge) {
+        final int offset = slot * SLOT_SIZE;
+        for (int i = 0; i < SLOT_SIZE; i++) {
+            buffer.put(offset + i, challenge[i]);
+        }
+    }
+
+    /**
+     * Clear a slot and return it to the free-list.
+     *
+     * @param slot the allocated slot
+     */
+    void release(final int slot) {
+        final int offset = slot * SLOT_SIZE;
+        for (int i = 0; i < SLOT_SIZE; i++) {
+            buffer.put(offset + i, (byte) 0);
+        }
+        long h;
+        do {
+            h = head.get();
+            next.set(slot, (int) h);
+        } while (! head.compareAndSet(h, ((h >>> 32) + 1) << 32 | (slot + 1)));
+    }
+
+    /**
+     * Get the offset within the file of a slot.
+     *
+     * @param slot the slot
+     * @return the offset
+     */
+    static long offsetOf(final int slot) {
+        return (long) slot * SLOT_SIZE;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    int getSlots() {
+        return slots;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.localuser;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.sasl.util.HexConverter;
+
+/**
+ * Challenges held in memory for clients running in the same JVM, and loaded by the same class loader, as the server.
+ * <p/>
+ * A client that wants to use this registry sends {@link #JVM_ID} as an extension of its initial message, if it matches the
+ * server registers the challenge here under an unguessable token and sends the client the token instead of a path.
+ */
+final class InJvmChallenges {
+
+    /**
+     * The tag of the initial message extension carrying the {@link #JVM_ID}.
+     */
+    static final byte EXTENSION = 'J';
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Identifies this copy of the class, any other JVM or class loader has a different value.
+     */
+    static final byte[] JVM_ID = new byte[16];
+
+    static {
+        RANDOM.nextBytes(JVM_ID);
+    }
+
+    private static final ConcurrentMap<String, byte[]> CHALLENGES = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * Check if the supplied identifier is the {@link #JVM_ID}.
+     *
+     * @param bytes the array holding the identifier
+     * @param offs the offset of the identifier
+     * @param len the length of the identifier
+     * @return {@code true} if the client runs in this JVM and class loader
+     */
+    static boolean isLocal(final byte[] bytes, final int offs, final int len) {
+        if (len != JVM_ID.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (bytes[offs + i] != JVM_ID[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Register a challenge.
+     *
+     * @param challenge the challenge
+     * @return the token to resolve the challenge
+     */
+    static String register(final byte[] challenge) {
+        final byte[] bytes = new byte[16];
+        String token;
+        do {
+            RANDOM.nextBytes(bytes);
+            token = HexConverter.convertToHexString(bytes);
+        } while (CHALLENGES.putIfAbsent(token, challenge.clone()) != null);
+        return token;
+    }
+
+    /**
+     * Resolve a challenge.
+     *
+     * @param token the token returned by {@link #register(byte[])}
+     * @return a copy of the challenge, or {@code null} if the token is unknown
+     */
+    static byte[] resolve(final String token) {
+        final byte[] challenge = CHALLENGES.get(token);
+        return challenge == null ? null : challenge.clone();
+    }
+
+    static void remove(final String token) {
+        CHALLENGES.remove(token);
+    }
+
+    private InJvmChallenges() {
+    }
+}
@@ -25,7 +25,13 @@ package org.jboss.sasl.localuser;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
 import java.util.Map;
 
 import org.jboss.sasl.util.AbstractSaslClient;
@@ -44,15 +50,71 @@ import javax.security.sasl.SaslException;
 public final class LocalUserClient extends AbstractSaslClient {
 
     public static final String QUIET_AUTH = "jboss.sasl.local-user.quiet-auth";
+    /**
+     * Offer to receive the challenge in memory rather than through the filesystem if the server runs in the same JVM, only
+     * servers that understand the extensions of the initial message may be used with this option.
+     */
+    public static final String IN_JVM = "jboss.sasl.local-user.in-jvm";
+    /**
+     * A {@code byte[]} resumption ticket previously obtained from the server's {@link LocalUserServer#RESUMPTION_TICKET}
+     * negotiated property, it is presented in the initial message and the challenge is only used if the server rejects it.
+     * A ticket longer than 65535 bytes can not be presented and is ignored.
+     */
+    public static final String RESUMPTION_TICKET = "jboss.sasl.local-user.resumption-ticket";
+    /**
+     * The directory the server writes its challenge slab to, defaults to {@code java.io.tmpdir}. A slot of the slab is only
+     * read if the server names a {@code local*.slab} file directly within this directory.
+     */
+    public static final String LOCAL_USER_CHALLENGE_PATH = LocalUserServer.LOCAL_USER_CHALLENGE_PATH;
+    /**
+     * Tell the server the client can read the challenge from a slot of its challenge slab, only servers that understand the
+     * extensions of the initial message may be used with this option.
+     */
+    public static final String LOCAL_USER_CHALLENGE_SLAB = LocalUserServer.LOCAL_USER_CHALLENGE_SLAB;
 
     private final boolean quietAuth;
+    private final boolean inJvm;
+    private final boolean slab;
+    private final byte[] ticket;
+    private final File basePath;
 
     private static final byte UTF8NUL = 0x00;
 
+    private static final ThreadLocal<ByteBuffer> CHALLENGE_BUFFER = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(8);
+        }
+    };
+
     LocalUserClient(final String protocol, final String serverName, final Map<String, ?> props, final CallbackHandler callbackHandler, final String authorizationId) {
         super(LocalUserSaslFactory.JBOSS_LOCAL_USER, protocol, serverName, callbackHandler, authorizationId, true);
 
         quietAuth = props.containsKey(QUIET_AUTH) ? Boolean.parseBoolean((String) props.get(QUIET_AUTH)) : false;
+        inJvm = props.containsKey(IN_JVM) ? Boolean.parseBoolean(String.valueOf(props.get(IN_JVM))) : false;
+        slab = props.containsKey(LOCAL_USER_CHALLENGE_SLAB) ? Boolean.parseBoolean(String.valueOf(props.get(LOCAL_USER_CHALLENGE_SLAB))) : false;
+        final byte[] ticket = (byte[]) props.get(RESUMPTION_TICKET);
+        this.ticket = ticket != null && ticket.length <= ResumptionTickets.MAX_LENGTH ? ticket : null;
+        final String value;
+        if (props.containsKey(LOCAL_USER_CHALLENGE_PATH)) {
+            basePath = new File(props.get(LOCAL_USER_CHALLENGE_PATH).toString()).getAbsoluteFile();
+        } else if ((value = getProperty(LOCAL_USER_CHALLENGE_PATH)) != null) {
+            basePath = new File(value).getAbsoluteFile();
+        } else {
+            basePath = new File(getProperty("java.io.tmpdir"));
+        }
+    }
+
+    private static String getProperty(final String name) {
+        final SecurityManager sm = System.getSecurityManager();
+        if (sm != null) {
+            return AccessController.doPrivileged(new PrivilegedAction<String>() {
+                public String run() {
+                    return System.getProperty(name);
+                }
+            });
+        } else {
+            return System.getProperty(name);
+        }
     }
 
     public void init() {
@@ -60,34 +122,63 @@ public final class LocalUserClient extends AbstractSaslClient {
             public byte[] evaluateMessage(final SaslStateContext context, final byte[] message) throws SaslException {
                 final String authorizationId = getAuthorizationId();
                 final byte[] bytes;
-                if (authorizationId != null) {
-                    bytes = new byte[Charsets.encodedLengthOf(authorizationId)];
-                    Charsets.encodeTo(authorizationId, bytes, 0);
+                if (inJvm || slab || ticket != null) {
+                    // authzid NUL *(tag length value), encoded once into a buffer large enough for any encoding and trimmed
+                    final int authorizationIdLength = authorizationId != null ? Charsets.maxEncodedLengthOf(authorizationId.length()) : 0;
+                    final byte[] jvmId = inJvm ? InJvmChallenges.JVM_ID : NO_BYTES;
+                    final int jvmIdLength = inJvm ? 3 + jvmId.length : 0;
+                    final int slabLength = slab ? 3 : 0;
+                    final int ticketLength = ticket != null ? 3 + ticket.length : 0;
+                    final ByteBuffer buffer = ByteBuffer.allocate(authorizationIdLength + 1 + jvmIdLength + slabLength + ticketLength);
+                    if (authorizationId != null) {
+                        Charsets.encodeTo(authorizationId, buffer);
+                    }
+                    buffer.put(UTF8NUL);
+                    if (inJvm) {
+                        putExtension(buffer, InJvmChallenges.EXTENSION, jvmId);
+                    }
+                    if (slab) {
+                        putExtension(buffer, ChallengeSlab.EXTENSION, NO_BYTES);
+                    }
+                    if (ticket != null) {
+                        putExtension(buffer, ResumptionTickets.EXTENSION, ticket);
+                    }
+                    bytes = Arrays.copyOf(buffer.array(), buffer.position());
+                } else if (authorizationId != null) {
+                    bytes = Charsets.encode(authorizationId);
                 } else {
                     bytes = new byte[] { UTF8NUL };
                 }
                 context.setNegotiationState(new SaslState() {
                     public byte[] evaluateMessage(final SaslStateContext context, final byte[] message) throws SaslException {
-                        final String path = new String(message, Charsets.UTF_8);
-                        final File file = new File(path);
-                        final byte[] challenge = new byte[8];
-                        int t = 0;
-                        try {
-                            final FileInputStream stream = new FileInputStream(file);
+                        if (message.length == 0 && ticket != null) {
+                            // the server accepted our ticket
+                            context.negotiationComplete();
+                            return null;
+                        }
+                        final byte[] challenge;
+                        final int marker = Charsets.indexOf(message, UTF8NUL);
+                        if (marker == 0) {
+                            // NUL token of a challenge held in memory by a server in this JVM
+                            challenge = InJvmChallenges.resolve(Charsets.decode(message, 1, message.length - 1));
+                            if (challenge == null) {
+                                throw new SaslException("Unknown in-JVM server challenge");
+                            }
+                        } else if (marker > 0) {
+                            // path NUL offset of a slot in the server's challenge slab
+                            final String path = Charsets.decode(message, 0, marker);
+                            final long offset;
                             try {
-                                while (t < 8) {
-                                    int r = stream.read(challenge, t, 8-t);
-                                    if (r < 0) {
-                                        throw new SaslException("Invalid server challenge");
-                                    } else {
-                                        t += r;
-                                    }
-                                }
-                            } finally {
-                                safeClose(stream);
+                                offset = Long.parseLong(Charsets.decode(message, marker + 1, message.length - marker - 1));
+                            } catch (NumberFormatException e) {
+                                throw new SaslException("Invalid server challenge", e);
                             }
-                        } catch (IOException e) {
-                            throw new SaslException("Failed to read server challenge", e);
+                            if (slab == false || isSlabSlot(path, offset) == false) {
+                                throw new ChallengeReadException(ChallengeReadException.Reason.REFUSED, path, null);
+                            }
+                            challenge = readChallenge(path, offset);
+                        } else {
+                            challenge = readChallenge(Charsets.decode(message, 0, message.length), 0);
                         }
                         String authenticationId = getAuthorizationId();
                         String authenticationRealm = null;
@@ -101,14 +192,15 @@ public final class LocalUserClient extends AbstractSaslClient {
                         }
                         if (authenticationId == null) authenticationId = "";
                         if (authenticationRealm == null) authenticationRealm = "";
-                        final int authenticationIdLength = Charsets.encodedLengthOf(authenticationId);
-                        final int authenticationRealmLength = Charsets.encodedLengthOf(authenticationRealm);
-                        final byte[] response = new byte[8 + 1 + authenticationIdLength + authenticationRealmLength];
-                        System.arraycopy(challenge, 0, response, 0, 8);
-                        Charsets.encodeTo(authenticationId, response, 8);
-                        Charsets.encodeTo(authenticationRealm, response, 8 + 1 + authenticationIdLength);
+                        // challenge authcid NUL realm, encoded once into a buffer large enough for any encoding and trimmed
+                        final ByteBuffer response = ByteBuffer.allocate(8 + Charsets.maxEncodedLengthOf(authenticationId.length()) + 1
+                                + Charsets.maxEncodedLengthOf(authenticationRealm.length()));
+                        response.put(challenge, 0, 8);
+                        Charsets.encodeTo(authenticationId, response);
+                        response.put(UTF8NUL);
+                        Charsets.encodeTo(authenticationRealm, response);
                         context.negotiationComplete();
-                        return response;
+                        return Arrays.copyOf(response.array(), response.position());
                     }
                 });
                 return bytes;
@@ -116,6 +208,87 @@ public final class LocalUserClient extends AbstractSaslClient {
         });
     }
 
+    private static void putExtension(final ByteBuffer buffer, final byte tag, final byte[] value) {
+        buffer.put(tag);
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+    }
+
+    /**
+     * Check the server named a slot of a challenge slab, otherwise a server could have us return any bytes of any file we
+     * can read.
+     *
+     * @param path the path of the slab
+     * @param offset the offset of the slot
+     * @return {@code true} if the path is a {@code local*.slab} file in the challenge directory and the offset is the start
+     *         of a slot
+     */
+    private boolean isSlabSlot(final String path, final long offset) {
+        if (offset < 0 || offset % ChallengeSlab.SLOT_SIZE != 0) {
+            return false;
+        }
+        final File file;
+        final File directory;
+        try {
+            file = new File(path).getCanonicalFile();
+            directory = basePath.getCanonicalFile();
+        } catch (IOException e) {
+            return false;
+        }
+        final String name = file.getName();
+        return name.startsWith("local") && name.endsWith(".slab") && directory.equals(file.getParentFile());
+    }
+
+    /**
+     * Read the challenge with a positioned read, the file is left open for as short a time as possible.
+     *
+     * @param path the path of the file
+     * @param offset the offset of the challenge within the file, a multiple of the slot size
+     * @return the challenge
+     * @throws ChallengeReadException if the challenge can not be read
+     */
+    private static byte[] readChallenge(final String path, final long offset) throws ChallengeReadException {
+        final ByteBuffer buffer = CHALLENGE_BUFFER.get();
+        buffer.clear();
+        final FileInputStream stream;
+        try {
+            stream = new FileInputStream(path);
+        } catch (FileNotFoundException e) {
+            // FileNotFoundException covers every failure to open, look at the file to find out which
+            final File file = new File(path);
+            if (file.exists() == false) {
+                throw new ChallengeReadException(ChallengeReadException.Reason.MISSING, path, e);
+            } else if (file.canRead() == false) {
+                throw new ChallengeReadException(ChallengeReadException.Reason.PERMISSION_DENIED, path, e);
+            }
+            throw new ChallengeReadException(ChallengeReadException.Reason.IO_ERROR, path, e);
+        }
+        boolean eof = false;
+        try {
+            final FileChannel channel = stream.getChannel();
+            // only ever read a whole slot that lies within the file
+            if (offset < 0 || offset % ChallengeSlab.SLOT_SIZE != 0 || offset > channel.size() - ChallengeSlab.SLOT_SIZE) {
+                throw new ChallengeReadException(offset == 0 ? ChallengeReadException.Reason.SHORT : ChallengeReadException.Reason.REFUSED, path, null);
+            }
+            while (buffer.hasRemaining() && eof == false) {
+                eof = channel.read(buffer, offset + buffer.position()) < 0;
+            }
+        } catch (ChallengeReadException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ChallengeReadException(ChallengeReadException.Reason.IO_ERROR, path, e);
+        } finally {
+            safeClose(stream);
+        }
+        if (eof) {
+            throw new ChallengeReadException(ChallengeReadException.Reason.SHORT, path, null);
+        }
+        final byte[] challenge = new byte[8];
+        buffer.flip();
+        buffer.get(challenge);
+        return challenge;
+    }
+
     private static void safeClose(Closeable c) {
         if (c != null) try {
             c.close();
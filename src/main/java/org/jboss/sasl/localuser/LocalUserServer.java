@@ -27,11 +27,17 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.AccessController;
+import java.security.GeneralSecurityException;
 import java.security.PrivilegedAction;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
@@ -40,8 +46,10 @@ import javax.security.sasl.RealmCallback;
 import javax.security.sasl.SaslException;
 import javax.security.sasl.SaslServer;
 
+import org.jboss.sasl.callback.AuthorizationCache;
 import org.jboss.sasl.util.AbstractSaslServer;
 import org.jboss.sasl.util.Charsets;
+import org.jboss.sasl.util.HashedWheelTimer;
 import org.jboss.sasl.util.SaslState;
 import org.jboss.sasl.util.SaslStateContext;
 
@@ -55,14 +63,54 @@ public final class LocalUserServer extends AbstractSaslServer implements SaslSer
     public static final String LOCAL_USER_USE_SECURE_RANDOM = "jboss.sasl.local-user.use-secure-random";
     public static final String LOCAL_USER_CHALLENGE_PATH = "jboss.sasl.local-user.challenge-path";
     public static final String DEFAULT_USER = "jboss.sasl.local-user.default-user";
+    /**
+     * Should challenges be written to slots of a single shared memory mapped file? Default to false.
+     * <p/>
+     * A slot is only used if the client sends the slab extension in its initial message, which it does when its own
+     * {@link LocalUserClient#LOCAL_USER_CHALLENGE_SLAB} is set, older clients can not parse the path NUL offset reply and are
+     * always sent a challenge file of their own.
+     */
+    public static final String LOCAL_USER_CHALLENGE_SLAB = "jboss.sasl.local-user.challenge-slab";
+    public static final String LOCAL_USER_CHALLENGE_SLAB_SIZE = "jboss.sasl.local-user.challenge-slab-size";
+    // Milliseconds the client has to answer the challenge, 0 to wait until disposed and never sweep stale files. Default to 60000
+    // Challenge files older than a day are swept by any server using the directory, so they must be answered within a day.
+    public static final String LOCAL_USER_CHALLENGE_TIMEOUT = "jboss.sasl.local-user.challenge-timeout";
+    // Should a resumption ticket be issued on completion and accepted in the initial message? Default to false
+    public static final String LOCAL_USER_ISSUE_TICKETS = "jboss.sasl.local-user.issue-tickets";
+    // Milliseconds a resumption ticket remains valid. Default to 300000
+    public static final String LOCAL_USER_TICKET_LIFETIME = "jboss.sasl.local-user.ticket-lifetime";
+    /**
+     * The negotiated property holding the {@code byte[]} resumption ticket issued on completion, the client presents it using
+     * {@link LocalUserClient#RESUMPTION_TICKET}.
+     */
+    public static final String RESUMPTION_TICKET = "jboss.sasl.local-user.resumption-ticket";
 
     private static final byte UTF8NUL = 0x00;
+    private static final int DEFAULT_SLAB_SIZE = 1024;
+    private static final long DEFAULT_CHALLENGE_TIMEOUT = 60000;
+    private static final long DEFAULT_TICKET_LIFETIME = 300000;
+    // The age after which a challenge file left in the directory is removed, well above any timeout in use.
+    private static final long STALE_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private static final HashedWheelTimer REAPER = new HashedWheelTimer("JBOSS-LOCAL-USER challenge reaper", 100, TimeUnit.MILLISECONDS, 512);
+    private static final Set<File> SWEPT = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
 
     private volatile String authorizationId;
     private volatile File challengeFile;
+    private volatile String challengeToken;
+    private final AtomicInteger challengeSlot = new AtomicInteger(-1);
+    private volatile ChallengeSlab slab;
     private final File basePath;
     private final String defaultUser;
     private final boolean useSecureRandom;
+    private final boolean useSlab;
+    private final int slabSize;
+    private final long challengeTimeout;
+    private volatile HashedWheelTimer.Timeout expiry;
+    private final boolean issueTickets;
+    private final long ticketLifetime;
+    private final AuthorizationCache authorizationCache;
+    private volatile byte[] ticket;
 
     LocalUserServer(final String protocol, final String serverName, final Map<String, ?> props, final CallbackHandler callbackHandler) {
         super(LocalUserSaslFactory.JBOSS_LOCAL_USER, protocol, serverName, callbackHandler);
@@ -75,26 +123,47 @@ public final class LocalUserServer extends AbstractSaslServer implements SaslSer
             basePath = new File(getProperty("java.io.tmpdir"));
         }
 
-        Object useSecureRandomObj = null;
-        if (props.containsKey(LOCAL_USER_USE_SECURE_RANDOM)) {
-            useSecureRandomObj = props.get(LOCAL_USER_USE_SECURE_RANDOM);
+        useSecureRandom = getBoolean(props, LOCAL_USER_USE_SECURE_RANDOM, true);
+        useSlab = getBoolean(props, LOCAL_USER_CHALLENGE_SLAB, false);
+        if (props.containsKey(LOCAL_USER_CHALLENGE_SLAB_SIZE)) {
+            slabSize = Integer.parseInt(props.get(LOCAL_USER_CHALLENGE_SLAB_SIZE).toString());
+        } else if ((value = getProperty(LOCAL_USER_CHALLENGE_SLAB_SIZE)) != null) {
+            slabSize = Integer.parseInt(value);
         } else {
-            useSecureRandomObj = getProperty(LOCAL_USER_USE_SECURE_RANDOM);
+            slabSize = DEFAULT_SLAB_SIZE;
         }
-
-        if (useSecureRandomObj != null) {
-            if (useSecureRandomObj instanceof Boolean) {
-                useSecureRandom = ((Boolean) useSecureRandomObj).booleanValue();
-            } else if (useSecureRandomObj instanceof String) {
-                useSecureRandom = Boolean.parseBoolean((String) useSecureRandomObj);
-            } else {
-                useSecureRandom = true;
-            }
+        if (props.containsKey(LOCAL_USER_CHALLENGE_TIMEOUT)) {
+            challengeTimeout = Long.parseLong(props.get(LOCAL_USER_CHALLENGE_TIMEOUT).toString());
+        } else if ((value = getProperty(LOCAL_USER_CHALLENGE_TIMEOUT)) != null) {
+            challengeTimeout = Long.parseLong(value);
+        } else {
+            challengeTimeout = DEFAULT_CHALLENGE_TIMEOUT;
+        }
+        issueTickets = getBoolean(props, LOCAL_USER_ISSUE_TICKETS, false);
+        if (props.containsKey(LOCAL_USER_TICKET_LIFETIME)) {
+            ticketLifetime = Long.parseLong(props.get(LOCAL_USER_TICKET_LIFETIME).toString());
+        } else if ((value = getProperty(LOCAL_USER_TICKET_LIFETIME)) != null) {
+            ticketLifetime = Long.parseLong(value);
         } else {
-            useSecureRandom = true;
+            ticketLifetime = DEFAULT_TICKET_LIFETIME;
+        }
+        // A server that waits indefinitely for its own challenges leaves the files of other processes alone as well.
+        if (challengeTimeout > 0 && SWEPT.add(basePath)) {
+            sweep(basePath);
         }
 
         defaultUser = (String) (props.containsKey(DEFAULT_USER) ? props.get(DEFAULT_USER) : null);
+        authorizationCache = (AuthorizationCache) props.get(AuthorizationCache.AUTHORIZATION_CACHE);
+    }
+
+    private static boolean getBoolean(final Map<String, ?> props, final String name, final boolean defaultValue) {
+        final Object value = props.containsKey(name) ? props.get(name) : getProperty(name);
+        if (value instanceof Boolean) {
+            return ((Boolean) value).booleanValue();
+        } else if (value instanceof String) {
+            return Boolean.parseBoolean((String) value);
+        }
+        return defaultValue;
     }
 
     private static String getProperty(final String name) {
@@ -126,51 +195,64 @@ public final class LocalUserServer extends AbstractSaslServer implements SaslSer
                     return NO_BYTES;
                 }
 
-                // initial message
-                if (message.length == 1 && message[0] == UTF8NUL) {
+                // initial message, authzid [ NUL *(tag length value) ]
+                final int marker = Charsets.indexOf(message, UTF8NUL);
+                if (marker == 0) {
                     authorizationId = null;
+                } else if (marker > 0) {
+                    authorizationId = Charsets.decode(message, 0, marker);
                 } else {
-                    authorizationId = new String(message, Charsets.UTF_8);
+                    authorizationId = Charsets.decode(message, 0, message.length);
                 }
-                final Random random = getRandom();
-                try {
-                    challengeFile = File.createTempFile("local", ".challenge", basePath);
-                } catch (IOException e) {
-                    throw new SaslException("Failed to create challenge file", e);
+                boolean inJvm = false;
+                boolean slabAccepted = false;
+                String[] resumed = null;
+                if (marker > -1) {
+                    int i = marker + 1;
+                    while (i < message.length) {
+                        if (i + 3 > message.length) {
+                            throw new SaslException("Invalid initial message");
+                        }
+                        final byte tag = message[i];
+                        final int length = (message[i + 1] & 0xff) << 8 | message[i + 2] & 0xff;
+                        i += 3;
+                        if (i + length > message.length) {
+                            throw new SaslException("Invalid initial message");
+                        }
+                        if (tag == InJvmChallenges.EXTENSION) {
+                            inJvm = InJvmChallenges.isLocal(message, i, length);
+                        } else if (tag == ChallengeSlab.EXTENSION) {
+                            slabAccepted = true;
+                        } else if (tag == ResumptionTickets.EXTENSION && issueTickets) {
+                            resumed = ResumptionTickets.open(message, i, length, getProtocol(), getServerName());
+                        }
+                        // unknown extensions are ignored
+                        i += length;
+                    }
                 }
-
-                final FileOutputStream fos;
-                try {
-                    fos = new FileOutputStream(challengeFile);
-                } catch (FileNotFoundException e) {
-                    throw new SaslException("Failed to create challenge file", e);
+                if (resumed != null && (authorizationId == null || authorizationId.equals(resumed[1]))) {
+                    // a valid ticket, the empty message tells the client it was accepted
+                    authorizationId = resumed[1];
+                    complete(context, resumed[0]);
+                    return NO_BYTES;
                 }
-                boolean ok = false;
-                final byte[] bytes;
-                try {
-                    bytes = new byte[8];
-                    random.nextBytes(bytes);
-                    try {
-                        fos.write(bytes);
-                        fos.close();
-                        ok = true;
-                    } catch (IOException e) {
-                        throw new SaslException("Failed to create challenge file", e);
-                    }
-                } finally {
-                    if (!ok) {
-                        deleteChallenge();
-                    }
-                    try {
-                        fos.close();
-                    } catch (Throwable ignored) {
-                    }
+                // otherwise fall back to the challenge
+                final byte[] bytes = new byte[8];
+                getRandom().nextBytes(bytes);
+                final byte[] response = createChallenge(bytes, inJvm, slabAccepted);
+                if (challengeTimeout > 0) {
+                    expiry = REAPER.schedule(new Runnable() {
+                        public void run() {
+                            deleteChallenge();
+                        }
+                    }, challengeTimeout, TimeUnit.MILLISECONDS);
                 }
-                final String path = challengeFile.getAbsolutePath();
-                final byte[] response = new byte[Charsets.encodedLengthOf(path)];
-                Charsets.encodeTo(path, response, 0);
                 getContext().setNegotiationState(new SaslState() {
                     public byte[] evaluateMessage(final SaslStateContext context, final byte[] message) throws SaslException {
+                        final HashedWheelTimer.Timeout expiry = LocalUserServer.this.expiry;
+                        if (expiry != null && expiry.cancel() == false) {
+                            throw new SaslException("JBOSS-LOCAL-USER challenge expired");
+                        }
                         deleteChallenge();
                         final int length = message.length;
                         if (length < 8) {
@@ -183,10 +265,10 @@ public final class LocalUserServer extends AbstractSaslServer implements SaslSer
                         String authenticationId;
                         final int firstMarker = Charsets.indexOf(message, 0, 8);
                         if (firstMarker > -1) {
-                            authenticationId = new String(message, 8, firstMarker - 8, Charsets.UTF_8);
+                            authenticationId = Charsets.decode(message, 8, firstMarker - 8);
                             final int secondMarker = Charsets.indexOf(message, 0, firstMarker + 1);
                             if (secondMarker > -1) {
-                                authenticationRealm = new String(message, firstMarker + 1, secondMarker - firstMarker - 1, Charsets.UTF_8);
+                                authenticationRealm = Charsets.decode(message, firstMarker + 1, secondMarker - firstMarker - 1);
                             } else {
                                 authenticationRealm = null;
                             }
@@ -206,16 +288,25 @@ public final class LocalUserServer extends AbstractSaslServer implements SaslSer
                         }
                         final NameCallback nameCallback = new NameCallback("User name", authenticationId);
                         final AuthorizeCallback authorizeCallback = new AuthorizeCallback(authenticationId, authorizationId);
-                        if (authenticationRealm == null) {
-                            handleCallbacks(nameCallback, authorizeCallback);
-                        } else {
-                            final RealmCallback realmCallback = new RealmCallback("User realm", authenticationRealm);
-                            handleCallbacks(realmCallback, nameCallback, authorizeCallback);
+                        final boolean cached = authorizationCache != null && authorizationCache.lookup(getMechanismName(),
+                                getProtocol(), getServerName(), authenticationRealm, authorizeCallback);
+                        if (cached == false) {
+                            final AuthorizationCache.Stamp stamp = authorizationCache == null ? null : authorizationCache.stamp();
+                            if (authenticationRealm == null) {
+                                handleCallbacks(nameCallback, authorizeCallback);
+                            } else {
+                                final RealmCallback realmCallback = new RealmCallback("User realm", authenticationRealm);
+                                handleCallbacks(realmCallback, nameCallback, authorizeCallback);
+                            }
+                            if (authorizationCache != null) {
+                                authorizationCache.store(getMechanismName(), getProtocol(), getServerName(), authenticationRealm,
+                                        authorizeCallback, stamp);
+                            }
                         }
                         if (!authorizeCallback.isAuthorized()) {
                             throw new SaslException("User " + authorizationId + " is not authorized");
                         }
-                        context.negotiationComplete();
+                        complete(context, authenticationId);
                         return null;
                     }
                 });
@@ -232,21 +323,162 @@ public final class LocalUserServer extends AbstractSaslServer implements SaslSer
         }
     }
 
+    /**
+     * Store the challenge where the client can read it.
+     *
+     * @param bytes the challenge
+     * @param inJvm {@code true} if the client can resolve the challenge from {@link InJvmChallenges}
+     * @param slabAccepted {@code true} if the client can read the challenge from a slot of the {@link ChallengeSlab}
+     * @return the message telling the client where to read the challenge from
+     */
+    private byte[] createChallenge(final byte[] bytes, final boolean inJvm, final boolean slabAccepted) throws SaslException {
+        if (inJvm) {
+            // NUL token
+            final String token = InJvmChallenges.register(bytes);
+            challengeToken = token;
+            final byte[] response = new byte[1 + token.length()];
+            Charsets.encodeTo(token, response, 1);
+            return response;
+        }
+
+        if (useSlab && slabAccepted) {
+            ChallengeSlab slab = this.slab;
+            if (slab == null) try {
+                this.slab = slab = ChallengeSlab.getInstance(basePath, slabSize);
+            } catch (IOException e) {
+                throw new SaslException("Failed to create challenge slab", e);
+            }
+            final int slot = slab.allocate();
+            if (slot >= 0) {
+                slab.write(slot, bytes);
+                challengeSlot.set(slot);
+                // path NUL offset
+                final String path = slab.getPath();
+                final String offset = Long.toString(ChallengeSlab.offsetOf(slot));
+                final byte[] pathBytes = Charsets.encode(path);
+                final byte[] response = new byte[pathBytes.length + 1 + offset.length()];
+                System.arraycopy(pathBytes, 0, response, 0, pathBytes.length);
+                Charsets.encodeTo(offset, response, pathBytes.length + 1);
+                return response;
+            }
+            // every slot is in use, fall back to a file of our own
+        }
+
+        final File file;
+        try {
+            challengeFile = file = File.createTempFile("local", ".challenge", basePath);
+        } catch (IOException e) {
+            throw new SaslException("Failed to create challenge file", e);
+        }
+
+        final FileOutputStream fos;
+        try {
+            fos = new FileOutputStream(file);
+        } catch (FileNotFoundException e) {
+            throw new SaslException("Failed to create challenge file", e);
+        }
+        boolean ok = false;
+        try {
+            try {
+                fos.write(bytes);
+                fos.close();
+                ok = true;
+            } catch (IOException e) {
+                throw new SaslException("Failed to create challenge file", e);
+            }
+        } finally {
+            if (!ok) {
+                deleteChallenge();
+            }
+            try {
+                fos.close();
+            } catch (Throwable ignored) {
+            }
+        }
+        final String path = file.getAbsolutePath();
+        return Charsets.encode(path);
+    }
+
+    private void complete(final SaslStateContext context, final String authenticationId) throws SaslException {
+        if (issueTickets) {
+            try {
+                // no ticket at all rather than one whose length would be truncated in the initial message
+                ticket = ResumptionTickets.issue(getProtocol(), getServerName(), authenticationId, authorizationId, ticketLifetime);
+            } catch (GeneralSecurityException e) {
+                throw new SaslException("Failed to issue resumption ticket", e);
+            }
+        }
+        context.negotiationComplete();
+    }
+
+    @Override
+    public Object getNegotiatedProperty(final String propName) {
+        if (isComplete() == false) {
+            throw new IllegalStateException("JBOSS-LOCAL-USER server negotiation not complete");
+        }
+        if (RESUMPTION_TICKET.equals(propName)) {
+            final byte[] ticket = this.ticket;
+            return ticket == null ? null : ticket.clone();
+        }
+        return super.getNegotiatedProperty(propName);
+    }
+
     private void deleteChallenge() {
-        if (challengeFile != null) {
-            challengeFile.delete();
+        // May be called concurrently by the reaper, deleting twice is harmless.
+        final String token = challengeToken;
+        if (token != null) {
+            challengeToken = null;
+            InJvmChallenges.remove(token);
+        }
+        final File file = challengeFile;
+        if (file != null) {
             challengeFile = null;
+            file.delete();
+        }
+        final int slot = challengeSlot.getAndSet(-1);
+        if (slot >= 0) {
+            slab.release(slot);
         }
     }
 
     @Override
     public void dispose() throws SaslException {
         super.dispose();
+        final HashedWheelTimer.Timeout expiry = this.expiry;
+        if (expiry != null) {
+            expiry.cancel();
+        }
         deleteChallenge();
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        deleteChallenge();
+    /**
+     * Remove the challenge files left in the directory by a process that did not exit cleanly. Other servers using the
+     * directory may have a longer timeout than this one, so only files older than a day are removed. A challenge slab is
+     * only removed once no process holds its lock.
+     *
+     * @param basePath the challenge directory
+     */
+    private static void sweep(final File basePath) {
+        // The directory may be large, so list it on a thread of its own rather than delay the expiry of challenges.
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                final File[] files = basePath.listFiles();
+                if (files == null) {
+                    return;
+                }
+                final long staleBefore = System.currentTimeMillis() - STALE_AGE;
+                for (File file : files) {
+                    final String name = file.getName();
+                    if (name.startsWith("local") == false || file.lastModified() >= staleBefore) {
+                        continue;
+                    }
+                    if (name.endsWith(".challenge") || name.endsWith(".slab") && ChallengeSlab.isAbandoned(file)) {
+                        file.delete();
+                    }
+                }
+            }
+        }, "JBOSS-LOCAL-USER challenge sweep");
+        thread.setDaemon(true);
+        thread.start();
     }
 }
@@ -40,6 +40,6 @@ public class LocalUserServerFactory extends LocalUserSaslFactory implements Sasl
         }
         final LocalUserServer server = new LocalUserServer(protocol, serverName, props, cbh);
         server.init();
-        return server;
+        return applyAdmissionController(server, props);
     }
 }
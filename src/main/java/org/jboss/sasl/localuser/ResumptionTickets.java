@@ -0,0 +1,179 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.localuser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted, time limited tickets allowing a client that has authenticated to authenticate again in a single message.
+ * <p/>
+ * The ticket holds the expiry time, the protocol and server name it was issued for and the authentication and
+ * authorization IDs. It is encrypted with AES/CBC and authenticated with HMAC-SHA256 over the IV and cipher text, both keys
+ * are generated when the class is loaded so tickets can only be used with the server process that issued them.
+ */
+final class ResumptionTickets {
+
+    /**
+     * The tag of the initial message extension carrying a ticket.
+     */
+    static final byte EXTENSION = 'T';
+
+    /**
+     * The longest ticket the 16 bit length of an initial message extension can carry.
+     */
+    static final int MAX_LENGTH = 0xFFFF;
+
+    private static final byte VERSION = 1;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String MAC = "HmacSHA256";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final SecretKeySpec CIPHER_KEY;
+    private static final SecretKeySpec MAC_KEY;
+
+    static {
+        final byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        CIPHER_KEY = new SecretKeySpec(bytes, "AES");
+        final byte[] macBytes = new byte[32];
+        RANDOM.nextBytes(macBytes);
+        MAC_KEY = new SecretKeySpec(macBytes, MAC);
+    }
+
+    /**
+     * Issue a ticket.
+     *
+     * @param protocol the protocol the ticket may be used with
+     * @param serverName the server name the ticket may be used with
+     * @param authenticationId the authenticated user
+     * @param authorizationId the authorized ID
+     * @param lifetime the lifetime of the ticket in milliseconds
+     * @return the ticket, or {@code null} if the names are too long for it to be presented in an initial message
+     * @throws GeneralSecurityException if the ticket can not be created
+     */
+    static byte[] issue(final String protocol, final String serverName, final String authenticationId,
+            final String authorizationId, final long lifetime) throws GeneralSecurityException {
+        final ByteArrayOutputStream plain = new ByteArrayOutputStream(64);
+        try {
+            final DataOutputStream data = new DataOutputStream(plain);
+            data.writeLong(System.currentTimeMillis() + lifetime);
+            data.writeUTF(valueOf(protocol));
+            data.writeUTF(valueOf(serverName));
+            data.writeUTF(authenticationId);
+            data.writeUTF(authorizationId);
+            data.close();
+        } catch (UTFDataFormatException e) {
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        // version iv encrypted mac, the PKCS5 padding adds up to a block
+        if (1 + IV_LENGTH + plain.size() + 16 + MAC_LENGTH > MAX_LENGTH) {
+            return null;
+        }
+
+        final byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        final Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, CIPHER_KEY, new IvParameterSpec(iv));
+        final byte[] encrypted = cipher.doFinal(plain.toByteArray());
+
+        // version iv encrypted mac
+        final byte[] ticket = new byte[1 + IV_LENGTH + encrypted.length + MAC_LENGTH];
+        ticket[0] = VERSION;
+        System.arraycopy(iv, 0, ticket, 1, IV_LENGTH);
+        System.arraycopy(encrypted, 0, ticket, 1 + IV_LENGTH, encrypted.length);
+        final Mac mac = Mac.getInstance(MAC);
+        mac.init(MAC_KEY);
+        mac.update(ticket, 0, 1 + IV_LENGTH + encrypted.length);
+        mac.doFinal(ticket, 1 + IV_LENGTH + encrypted.length);
+        return ticket;
+    }
+
+    /**
+     * Verify and decrypt a ticket.
+     *
+     * @param bytes the array holding the ticket
+     * @param offs the offset of the ticket
+     * @param len the length of the ticket
+     * @param protocol the protocol of the server
+     * @param serverName the server name of the server
+     * @return the authentication and authorization IDs, or {@code null} if the ticket is invalid, expired or was issued for
+     *         another server
+     */
+    static String[] open(final byte[] bytes, final int offs, final int len, final String protocol, final String serverName) {
+        final int encryptedLength = len - 1 - IV_LENGTH - MAC_LENGTH;
+        if (encryptedLength <= 0 || bytes[offs] != VERSION) {
+            return null;
+        }
+        try {
+            final Mac mac = Mac.getInstance(MAC);
+            mac.init(MAC_KEY);
+            mac.update(bytes, offs, len - MAC_LENGTH);
+            final byte[] expected = mac.doFinal();
+            final byte[] actual = new byte[MAC_LENGTH];
+            System.arraycopy(bytes, offs + len - MAC_LENGTH, actual, 0, MAC_LENGTH);
+            if (MessageDigest.isEqual(expected, actual) == false) {
+                return null;
+            }
+
+            final Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, CIPHER_KEY, new IvParameterSpec(bytes, offs + 1, IV_LENGTH));
+            final byte[] plain = cipher.doFinal(bytes, offs + 1 + IV_LENGTH, encryptedLength);
+            final DataInputStream data = new DataInputStream(new ByteArrayInputStream(plain));
+            if (data.readLong() < System.currentTimeMillis()) {
+                return null;
+            }
+            if (valueOf(protocol).equals(data.readUTF()) == false || valueOf(serverName).equals(data.readUTF()) == false) {
+                return null;
+            }
+            return new String[] { data.readUTF(), data.readUTF() };
+        } catch (GeneralSecurityException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String valueOf(final String value) {
+        return value == null ? "" : value;
+    }
+
+    private ResumptionTickets() {
+    }
+}
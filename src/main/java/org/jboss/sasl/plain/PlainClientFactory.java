@@ -0,0 +1,57 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.plain;
+
+import static org.jboss.sasl.plain.PlainServerFactory.PLAIN;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslClientFactory;
+import javax.security.sasl.SaslException;
+import java.util.Map;
+
+import org.jboss.sasl.util.AbstractSaslFactory;
+
+/**
+ * The client factory for the plain SASL mechanism.
+ */
+public class PlainClientFactory extends AbstractSaslFactory implements SaslClientFactory {
+
+    /**
+     * Default constructor.
+     */
+    public PlainClientFactory() {
+        super(PLAIN);
+    }
+
+    public SaslClient createSaslClient(String[] mechanisms, String authorizationId, String protocol, String serverName, Map<String, ?> props, CallbackHandler cbh) throws SaslException {
+        // Only return a client if we are sure plain is supported.
+        return isIncluded(mechanisms) && matches(props) ? new PlainSaslClient(protocol, serverName, cbh, authorizationId) : null;
+    }
+
+    @Override
+    protected boolean isAnonymous() {
+        return false;
+    }
+
+}
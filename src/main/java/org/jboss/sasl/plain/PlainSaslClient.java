@@ -0,0 +1,106 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.plain;
+
+import static org.jboss.sasl.plain.PlainServerFactory.PLAIN;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.sasl.SaslException;
+
+import org.jboss.sasl.util.AbstractSaslClient;
+import org.jboss.sasl.util.Charsets;
+import org.jboss.sasl.util.SaslState;
+import org.jboss.sasl.util.SaslStateContext;
+
+/**
+ * A client implementation of the RFC 4616 {@code PLAIN} mechanism.
+ * <p/>
+ * The credentials are sent as the initial response, so the exchange completes in a single message.
+ */
+public final class PlainSaslClient extends AbstractSaslClient {
+
+    private final SaslState initial = new SaslState() {
+        public byte[] evaluateMessage(final SaslStateContext context, final byte[] message) throws SaslException {
+            if (message != null && message.length > 0) {
+                throw new SaslException("Invalid challenge received from server");
+            }
+            final NameCallback nameCallback = new NameCallback("PLAIN authentication identity");
+            final PasswordCallback passwordCallback = new PasswordCallback("PLAIN password", false);
+            char[] passwd = null;
+            try {
+                handleCallbacks(nameCallback, passwordCallback);
+                final String authcid = nameCallback.getName();
+                if (authcid == null || authcid.length() == 0) {
+                    throw new SaslException("Authentication name is missing");
+                }
+                passwd = passwordCallback.getPassword();
+                if (passwd == null) {
+                    throw new SaslException("Password is missing");
+                }
+
+                // [authzid] NUL authcid NUL passwd, encoded once into a buffer large enough for any encoding and trimmed
+                final String authzid = getAuthorizationId();
+                final ByteBuffer buffer = ByteBuffer.allocate((authzid == null ? 0 : Charsets.maxEncodedLengthOf(authzid.length()))
+                        + 1 + Charsets.maxEncodedLengthOf(authcid.length()) + 1 + Charsets.maxEncodedLengthOf(passwd.length));
+                try {
+                    if (authzid != null) {
+                        Charsets.encodeTo(authzid, buffer);
+                    }
+                    buffer.put((byte) 0);
+                    Charsets.encodeTo(authcid, buffer);
+                    buffer.put((byte) 0);
+                    Charsets.encodeTo(passwd, buffer);
+                    final byte[] response = Arrays.copyOf(buffer.array(), buffer.position());
+                    context.negotiationComplete();
+                    return response;
+                } finally {
+                    Arrays.fill(buffer.array(), (byte) 0);
+                }
+            } finally {
+                // getPassword returns a copy, both it and the array held by the callback are cleared
+                if (passwd != null) {
+                    Arrays.fill(passwd, '\0');
+                }
+                passwordCallback.clearPassword();
+            }
+        }
+    };
+
+    /**
+     * Construct a new instance.
+     *
+     * @param protocol the protocol
+     * @param serverName the server name
+     * @param callbackHandler the callback handler to use for authentication
+     * @param authorizationId the possibly {@code null} protocol-dependent name used for authorization
+     */
+    PlainSaslClient(final String protocol, final String serverName, final CallbackHandler callbackHandler, final String authorizationId) {
+        super(PLAIN, protocol, serverName, callbackHandler, authorizationId, true);
+        getContext().setNegotiationState(initial);
+    }
+}
@@ -24,12 +24,20 @@ package org.jboss.sasl.plain;
 
 import static org.jboss.sasl.plain.PlainServerFactory.PLAIN;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
 import javax.security.sasl.AuthorizeCallback;
 import javax.security.sasl.SaslException;
 
-import org.jboss.sasl.callback.VerifyPasswordCallback;
+import org.jboss.sasl.callback.AuthorizationCache;
+import org.jboss.sasl.callback.VerifyPasswordCharsCallback;
 import org.jboss.sasl.util.AbstractSaslServer;
 import org.jboss.sasl.util.Charsets;
 import org.jboss.sasl.util.SaslState;
@@ -45,8 +53,6 @@ public final class PlainSaslServer extends AbstractSaslServer {
 
     private final SaslState INITIAL = new SaslState() {
 
-        private static final byte UTF8NUL = 0x00;
-
         public byte[] evaluateMessage(final SaslStateContext context, final byte[] message) throws SaslException {
             int length = message.length;
             if (length == 0) {
@@ -58,43 +64,58 @@ public final class PlainSaslServer extends AbstractSaslServer {
                     throw new SaslException("Authentication message is too long");
                 }
 
-                String[] parts = split(message);
-                String authcid;
-                String authzid;
-                String passwd;
-                if (parts.length == 2) {
-                    authcid = parts[0];
-                    authzid = authcid;
-                    passwd = parts[1];
-                } else if (parts.length == 3) {
-                    authzid = parts[0];
-                    authcid = parts[1];
-                    passwd = parts[2];
-                } else {
-                    throw new SaslException("Invalid number of message parts (" + parts.length + ")");
+                // [authzid] NUL authcid NUL passwd
+                final ByteBuffer buffer = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+                final int firstNul = Charsets.indexOfNul(buffer, 0, length);
+                if (firstNul < 0) {
+                    throw new SaslException("PLAIN: Invalid message format. (Missing delimiter)");
+                }
+                final int secondNul = Charsets.indexOfNul(buffer, firstNul + 1, length - firstNul - 1);
+                if (secondNul < 0) {
+                    throw new SaslException("PLAIN: Invalid message format. (Missing delimiter)");
+                }
+                // Verify there is no nul after the password.
+                if (Charsets.indexOfNul(buffer, secondNul + 1, length - secondNul - 1) > -1) {
+                    throw new SaslException("PLAIN: Invalid message format. (Too many delimiters)");
                 }
-                
-                // By this point we have already created the Strings no point checking the length as the
-                // memory is already allocated.
 
-                // The message has now been parsed, split and converted to UTF-8 Strings
-                // now it is time to use the CallbackHandler to validate the supplied credentials.
+                final Decoder decoder = DECODERS.get();
+                final String authcid = decoder.decodeString(buffer, firstNul + 1, secondNul - firstNul - 1);
+                final String authzid = firstNul > 0 ? decoder.decodeString(buffer, 0, firstNul) : authcid;
 
-                // First verify username and password.
+                // Only the password is not converted to a String, it is cleared as soon as it has been verified.
 
-                NameCallback ncb = new NameCallback("PLAIN authentication identity", authcid);
-                VerifyPasswordCallback vpc = new VerifyPasswordCallback(passwd);
-
-                handleCallbacks(ncb, vpc);
+                // First verify username and password.
 
-                if (vpc.isVerified() == false) {
-                    throw new SaslException("PLAIN password not verified by CallbackHandler");
+                VerifyPasswordCharsCallback vpc = new VerifyPasswordCharsCallback(decoder.decodeChars(buffer, secondNul + 1, length - secondNul - 1));
+                try {
+                    if (credentialCache == null
+                            || credentialCache.isVerified(getProtocol(), getServerName(), authcid, vpc.getPasswordChars()) == false) {
+                        final VerifiedCredentialCache.Stamp stamp = credentialCache == null ? null : credentialCache.stamp();
+                        NameCallback ncb = new NameCallback("PLAIN authentication identity", authcid);
+                        handleCallbacks(ncb, vpc);
+
+                        if (vpc.isVerified() == false) {
+                            throw new SaslException("PLAIN password not verified by CallbackHandler");
+                        }
+                        if (credentialCache != null) {
+                            credentialCache.verified(getProtocol(), getServerName(), authcid, vpc.getPasswordChars(), stamp);
+                        }
+                    }
+                } finally {
+                    vpc.clearPassword();
                 }
 
                 // Now check the authorization id
 
                 AuthorizeCallback acb = new AuthorizeCallback(authcid, authzid);
-                handleCallbacks(acb);
+                if (authorizationCache == null || authorizationCache.lookup(getMechanismName(), getProtocol(), getServerName(), null, acb) == false) {
+                    final AuthorizationCache.Stamp stamp = authorizationCache == null ? null : authorizationCache.stamp();
+                    handleCallbacks(acb);
+                    if (authorizationCache != null) {
+                        authorizationCache.store(getMechanismName(), getProtocol(), getServerName(), null, acb, stamp);
+                    }
+                }
 
                 if (acb.isAuthorized() == true) {
                     authorizedId = acb.getAuthorizedID();
@@ -109,85 +130,55 @@ public final class PlainSaslServer extends AbstractSaslServer {
             }
         }
 
-        private String[] split(byte[] message) throws SaslException {
-            String authorizationId = null;
-            String authenticationId;
-            String password;
-
-            int startPos = 0;
-
-            int nextNul;
-            int length;
-            // Find the authorization ID
-            nextNul = nextNul(message, startPos, true);
-            if (nextNul > 0) {
-                length = length(nextNul, message.length, startPos);
-                authorizationId = new String(message, startPos, length, Charsets.UTF_8);
-                startPos += length + 1;
-            } else {
-                startPos++;
-            }
-
-            // Find the authentication ID
-            nextNul = nextNul(message, startPos, true);
-            length = length(nextNul, message.length, startPos);
-            authenticationId = new String(message, startPos, length, Charsets.UTF_8);
-            startPos += length + 1;
-
-            // Find the password
-            nextNul = nextNul(message, startPos, false);
-            // Verify there is no nul after the password.
-            if (nextNul > -1) {
-                throw new SaslException("PLAIN: Invalid message format. (Too many delimiters)");
-            }
-
-            length = length(nextNul, message.length, startPos);
-            password = new String(message, startPos, length, Charsets.UTF_8);
-            startPos += length + 1;
+    };
 
-            if (authorizationId == null) {
-                return new String[] { authenticationId, password };
-            } else {
-                return new String[] { authorizationId, authenticationId, password };
-            }
+    private static final ThreadLocal<Decoder> DECODERS = new ThreadLocal<Decoder>() {
+        protected Decoder initialValue() {
+            return new Decoder();
         }
+    };
 
-        /**
-         * Find the next UTF8 NUL in the message.
-         *
-         * @param message - The message to search.
-         * @param startPos - The point within the message tostart the search from.
-         * @return The position of the next nul byte.
-         */
-        private int nextNul(final byte[] message, final int startPos, final boolean mandatory) throws SaslException {
-            int nulpos = -1;
-
-            for (int i = startPos; i < message.length && nulpos < 0; i++) {
-                if (message[i] == UTF8NUL)
-                    nulpos = i;
-            }
+    /**
+     * A UTF-8 decoder and buffer reused for every message decoded by a thread.
+     */
+    private static final class Decoder {
+
+        private final CharsetDecoder decoder = Charsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer chars = CharBuffer.allocate(256);
 
-            if (mandatory && nulpos < 0) {
-                throw new SaslException("PLAIN: Invalid message format. (Missing delimiter)");
+        private CharBuffer decode(final ByteBuffer buffer, final int offs, final int len) {
+            // UTF-8 never decodes to more chars than bytes
+            if (chars.capacity() < len) {
+                chars = CharBuffer.allocate(len);
             }
+            buffer.limit(offs + len).position(offs);
+            chars.clear();
+            decoder.reset();
+            decoder.decode(buffer, chars, true);
+            decoder.flush(chars);
+            chars.flip();
+            return chars;
+        }
 
-            return nulpos;
+        String decodeString(final ByteBuffer buffer, final int offs, final int len) {
+            final CharBuffer decoded = decode(buffer, offs, len);
+            return new String(decoded.array(), 0, decoded.limit());
         }
 
-        /**
-         * Calculate the length of the field based on the position of the nul, the length of the message
-         * and the starting point.
-         *
-         * @param nulPos
-         * @param messageLength
-         * @param startPos
-         * @return
-         */
-        private int length(final int nulPos, final int messageLength, final int startPos) {
-            return nulPos < 0 ? messageLength - startPos : nulPos - startPos;
+        char[] decodeChars(final ByteBuffer buffer, final int offs, final int len) {
+            final CharBuffer decoded = decode(buffer, offs, len);
+            final char[] result = new char[decoded.limit()];
+            decoded.get(result);
+            // don't leave the password behind in the shared buffer
+            Arrays.fill(decoded.array(), 0, result.length, '\0');
+            return result;
         }
+    }
 
-    };
+    private final VerifiedCredentialCache credentialCache;
+    private final AuthorizationCache authorizationCache;
 
     /**
      * Construct a new instance.
@@ -197,7 +188,36 @@ public final class PlainSaslServer extends AbstractSaslServer {
      * @param callbackHandler the callback handler
      */
     public PlainSaslServer(final String protocol, final String serverName, final CallbackHandler callbackHandler) {
+        this(protocol, serverName, callbackHandler, null);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param protocol        the protocol
+     * @param serverName      the server name
+     * @param callbackHandler the callback handler
+     * @param credentialCache the cache of verified credentials consulted before the callback handler, or {@code null}
+     */
+    public PlainSaslServer(final String protocol, final String serverName, final CallbackHandler callbackHandler,
+            final VerifiedCredentialCache credentialCache) {
+        this(protocol, serverName, callbackHandler, credentialCache, null);
+    }
+
+    /**
+     * Construct a new instance.
+     *
+     * @param protocol        the protocol
+     * @param serverName      the server name
+     * @param callbackHandler the callback handler
+     * @param credentialCache the cache of verified credentials consulted before the callback handler, or {@code null}
+     * @param authorizationCache the cache of authorization decisions consulted before the callback handler, or {@code null}
+     */
+    public PlainSaslServer(final String protocol, final String serverName, final CallbackHandler callbackHandler,
+            final VerifiedCredentialCache credentialCache, final AuthorizationCache authorizationCache) {
         super(PLAIN, protocol, serverName, callbackHandler);
+        this.credentialCache = credentialCache;
+        this.authorizationCache = authorizationCache;
         getContext().setNegotiationState(INITIAL);
     }
 
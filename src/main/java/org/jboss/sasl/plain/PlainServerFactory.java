@@ -28,6 +28,7 @@ import javax.security.sasl.SaslServer;
 import javax.security.sasl.SaslServerFactory;
 import java.util.Map;
 
+import org.jboss.sasl.callback.AuthorizationCache;
 import org.jboss.sasl.util.AbstractSaslFactory;
 
 /**
@@ -64,7 +65,10 @@ public class PlainServerFactory extends AbstractSaslFactory implements SaslServe
             return null;
         }
 
-        return new PlainSaslServer(protocol, serverName, cbh);
+        final Object credentialCache = props != null ? props.get(VerifiedCredentialCache.CREDENTIAL_CACHE) : null;
+        final Object authorizationCache = props != null ? props.get(AuthorizationCache.AUTHORIZATION_CACHE) : null;
+        return applyAdmissionController(new PlainSaslServer(protocol, serverName, cbh, (VerifiedCredentialCache) credentialCache,
+                (AuthorizationCache) authorizationCache), props);
     }
 
     @Override
@@ -0,0 +1,272 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.plain;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A cache of recently verified PLAIN credentials, allowing repeated logins with unchanged credentials to skip the
+ * verification of the password by the {@link javax.security.auth.callback.CallbackHandler}.
+ * <p/>
+ * Passwords are never held, for each authentication ID only an HMAC-SHA256 of the last verified password is kept under a
+ * key generated for this cache. Entries expire after the time to live and once the cache is full the least recently
+ * used entry is evicted. Applications must call {@link #invalidate(String)} when the credentials or status of a user
+ * change, or {@link #invalidateAll()} when the identity store changes, if logins must not succeed within the time to live.
+ * A verification is only cached if no invalidation happened while the callback handler was verifying the password.
+ * <p/>
+ * The cache is supplied to {@link PlainSaslServer} using the {@link #CREDENTIAL_CACHE} property and may be shared by any
+ * number of servers, verifications are only reused by servers of the same protocol and server name. Servers which share
+ * those but verify passwords with different callback handlers must each be given their own cache.
+ */
+public final class VerifiedCredentialCache {
+
+    /**
+     * The property used to supply a {@link VerifiedCredentialCache} to the PLAIN mechanism.
+     */
+    public static final String CREDENTIAL_CACHE = "org.jboss.sasl.plain.credential_cache";
+
+    /**
+     * The cache state taken before a password is verified, a verification is cached under the stamp taken before the
+     * callback handler was called so that an invalidation made during the callback is not hidden by the cache.
+     */
+    public static final class Stamp {
+
+        private final long invalidations;
+
+        private Stamp(final long invalidations) {
+            this.invalidations = invalidations;
+        }
+    }
+
+    private static final String MAC = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final long ttlNanos;
+    private final Map<Key, Entry> entries;
+    // the number of calls to invalidate and invalidateAll, guarded by entries
+    private long invalidations;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance(MAC);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Construct a new instance.
+     *
+     * @param ttl the time an entry remains valid after the password was verified
+     * @param unit the unit of the time to live
+     * @param maxEntries the maximum number of verifications held
+     */
+    public VerifiedCredentialCache(final long ttl, final TimeUnit unit, final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        final byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, MAC);
+        ttlNanos = unit.toNanos(ttl);
+        entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Check if the password was recently verified for the authentication ID.
+     *
+     * @param protocol the protocol of the server
+     * @param serverName the server name of the server
+     * @param authenticationId the authentication ID
+     * @param password the password
+     * @return {@code true} if the same password was verified within the time to live
+     */
+    public boolean isVerified(final String protocol, final String serverName, final String authenticationId,
+            final char[] password) {
+        final Key key = new Key(protocol, serverName, authenticationId);
+        final Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null || System.nanoTime() - entry.verified > ttlNanos) {
+            return false;
+        }
+        return MessageDigest.isEqual(entry.hash, hash(authenticationId, password));
+    }
+
+    /**
+     * Take the stamp to record a verification under, this must be called before the callback handler verifies the password.
+     *
+     * @return the stamp
+     */
+    public Stamp stamp() {
+        synchronized (entries) {
+            return new Stamp(invalidations);
+        }
+    }
+
+    /**
+     * Record that the password has been verified for the authentication ID. The verification is not recorded if the
+     * cache was invalidated since the stamp was taken.
+     *
+     * @param protocol the protocol of the server
+     * @param serverName the server name of the server
+     * @param authenticationId the authentication ID
+     * @param password the verified password
+     * @param stamp the stamp taken by {@link #stamp()} before the password was verified
+     */
+    public void verified(final String protocol, final String serverName, final String authenticationId,
+            final char[] password, final Stamp stamp) {
+        final Key key = new Key(protocol, serverName, authenticationId);
+        final Entry entry = new Entry(hash(authenticationId, password), System.nanoTime());
+        synchronized (entries) {
+            if (stamp.invalidations == invalidations) {
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Discard any cached verification for the authentication ID.
+     *
+     * @param authenticationId the authentication ID
+     */
+    public void invalidate(final String authenticationId) {
+        synchronized (entries) {
+            invalidations++;
+            final Iterator<Key> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (authenticationId.equals(keys.next().authenticationId)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard all cached verifications.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            invalidations++;
+            entries.clear();
+        }
+    }
+
+    /**
+     * Get the number of verifications currently held, including expired entries that have not yet been evicted.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private byte[] hash(final String authenticationId, final char[] password) {
+        final Mac mac = macs.get();
+        // UTF-16 code units, the length prefix keeps the ID and password apart
+        final int length = authenticationId.length();
+        update(mac, length >>> 16);
+        update(mac, length);
+        for (int i = 0; i < authenticationId.length(); i++) {
+            update(mac, authenticationId.charAt(i));
+        }
+        for (char c : password) {
+            update(mac, c);
+        }
+        return mac.doFinal();
+    }
+
+    private static void update(final Mac mac, final int c) {
+        mac.update((byte) (c >> 8));
+        mac.update((byte) c);
+    }
+
+    private static final class Key {
+
+        private final String protocol;
+        private final String serverName;
+        private final String authenticationId;
+        private final int hashCode;
+
+        private Key(final String protocol, final String serverName, final String authenticationId) {
+            this.protocol = protocol;
+            this.serverName = serverName;
+            this.authenticationId = authenticationId;
+            int hashCode = hashCodeOf(protocol);
+            hashCode = 31 * hashCode + hashCodeOf(serverName);
+            this.hashCode = 31 * hashCode + authenticationId.hashCode();
+        }
+
+        private static int hashCodeOf(final String value) {
+            return value == null ? 0 : value.hashCode();
+        }
+
+        private static boolean equal(final String a, final String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+
+        public boolean equals(final Object other) {
+            if (other instanceof Key == false) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return hashCode == key.hashCode && authenticationId.equals(key.authenticationId) && equal(protocol, key.protocol)
+                    && equal(serverName, key.serverName);
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] hash;
+        private final long verified;
+
+        private Entry(final byte[] hash, final long verified) {
+            this.hash = hash;
+            this.verified = verified;
+        }
+    }
+}
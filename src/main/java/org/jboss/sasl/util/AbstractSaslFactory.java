@@ -142,6 +142,20 @@ public abstract class AbstractSaslFactory {
         return (props == null || ! props.containsKey(property)) ? defaultValue : Boolean.parseBoolean(props.get(property).toString());
     }
 
+    /**
+     * Apply the {@link AdmissionController} supplied in the properties, if any, to a new server.
+     *
+     * @param server the new server
+     * @param props the properties
+     * @return the server
+     */
+    protected static <T extends AbstractSaslServer> T applyAdmissionController(final T server, final Map<String, ?> props) {
+        if (props != null) {
+            server.setAdmissionController((AdmissionController) props.get(AdmissionController.ADMISSION_CONTROLLER));
+        }
+        return server;
+    }
+
     /**
      * Determine whether our mechanism name is among those given.
      *
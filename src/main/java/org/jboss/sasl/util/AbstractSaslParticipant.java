@@ -56,6 +56,8 @@ public abstract class AbstractSaslParticipant {
 
     private SaslState state;
     private SaslWrapper wrapper;
+    // The replaying handler of an asynchronous evaluation while one is in progress.
+    private CallbackHandler activeCallbackHandler;
 
     /**
      * Construct a new instance.
@@ -67,6 +69,7 @@ public abstract class AbstractSaslParticipant {
      */
     protected AbstractSaslParticipant(final String mechanismName, final String protocol, final String serverName, final CallbackHandler callbackHandler) {
         this.callbackHandler = callbackHandler;
+        activeCallbackHandler = callbackHandler;
         this.mechanismName = mechanismName;
         this.protocol = protocol;
         this.serverName = serverName;
@@ -95,9 +98,11 @@ public abstract class AbstractSaslParticipant {
      */
     protected void tryHandleCallbacks(Callback... callbacks) throws SaslException, UnsupportedCallbackException {
         try {
-            callbackHandler.handle(callbacks);
+            activeCallbackHandler.handle(callbacks);
         } catch (SaslException e) {
             throw e;
+        } catch (AsyncEvaluation.Suspended e) {
+            throw e;
         } catch (Throwable t) {
             throw new SaslException("Callback handler invocation failed", t);
         }
@@ -138,7 +143,7 @@ public abstract class AbstractSaslParticipant {
      * @return the callback handler
      */
     protected CallbackHandler getCallbackHandler() {
-        return callbackHandler;
+        return activeCallbackHandler;
     }
 
     /**
@@ -172,6 +177,19 @@ public abstract class AbstractSaslParticipant {
         }
     }
 
+    void evaluateMessage(final byte[] message, final SaslEvaluationListener listener) {
+        AsyncEvaluation.evaluate(callbackHandler, new AsyncEvaluation.Step() {
+            public byte[] evaluate(final CallbackHandler callbackHandler) throws SaslException {
+                activeCallbackHandler = callbackHandler;
+                try {
+                    return evaluateMessage(message);
+                } finally {
+                    activeCallbackHandler = AbstractSaslParticipant.this.callbackHandler;
+                }
+            }
+        }, listener);
+    }
+
     /**
      * Set the current configured SASL wrapper, if any.
      *
@@ -24,14 +24,17 @@ package org.jboss.sasl.util;
 
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.sasl.SaslException;
-import javax.security.sasl.SaslServer;
 
 /**
  * A base class for SASL client implementations.
  *
  * @author <a href="mailto:david.lloyd@redhat.com">David M. Lloyd</a>
  */
-public abstract class AbstractSaslServer extends AbstractSaslParticipant implements SaslServer {
+public abstract class AbstractSaslServer extends AbstractSaslParticipant implements AsyncSaslServer {
+
+    private AdmissionController admissionController;
+    private boolean admitted;
+    private AdmissionController.Permit admission;
 
     /**
      * Construct a new instance.
@@ -53,6 +56,78 @@ public abstract class AbstractSaslServer extends AbstractSaslParticipant impleme
      * @throws SaslException if there is an error processing the server message
      */
     public byte[] evaluateResponse(final byte[] response) throws SaslException {
-        return evaluateMessage(response);
+        admit();
+        boolean ok = false;
+        try {
+            final byte[] challenge = evaluateMessage(response);
+            ok = true;
+            return challenge;
+        } finally {
+            if (ok == false || isComplete()) {
+                releaseAdmission();
+            }
+        }
+    }
+
+    /**
+     * Evaluate an authentication response received from the client, without blocking if the callback handler is an
+     * {@link org.jboss.sasl.callback.AsyncCallbackHandler}.
+     *
+     * @param response the authentication response
+     * @param listener the listener notified with the response to send to the client
+     */
+    public void evaluateResponse(final byte[] response, final SaslEvaluationListener listener) {
+        try {
+            admit();
+        } catch (SaslException e) {
+            listener.failed(e);
+            return;
+        }
+        if (admission == null) {
+            evaluateMessage(response, listener);
+            return;
+        }
+        evaluateMessage(response, new SaslEvaluationListener() {
+            public void evaluated(final byte[] message) {
+                if (isComplete()) {
+                    releaseAdmission();
+                }
+                listener.evaluated(message);
+            }
+
+            public void failed(final SaslException cause) {
+                releaseAdmission();
+                listener.failed(cause);
+            }
+        });
+    }
+
+    /**
+     * Dispose of this server, releasing its place with the {@link AdmissionController} if it still holds one.
+     *
+     * @throws SaslException if disposal failed
+     */
+    public void dispose() throws SaslException {
+        releaseAdmission();
+        super.dispose();
+    }
+
+    void setAdmissionController(final AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    private void admit() throws SaslException {
+        if (admissionController != null && admitted == false) {
+            admitted = true;
+            admission = admissionController.admit(getMechanismName());
+        }
+    }
+
+    private void releaseAdmission() {
+        final AdmissionController.Permit admission = this.admission;
+        if (admission != null) {
+            this.admission = null;
+            admission.release();
+        }
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of authentications in progress at once for each mechanism, so a burst of new connections can not
+ * starve the authentications already in progress, or the established connections, of threads, memory and callback
+ * handler capacity.
+ * <p/>
+ * A server mechanism is admitted when it evaluates its first response and holds its place until the authentication
+ * completes, fails or the server is disposed, so a handshake once admitted is never rejected part way through. When the
+ * limit is reached a new authentication fails immediately with an {@link AdmissionRejectedException}, the calling thread
+ * is never blocked waiting for a place. A place not released within the maximum hold time, usually because the client
+ * stopped answering or the server was abandoned without being disposed, is reclaimed.
+ * <p/>
+ * The limit of each mechanism adapts to the time authentications take: every authentication completing within the target
+ * latency raises the limit a little while the limit is in use, every slower one lowers it by a tenth, between one and the
+ * maximum limit. Established connections are never affected, {@code wrap} and {@code unwrap} are not limited.
+ * <p/>
+ * The controller is supplied to the server mechanisms using the {@link #ADMISSION_CONTROLLER} property, the same instance
+ * should be supplied to every server of the provider.
+ */
+public final class AdmissionController {
+
+    /**
+     * The property used to supply an {@link AdmissionController} to the server mechanisms.
+     */
+    public static final String ADMISSION_CONTROLLER = "org.jboss.sasl.admission_controller";
+
+    private static final double BACKOFF = 0.9;
+
+    private static final HashedWheelTimer REAPER = new HashedWheelTimer("JBoss SASL admission reaper", 100, TimeUnit.MILLISECONDS, 512);
+
+    private final int initialLimit;
+    private final int maxLimit;
+    private final long targetLatencyNanos;
+    private final long maxHoldNanos;
+    private final ConcurrentMap<String, Limiter> limiters = new ConcurrentHashMap<String, Limiter>();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param initialLimit the initial number of authentications in progress at once for each mechanism
+     * @param maxLimit the maximum number of authentications in progress at once for each mechanism
+     * @param targetLatency the time an authentication should take, from its first response until it completes
+     * @param maxHoldTime the time after which the place of an authentication that has not completed is reclaimed, {@code 0}
+     *        to never reclaim
+     * @param unit the unit of the times
+     */
+    public AdmissionController(final int initialLimit, final int maxLimit, final long targetLatency, final long maxHoldTime,
+            final TimeUnit unit) {
+        if (initialLimit < 1 || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= initialLimit <= maxLimit");
+        }
+        this.initialLimit = initialLimit;
+        this.maxLimit = maxLimit;
+        targetLatencyNanos = unit.toNanos(targetLatency);
+        maxHoldNanos = unit.toNanos(maxHoldTime);
+    }
+
+    /**
+     * Admit a new authentication, without waiting.
+     *
+     * @param mechanism the mechanism name
+     * @return the place of the authentication, which must be released once it completes or fails
+     * @throws AdmissionRejectedException if every place is in use
+     */
+    public Permit admit(final String mechanism) throws AdmissionRejectedException {
+        final Limiter limiter = getLimiter(mechanism);
+        limiter.acquire();
+        final Permit permit = new Permit(limiter);
+        if (maxHoldNanos > 0) {
+            permit.reclaim = REAPER.schedule(new Runnable() {
+                public void run() {
+                    permit.release(true);
+                }
+            }, maxHoldNanos, TimeUnit.NANOSECONDS);
+        }
+        return permit;
+    }
+
+    /**
+     * Get the current limit of a mechanism.
+     *
+     * @param mechanism the mechanism name
+     * @return the number of authentications that may be in progress at once
+     */
+    public int getLimit(final String mechanism) {
+        return getLimiter(mechanism).getLimit();
+    }
+
+    /**
+     * Get the number of authentications of a mechanism currently in progress.
+     *
+     * @param mechanism the mechanism name
+     * @return the number of authentications in progress
+     */
+    public int getInProgress(final String mechanism) {
+        return getLimiter(mechanism).getInProgress();
+    }
+
+    private Limiter getLimiter(final String mechanism) {
+        Limiter limiter = limiters.get(mechanism);
+        if (limiter == null) {
+            final Limiter newLimiter = new Limiter(mechanism);
+            limiter = limiters.putIfAbsent(mechanism, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * The place of an authentication in progress.
+     */
+    public static final class Permit {
+
+        private final Limiter limiter;
+        private final long admitted = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile HashedWheelTimer.Timeout reclaim;
+
+        private Permit(final Limiter limiter) {
+            this.limiter = limiter;
+        }
+
+        /**
+         * Release the place, the time since admission is used to adapt the limit. Only the first call has any effect.
+         */
+        public void release() {
+            release(false);
+        }
+
+        void release(final boolean reclaimed) {
+            if (released.compareAndSet(false, true)) {
+                final HashedWheelTimer.Timeout reclaim = this.reclaim;
+                if (reclaim != null && reclaimed == false) {
+                    reclaim.cancel();
+                }
+                limiter.release(System.nanoTime() - admitted, reclaimed);
+            }
+        }
+    }
+
+    private final class Limiter {
+
+        private final String mechanism;
+        // Guarded by this.
+        private double limit = initialLimit;
+        private int inProgress;
+
+        Limiter(final String mechanism) {
+            this.mechanism = mechanism;
+        }
+
+        synchronized void acquire() throws AdmissionRejectedException {
+            if (inProgress >= (int) limit) {
+                throw new AdmissionRejectedException(mechanism + " authentication rejected, " + inProgress
+                        + " authentications already in progress");
+            }
+            inProgress++;
+        }
+
+        synchronized void release(final long latencyNanos, final boolean reclaimed) {
+            if (reclaimed || latencyNanos > targetLatencyNanos) {
+                limit = Math.max(1, limit * BACKOFF);
+            } else if (inProgress * 2 >= (int) limit) {
+                // only grow while the limit is actually being used
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            inProgress--;
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized int getInProgress() {
+            return inProgress;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.ChoiceCallback;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.TextInputCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
+import javax.security.sasl.SaslException;
+
+import org.jboss.sasl.callback.AsyncCallbackHandler;
+import org.jboss.sasl.callback.DigestHashCallback;
+import org.jboss.sasl.callback.VerifyPasswordCallback;
+import org.jboss.sasl.callback.VerifyPasswordCharsCallback;
+
+/**
+ * Drives the asynchronous evaluation of a mechanism step written against the blocking {@link CallbackHandler}.
+ * <p/>
+ * The step is run with a replaying handler, the first time it requests callbacks that have not yet been handled the step
+ * is abandoned by throwing {@link Suspended} and the callbacks are passed to the {@link AsyncCallbackHandler}. Once
+ * they have been handled the step is run again from the start, this time the replaying handler answers the callbacks
+ * already handled by copying the results into the new callbacks. No thread is held while callbacks are outstanding but
+ * the step must therefore tolerate being run more than once up to the point of each callback.
+ * <p/>
+ * The results of the standard callbacks and of the callbacks in {@link org.jboss.sasl.callback} can be replayed.
+ */
+public final class AsyncEvaluation {
+
+    /**
+     * A mechanism step.
+     */
+    public interface Step {
+
+        /**
+         * Evaluate the step.
+         *
+         * @param callbackHandler the callback handler the step must use for all callbacks
+         * @return the message to send to the other participant
+         * @throws SaslException if the step fails
+         */
+        byte[] evaluate(CallbackHandler callbackHandler) throws SaslException;
+    }
+
+    /**
+     * Thrown through the step when it has been suspended, steps must not catch it other than to restore any state they
+     * changed before rethrowing it.
+     */
+    public static final class Suspended extends RuntimeException {
+
+        private static final long serialVersionUID = -3522960453817264587L;
+
+        private Suspended() {
+        }
+
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final Suspended SUSPENDED = new Suspended();
+
+    /**
+     * Evaluate a step, if the callback handler is not an {@link AsyncCallbackHandler} the step is evaluated on the
+     * calling thread with the callback handler.
+     *
+     * @param callbackHandler the callback handler of the mechanism
+     * @param step the step
+     * @param listener the listener to notify once the step has been evaluated
+     */
+    public static void evaluate(final CallbackHandler callbackHandler, final Step step, final SaslEvaluationListener listener) {
+        if (callbackHandler instanceof AsyncCallbackHandler) {
+            new Replay((AsyncCallbackHandler) callbackHandler, step, listener).run();
+            return;
+        }
+        final byte[] message;
+        try {
+            message = step.evaluate(callbackHandler);
+        } catch (SaslException e) {
+            listener.failed(e);
+            return;
+        }
+        listener.evaluated(message);
+    }
+
+    private static final class Replay implements CallbackHandler {
+
+        private final AsyncCallbackHandler callbackHandler;
+        private final Step step;
+        private final SaslEvaluationListener listener;
+        // Only accessed by the thread running the step, the completion hands it over to the next.
+        private final List<Round> rounds = new ArrayList<Round>();
+        private int next;
+
+        private Replay(final AsyncCallbackHandler callbackHandler, final Step step, final SaslEvaluationListener listener) {
+            this.callbackHandler = callbackHandler;
+            this.step = step;
+            this.listener = listener;
+        }
+
+        void run() {
+            next = 0;
+            final byte[] message;
+            try {
+                message = step.evaluate(this);
+            } catch (Suspended e) {
+                final Round round = rounds.get(rounds.size() - 1);
+                try {
+                    callbackHandler.handle(round.callbacks, round);
+                } catch (RuntimeException t) {
+                    if (round.done.compareAndSet(false, true)) {
+                        fail(new SaslException("Callback handler invocation failed", t));
+                    }
+                }
+                return;
+            } catch (SaslException e) {
+                fail(e);
+                return;
+            } catch (RuntimeException e) {
+                fail(new SaslException("Asynchronous evaluation failed", e));
+                return;
+            }
+            clear(0);
+            listener.evaluated(message);
+        }
+
+        private void fail(final SaslException e) {
+            clear(0);
+            listener.failed(e);
+        }
+
+        public void handle(final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+            if (next < rounds.size()) {
+                final Round round = rounds.get(next);
+                if (round.matches(callbacks)) {
+                    next++;
+                    round.replay(callbacks);
+                    return;
+                }
+                // the step took another path, the remaining results no longer apply
+                clear(next);
+            }
+            rounds.add(new Round(callbacks));
+            throw SUSPENDED;
+        }
+
+        private void clear(final int from) {
+            for (int i = rounds.size() - 1; i >= from; i--) {
+                rounds.remove(i).clear();
+            }
+        }
+
+        private final class Round implements AsyncCallbackHandler.Completion {
+
+            private final Callback[] callbacks;
+            private final AtomicBoolean done = new AtomicBoolean();
+            private volatile Exception failure;
+
+            private Round(final Callback[] requested) {
+                callbacks = new Callback[requested.length];
+                for (int i = 0; i < requested.length; i++) {
+                    final Callback callback = requested[i];
+                    // the mechanism clears the password as soon as the step is abandoned
+                    if (callback instanceof VerifyPasswordCharsCallback) {
+                        callbacks[i] = new VerifyPasswordCharsCallback(((VerifyPasswordCharsCallback) callback).getPasswordChars().clone());
+                    } else {
+                        callbacks[i] = callback;
+                    }
+                }
+            }
+
+            public void handled() {
+                if (done.compareAndSet(false, true) == false) {
+                    throw new IllegalStateException("Callbacks already completed");
+                }
+                run();
+            }
+
+            public void failed(final Exception cause) {
+                if (done.compareAndSet(false, true) == false) {
+                    throw new IllegalStateException("Callbacks already completed");
+                }
+                failure = cause;
+                run();
+            }
+
+            boolean matches(final Callback[] requested) {
+                if (requested.length != callbacks.length) {
+                    return false;
+                }
+                for (int i = 0; i < requested.length; i++) {
+                    if (requested[i].getClass() != callbacks[i].getClass()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            void replay(final Callback[] requested) throws IOException, UnsupportedCallbackException {
+                final Exception failure = this.failure;
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                } else if (failure instanceof UnsupportedCallbackException) {
+                    throw (UnsupportedCallbackException) failure;
+                } else if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                } else if (failure != null) {
+                    throw new IOException("Callback handler invocation failed", failure);
+                }
+                for (int i = 0; i < requested.length; i++) {
+                    copy(callbacks[i], requested[i]);
+                }
+            }
+
+            void clear() {
+                for (Callback callback : callbacks) {
+                    if (callback instanceof PasswordCallback) {
+                        ((PasswordCallback) callback).clearPassword();
+                    } else if (callback instanceof VerifyPasswordCharsCallback) {
+                        ((VerifyPasswordCharsCallback) callback).clearPassword();
+                    } else if (callback instanceof DigestHashCallback) {
+                        ((DigestHashCallback) callback).setHash(null);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void copy(final Callback from, final Callback to) throws UnsupportedCallbackException {
+        if (from instanceof NameCallback) {
+            final String name = ((NameCallback) from).getName();
+            if (name != null) {
+                ((NameCallback) to).setName(name);
+            }
+        } else if (from instanceof PasswordCallback) {
+            final char[] password = ((PasswordCallback) from).getPassword();
+            if (password != null) {
+                ((PasswordCallback) to).setPassword(password);
+                Arrays.fill(password, '\0');
+            }
+        } else if (from instanceof TextInputCallback) {
+            final String text = ((TextInputCallback) from).getText();
+            if (text != null) {
+                ((TextInputCallback) to).setText(text);
+            }
+        } else if (from instanceof ChoiceCallback) {
+            final int[] selections = ((ChoiceCallback) from).getSelectedIndexes();
+            if (selections != null) {
+                ((ChoiceCallback) to).setSelectedIndexes(selections);
+            }
+        } else if (from instanceof AuthorizeCallback) {
+            final AuthorizeCallback source = (AuthorizeCallback) from;
+            final AuthorizeCallback target = (AuthorizeCallback) to;
+            target.setAuthorized(source.isAuthorized());
+            if (source.isAuthorized()) {
+                target.setAuthorizedID(source.getAuthorizedID());
+            }
+        } else if (from instanceof VerifyPasswordCallback) {
+            ((VerifyPasswordCallback) to).setVerified(((VerifyPasswordCallback) from).isVerified());
+        } else if (from instanceof DigestHashCallback) {
+            final byte[] hash = ((DigestHashCallback) from).getHash();
+            if (hash != null) {
+                ((DigestHashCallback) to).setHash(hash.clone());
+            }
+        } else {
+            throw new UnsupportedCallbackException(to, "Results of " + to.getClass().getName() + " can not be replayed");
+        }
+    }
+
+    private AsyncEvaluation() {
+    }
+}
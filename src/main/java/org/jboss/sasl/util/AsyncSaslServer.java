@@ -0,0 +1,45 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.util;
+
+import javax.security.sasl.SaslServer;
+
+/**
+ * A {@link SaslServer} that can evaluate responses without blocking while its callback handler is consulted.
+ * <p/>
+ * If the callback handler is an {@link org.jboss.sasl.callback.AsyncCallbackHandler} the evaluation is suspended when
+ * callbacks are required and the listener is notified on the thread completing the callbacks, otherwise the evaluation
+ * completes, and the listener is notified, before {@link #evaluateResponse(byte[], SaslEvaluationListener)} returns.
+ */
+public interface AsyncSaslServer extends SaslServer {
+
+    /**
+     * Evaluate an authentication response received from the client.
+     * <p/>
+     * No other method of the server may be called until the listener has been notified.
+     *
+     * @param response the authentication response
+     * @param listener the listener notified with the challenge to send to the client or the failure
+     */
+    void evaluateResponse(byte[] response, SaslEvaluationListener listener);
+}
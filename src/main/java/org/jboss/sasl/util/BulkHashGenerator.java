@@ -0,0 +1,221 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.util;
+
+import static org.jboss.sasl.util.Charsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Generates the { username : realm : password } hashes of a whole file of users in parallel, the bulk mode of
+ * {@link UsernamePasswordHashUtil}.
+ * <p/>
+ * The input is read as UTF-8, one {@code username=password} entry per line, the user name ends at the first {@code '='}
+ * and the password is the rest of the line. Blank lines and lines starting with {@code '#'} are skipped. Entries are hashed
+ * in batches by a fixed number of threads each with its own {@link UsernamePasswordHashUtil}, using its multi-lane batch
+ * hashing, and written in input order as soon as each batch completes, only a bounded number of batches are held at any
+ * time whatever the size of the input.
+ * <p/>
+ * The output is either {@code username=hexhash} lines, the format read by
+ * {@link org.jboss.sasl.callback.CredentialIndex} and {@link org.jboss.sasl.callback.DigestHashFileBuilder}, with the user
+ * name escaped as {@link java.util.Properties#store(java.io.Writer, String)} escapes keys, or binary
+ * records each holding the user name as written by {@link DataOutputStream#writeUTF(String)} followed by the 16 byte hash.
+ */
+public final class BulkHashGenerator {
+
+    private static final int BATCH_SIZE = 1024;
+
+    private final String realm;
+    private final int threads;
+    private final boolean binary;
+
+    private final ThreadLocal<UsernamePasswordHashUtil> utils = new ThreadLocal<UsernamePasswordHashUtil>() {
+        protected UsernamePasswordHashUtil initialValue() {
+            try {
+                return new UsernamePasswordHashUtil();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Construct a new instance.
+     *
+     * @param realm the realm of the users
+     * @param threads the number of threads hashing
+     * @param binary {@code true} to write binary records, {@code false} to write {@code username=hexhash} lines
+     */
+    public BulkHashGenerator(final String realm, final int threads, final boolean binary) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.realm = realm;
+        this.threads = threads;
+        this.binary = binary;
+    }
+
+    /**
+     * Hash every entry of the input and write the results to the output, neither stream is closed.
+     *
+     * @param in the {@code username=password} entries
+     * @param out the stream to write the hashes to
+     * @return the number of entries hashed
+     * @throws IOException if reading or writing fails or an entry has no {@code '='}
+     */
+    public long generate(final Reader in, final OutputStream out) throws IOException {
+        final BufferedReader reader = new BufferedReader(in);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BulkHashGenerator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // twice the threads keeps every thread busy while the oldest batch is written
+        final Queue<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>(threads * 2);
+        long count = 0;
+        int lineNumber = 0;
+        try {
+            while (true) {
+                final String[] lines = new String[BATCH_SIZE];
+                int size = 0;
+                String line;
+                while (size < BATCH_SIZE && (line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.length() == 0 || line.charAt(0) == '#') {
+                        continue;
+                    }
+                    if (line.indexOf('=') < 0) {
+                        throw new IOException("No '=' in the entry at line " + lineNumber);
+                    }
+                    lines[size++] = line;
+                }
+                if (size == 0) {
+                    break;
+                }
+                pending.add(executor.submit(new Batch(lines, size)));
+                count += size;
+                if (pending.size() == threads * 2) {
+                    out.write(await(pending.poll()));
+                }
+            }
+            while (pending.isEmpty() == false) {
+                out.write(await(pending.poll()));
+            }
+            out.flush();
+            return count;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] await(final Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for hashes");
+        } catch (ExecutionException e) {
+            throw new IOException("Hashing failed", e.getCause());
+        }
+    }
+
+    private final class Batch implements Callable<byte[]> {
+
+        private final String[] lines;
+        private final int size;
+
+        private Batch(final String[] lines, final int size) {
+            this.lines = lines;
+            this.size = size;
+        }
+
+        public byte[] call() throws IOException {
+            final String[] usernames = new String[size];
+            final char[][] passwords = new char[size][];
+            for (int i = 0; i < size; i++) {
+                final String line = lines[i];
+                final int separator = line.indexOf('=');
+                usernames[i] = line.substring(0, separator);
+                passwords[i] = line.substring(separator + 1).toCharArray();
+            }
+            final byte[][] hashes = utils.get().generateHashedURP(usernames, realm, passwords, true);
+            for (char[] password : passwords) {
+                Arrays.fill(password, '\0');
+            }
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(size * 64);
+            final DataOutputStream data = new DataOutputStream(bytes);
+            for (int i = 0; i < size; i++) {
+                if (binary) {
+                    data.writeUTF(usernames[i]);
+                    data.write(hashes[i]);
+                } else {
+                    data.write(escapeKey(usernames[i]).getBytes(UTF_8));
+                    data.write('=');
+                    data.write(HexConverter.convertToHexBytes(hashes[i]));
+                    data.write('\n');
+                }
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Escape a user name as a properties key, so {@link java.util.Properties#load(Reader)} reads back the same name.
+     */
+    private static String escapeKey(final String key) {
+        final StringBuilder sb = new StringBuilder(key.length() + 8);
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            switch (c) {
+                case '\t': sb.append("\\t"); break;
+                case '\f': sb.append("\\f"); break;
+                case ' ': case '=': case ':': case '#': case '!': case '\\':
+                    sb.append('\\').append(c);
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
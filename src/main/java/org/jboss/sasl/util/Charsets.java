@@ -22,7 +22,10 @@
 
 package org.jboss.sasl.util;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
  * Character sets used by SASL protocols.
@@ -47,50 +50,176 @@ public final class Charsets {
      * @param src the source string
      * @param dest the array to encode to
      * @param offs the offset into the destination array
-     * @return {@code true} if the string fit, {@code false} if it did not
+     * @return {@code true} if the string fit, {@code false} if it did not, in which case the array may have been partly
+     *         written
      */
     public static boolean encodeTo(String src, byte[] dest, int offs) {
-        final int srcLen = src.length();
+        return encode(src, null, src.length(), dest, offs, dest.length) >= 0;
+    }
+
+    /**
+     * Encode characters into UTF-8 (except encoding character zero to its two-byte form).
+     *
+     * @param src the source characters
+     * @param dest the array to encode to
+     * @param offs the offset into the destination array
+     * @return {@code true} if the characters fit, {@code false} if they did not, in which case the array may have been
+     *         partly written
+     */
+    public static boolean encodeTo(char[] src, byte[] dest, int offs) {
+        return encode(null, src, src.length, dest, offs, dest.length) >= 0;
+    }
+
+    /**
+     * Encode a string into UTF-8 (except encoding character zero to its two-byte form) at the position of a buffer.
+     * <p/>
+     * Buffers backed by an array are written in place, other buffers are written from an encoded copy of the string.
+     *
+     * @param src the source string
+     * @param dest the buffer to encode to, its position is advanced past the encoded string if it fit
+     * @return {@code true} if the string fit, {@code false} if it did not, in which case the position is unchanged
+     */
+    public static boolean encodeTo(String src, ByteBuffer dest) {
+        if (dest.hasArray()) {
+            return encodeTo(src, null, src.length(), dest);
+        }
+        final byte[] bytes = encode(src);
+        if (bytes.length > dest.remaining()) {
+            return false;
+        }
+        dest.put(bytes);
+        return true;
+    }
+
+    /**
+     * Encode characters into UTF-8 (except encoding character zero to its two-byte form) at the position of a buffer.
+     * <p/>
+     * Buffers backed by an array are written in place, other buffers are written from an encoded copy of the characters
+     * that is cleared afterwards.
+     *
+     * @param src the source characters
+     * @param dest the buffer to encode to, its position is advanced past the encoded characters if they fit
+     * @return {@code true} if the characters fit, {@code false} if they did not, in which case the position is unchanged
+     */
+    public static boolean encodeTo(char[] src, ByteBuffer dest) {
+        if (dest.hasArray()) {
+            return encodeTo(null, src, src.length, dest);
+        }
+        final byte[] bytes = new byte[encodedLengthOf(src)];
         try {
-            for (int i = 0; i < srcLen; i = src.offsetByCodePoints(i, 1)) {
-                int cp = src.codePointAt(i);
-                if (cp > 0 && cp <= 0x7f) {
-                    // don't accidentally null-terminate the string
-                    dest[offs ++] = (byte) cp;
-                } else if (cp <= 0x07ff) {
-                    dest[offs ++] = (byte)(0xc0 | 0x1f & cp >> 6);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp);
-                } else if (cp <= 0xffff) {
-                    dest[offs ++] = (byte)(0xe0 | 0x0f & cp >> 12);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 6);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp);
-                } else if (cp <= 0x1fffff) {
-                    dest[offs ++] = (byte)(0xf0 | 0x07 & cp >> 18);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 12);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 6);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp);
-                } else if (cp <= 0x3ffffff) {
-                    dest[offs ++] = (byte)(0xf8 | 0x03 & cp >> 24);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 18);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 12);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 6);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp);
-                } else if (cp >= 0) {
-                    dest[offs ++] = (byte)(0xfc | 0x01 & cp >> 30);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 24);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 18);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 12);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 6);
-                    dest[offs ++] = (byte)(0x80 | 0x3f & cp);
-                } else {
-                    // replacement char
-                    dest[offs ++] = '?';
-                }
+            encodeTo(src, bytes, 0);
+            if (bytes.length > dest.remaining()) {
+                return false;
             }
+            dest.put(bytes);
             return true;
-        } catch (ArrayIndexOutOfBoundsException e) {
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    private static boolean encodeTo(String string, char[] chars, int length, ByteBuffer dest) {
+        final int base = dest.arrayOffset();
+        final int end = encode(string, chars, length, dest.array(), base + dest.position(), base + dest.limit());
+        if (end < 0) {
             return false;
         }
+        dest.position(end - base);
+        return true;
+    }
+
+    /**
+     * Encode a string into UTF-8 (except encoding character zero to its two-byte form).
+     * <p/>
+     * A string of ASCII characters is encoded in a single pass, only if it holds other characters is its encoded length
+     * calculated first.
+     *
+     * @param src the source string
+     * @return the encoded string
+     */
+    public static byte[] encode(String src) {
+        final int length = src.length();
+        byte[] dest = new byte[length];
+        if (encode(src, null, length, dest, 0, length) < 0) {
+            dest = new byte[encodedLengthOf(src)];
+            encode(src, null, length, dest, 0, dest.length);
+        }
+        return dest;
+    }
+
+    private static char charAt(String string, char[] chars, int i) {
+        return string != null ? string.charAt(i) : chars[i];
+    }
+
+    /**
+     * Encode either the string or the characters, four ASCII characters at a time where possible.
+     *
+     * @return the offset after the encoded characters, or {@code -1} if they do not fit before the limit
+     */
+    private static int encode(String string, char[] chars, int length, byte[] dest, int offs, int limit) {
+        int i = 0;
+        while (i < length) {
+            if (i <= length - 4 && offs <= limit - 4) {
+                final char c0 = charAt(string, chars, i);
+                final char c1 = charAt(string, chars, i + 1);
+                final char c2 = charAt(string, chars, i + 2);
+                final char c3 = charAt(string, chars, i + 3);
+                // all below 0x80 and none zero
+                if ((c0 | c1 | c2 | c3) < 0x80 && (c0 - 1 | c1 - 1 | c2 - 1 | c3 - 1) >= 0) {
+                    dest[offs] = (byte) c0;
+                    dest[offs + 1] = (byte) c1;
+                    dest[offs + 2] = (byte) c2;
+                    dest[offs + 3] = (byte) c3;
+                    offs += 4;
+                    i += 4;
+                    continue;
+                }
+            }
+            final char c = charAt(string, chars, i++);
+            if (c > 0 && c <= 0x7f) {
+                // don't accidentally null-terminate the string
+                if (offs >= limit) {
+                    return -1;
+                }
+                dest[offs ++] = (byte) c;
+            } else if (c <= 0x07ff) {
+                if (offs > limit - 2) {
+                    return -1;
+                }
+                dest[offs ++] = (byte)(0xc0 | 0x1f & c >> 6);
+                dest[offs ++] = (byte)(0x80 | 0x3f & c);
+            } else if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(charAt(string, chars, i))) {
+                if (offs > limit - 4) {
+                    return -1;
+                }
+                final int cp = Character.toCodePoint(c, charAt(string, chars, i++));
+                dest[offs ++] = (byte)(0xf0 | 0x07 & cp >> 18);
+                dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 12);
+                dest[offs ++] = (byte)(0x80 | 0x3f & cp >> 6);
+                dest[offs ++] = (byte)(0x80 | 0x3f & cp);
+            } else {
+                // including unpaired surrogates
+                if (offs > limit - 3) {
+                    return -1;
+                }
+                dest[offs ++] = (byte)(0xe0 | 0x0f & c >> 12);
+                dest[offs ++] = (byte)(0x80 | 0x3f & c >> 6);
+                dest[offs ++] = (byte)(0x80 | 0x3f & c);
+            }
+        }
+        return offs;
+    }
+
+    /**
+     * Get the greatest encoded length of a number of characters, a buffer of this size holds any string of that length
+     * without its encoded length being calculated first.
+     *
+     * @param length the number of characters
+     * @return the greatest encoded length
+     */
+    public static int maxEncodedLengthOf(int length) {
+        // three bytes for each character, a surrogate pair takes four for two
+        return length * 3;
     }
 
     /**
@@ -100,31 +229,118 @@ public final class Charsets {
      * @return its encoded length
      */
     public static int encodedLengthOf(String src) {
-        final int srcLen = src.length();
+        return encodedLengthOf(src, null, src.length());
+    }
+
+    /**
+     * Get the encoded length of characters.
+     *
+     * @param src the characters
+     * @return their encoded length
+     */
+    public static int encodedLengthOf(char[] src) {
+        return encodedLengthOf(null, src, src.length);
+    }
+
+    private static int encodedLengthOf(String string, char[] chars, int length) {
         int l = 0;
-        for (int i = 0; i < srcLen; i = src.offsetByCodePoints(i, 1)) {
-            int cp = src.codePointAt(i);
-            if (cp > 0 && cp <= 0x7f) {
+        for (int i = 0; i < length; i++) {
+            final char c = charAt(string, chars, i);
+            if (c > 0 && c <= 0x7f) {
                 // don't accidentally null-terminate the string
-                l ++;
-            } else if (cp <= 0x07ff) {
+                l += 1;
+            } else if (c <= 0x07ff) {
                 l += 2;
-            } else if (cp <= 0xffff) {
-                l += 3;
-            } else if (cp <= 0x1fffff) {
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(charAt(string, chars, i + 1))) {
                 l += 4;
-            } else if (cp <= 0x3ffffff) {
-                l += 5;
-            } else if (cp >= 0) {
-                l += 6;
+                i++;
             } else {
-                // replacement char
-                l ++;
+                l += 3;
             }
         }
         return l;
     }
 
+    /**
+     * Decode UTF-8, including character zero in its two-byte form as written by the {@code encode} methods.
+     * <p/>
+     * Malformed sequences, including overlong forms other than that of character zero, are each replaced by
+     * {@code U+FFFD}.
+     *
+     * @param src the array holding the encoded string
+     * @param offs the offset of the encoded string
+     * @param len the length of the encoded string
+     * @return the decoded string
+     */
+    public static String decode(byte[] src, int offs, int len) {
+        final char[] chars = new char[len];
+        final int end = offs + len;
+        int n = 0;
+        int i = offs;
+        while (i < end) {
+            // ASCII, four bytes at a time where possible
+            if (i <= end - 4 && (src[i] | src[i + 1] | src[i + 2] | src[i + 3]) >= 0) {
+                chars[n] = (char) src[i];
+                chars[n + 1] = (char) src[i + 1];
+                chars[n + 2] = (char) src[i + 2];
+                chars[n + 3] = (char) src[i + 3];
+                n += 4;
+                i += 4;
+                continue;
+            }
+            final int b = src[i];
+            if (b >= 0) {
+                chars[n++] = (char) b;
+                i += 1;
+            } else if ((b & 0xe0) == 0xc0 && i + 1 < end && isContinuation(src[i + 1])) {
+                final int c = (b & 0x1f) << 6 | src[i + 1] & 0x3f;
+                chars[n++] = c >= 0x80 || c == 0 && b == (byte) 0xc0 ? (char) c : '\ufffd';
+                i += 2;
+            } else if ((b & 0xf0) == 0xe0 && i + 2 < end && isContinuation(src[i + 1]) && isContinuation(src[i + 2])) {
+                final int c = (b & 0x0f) << 12 | (src[i + 1] & 0x3f) << 6 | src[i + 2] & 0x3f;
+                chars[n++] = c >= 0x800 ? (char) c : '\ufffd';
+                i += 3;
+            } else if ((b & 0xf8) == 0xf0 && i + 3 < end && isContinuation(src[i + 1]) && isContinuation(src[i + 2])
+                    && isContinuation(src[i + 3])) {
+                final int cp = (b & 0x07) << 18 | (src[i + 1] & 0x3f) << 12 | (src[i + 2] & 0x3f) << 6 | src[i + 3] & 0x3f;
+                if (cp >= 0x10000 && cp <= Character.MAX_CODE_POINT) {
+                    chars[n++] = (char) (Character.MIN_HIGH_SURROGATE + (cp - 0x10000 >>> 10));
+                    chars[n++] = (char) (Character.MIN_LOW_SURROGATE + (cp & 0x3ff));
+                } else {
+                    chars[n++] = '\ufffd';
+                }
+                i += 4;
+            } else {
+                chars[n++] = '\ufffd';
+                i += 1;
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * Decode UTF-8 from a segment of a buffer, as {@link #decode(byte[], int, int)}.
+     *
+     * @param src the buffer holding the encoded string, its position and limit are ignored
+     * @param offs the offset of the encoded string
+     * @param len the length of the encoded string
+     * @return the decoded string
+     */
+    public static String decode(ByteBuffer src, int offs, int len) {
+        if (src.hasArray()) {
+            return decode(src.array(), src.arrayOffset() + offs, len);
+        }
+        final byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i ++) {
+            bytes[i] = src.get(offs + i);
+        }
+        return decode(bytes, 0, len);
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xc0) == 0x80;
+    }
+
     /**
      * Find the first occurrence of a byte in a byte array.
      *
@@ -166,6 +382,34 @@ public final class Charsets {
         return indexOf(array, search, 0, array.length);
     }
 
+    /**
+     * Find the first zero byte in a segment of a buffer, examining eight bytes at a time.
+     *
+     * @param buffer the buffer to search, its position and limit are ignored
+     * @param offs the offset in the buffer to start searching
+     * @param len the length of the segment to search
+     * @return the index, or -1 if there is no zero byte in the segment
+     */
+    public static int indexOfNul(ByteBuffer buffer, int offs, int len) {
+        final boolean littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        final int end = offs + len;
+        int i = offs;
+        for (; i <= end - 8; i += 8) {
+            final long word = buffer.getLong(i);
+            // sets the high bit of exactly those bytes that are zero
+            final long zeros = ~((word & 0x7f7f7f7f7f7f7f7fL) + 0x7f7f7f7f7f7f7f7fL | word | 0x7f7f7f7f7f7f7f7fL);
+            if (zeros != 0) {
+                return i + ((littleEndian ? Long.numberOfTrailingZeros(zeros) : Long.numberOfLeadingZeros(zeros)) >>> 3);
+            }
+        }
+        for (; i < end; i ++) {
+            if (buffer.get(i) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private Charsets() {
     }
 }
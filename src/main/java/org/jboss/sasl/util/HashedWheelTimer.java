@@ -0,0 +1,231 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer for large numbers of timeouts that are usually cancelled before they expire, such as those guarding a
+ * handshake.
+ * <p/>
+ * Scheduling and cancelling are constant time and never block, timeouts are only placed on the wheel by the timer thread.
+ * Timeouts expire on the first tick after their deadline so the precision is that of the tick duration. Tasks are run on
+ * the timer thread and must be short.
+ */
+public final class HashedWheelTimer {
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final String threadName;
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final long startTime = System.nanoTime();
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /**
+     * Construct a new timer, the thread is started when the first timeout is scheduled.
+     *
+     * @param threadName the name of the timer thread
+     * @param tickDuration the duration of a tick
+     * @param unit the unit of the tick duration
+     * @param wheelSize the number of buckets of the wheel, rounded up to a power of two
+     */
+    public HashedWheelTimer(final String threadName, final long tickDuration, final TimeUnit unit, final int wheelSize) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0");
+        }
+        if (wheelSize <= 0 || wheelSize > 1 << 30) {
+            throw new IllegalArgumentException("wheelSize out of range");
+        }
+        this.threadName = threadName;
+        tickNanos = unit.toNanos(tickDuration);
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        wheel = new Timeout[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Schedule a task to run once the delay has elapsed.
+     *
+     * @param task the task to run on the timer thread
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @return the timeout which may be used to cancel the task
+     */
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        if (running == false) {
+            throw new IllegalStateException("Timer stopped");
+        }
+        final Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+        pending.add(timeout);
+        startThread();
+        return timeout;
+    }
+
+    /**
+     * Stop the timer, timeouts that have not yet expired will never expire.
+     */
+    public void stop() {
+        running = false;
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private synchronized void startThread() {
+        if (thread == null && running) {
+            thread = new Thread(new Worker(), threadName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        // Only accessed by the timer thread.
+        private long remainingRounds;
+        private int bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task.
+         *
+         * @return {@code true} if the task will not run, {@code false} if it has already expired
+         */
+        public boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED) || state.get() == CANCELLED;
+        }
+
+        /**
+         * Check if the task has expired, it may still be running.
+         *
+         * @return {@code true} if the task has expired
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private long tick;
+
+        public void run() {
+            while (running) {
+                final long sleepNanos = tickNanos * (tick + 1) - (System.nanoTime() - startTime);
+                if (sleepNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                }
+                transferPending();
+                expire(System.nanoTime() - startTime);
+                tick++;
+            }
+        }
+
+        private void transferPending() {
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                if (timeout.state.get() == CANCELLED) {
+                    continue;
+                }
+                final long expiryTick = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+                // Never place a timeout in a bucket that has already been passed.
+                final int bucket = (int) (Math.max(expiryTick, tick) & mask);
+                timeout.bucket = bucket;
+                final Timeout head = wheel[bucket];
+                timeout.prev = null;
+                timeout.next = head;
+                if (head != null) {
+                    head.prev = timeout;
+                }
+                wheel[bucket] = timeout;
+            }
+        }
+
+        private void expire(final long now) {
+            Timeout timeout = wheel[(int) (tick & mask)];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.state.get() == CANCELLED) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(WAITING, EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        } catch (Throwable ignored) {
+                        }
+                    }
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(final Timeout timeout) {
+            if (timeout.prev == null) {
+                wheel[timeout.bucket] = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * An MD5 implementation hashing up to {@link #LANES} independent short inputs at once.
+ * <p/>
+ * Each input of up to {@link #MAX_LANE_INPUT} bytes fits a single padded block and is given a lane, the state and
+ * message words are held one array per variable indexed by lane and every step of the compression function is a loop
+ * over the lanes, a shape the JIT can compile to SIMD instructions. Longer inputs are hashed by a {@link MessageDigest}.
+ * <p/>
+ * Instances are not thread safe.
+ */
+public final class MultiLaneMD5 {
+
+    /**
+     * The number of inputs hashed together.
+     */
+    public static final int LANES = 8;
+
+    /**
+     * The longest input which is hashed in a lane, longer inputs are passed to a {@link MessageDigest}.
+     */
+    public static final int MAX_LANE_INPUT = 55;
+
+    private static final int[] S = {
+            7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+            5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+            4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+            6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+    };
+
+    private static final int[] K = {
+            0xd76aa478, 0xe8c7b756, 0x242070db, 0xc1bdceee,
+            0xf57c0faf, 0x4787c62a, 0xa8304613, 0xfd469501,
+            0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be,
+            0x6b901122, 0xfd987193, 0xa679438e, 0x49b40821,
+            0xf61e2562, 0xc040b340, 0x265e5a51, 0xe9b6c7aa,
+            0xd62f105d, 0x02441453, 0xd8a1e681, 0xe7d3fbc8,
+            0x21e1cde6, 0xc33707d6, 0xf4d50d87, 0x455a14ed,
+            0xa9e3e905, 0xfcefa3f8, 0x676f02d9, 0x8d2a4c8a,
+            0xfffa3942, 0x8771f681, 0x6d9d6122, 0xfde5380c,
+            0xa4beea44, 0x4bdecfa9, 0xf6bb4b60, 0xbebfbc70,
+            0x289b7ec6, 0xeaa127fa, 0xd4ef3085, 0x04881d05,
+            0xd9d4d039, 0xe6db99e5, 0x1fa27cf8, 0xc4ac5665,
+            0xf4292244, 0x432aff97, 0xab9423a7, 0xfc93a039,
+            0x655b59c3, 0x8f0ccc92, 0xffeff47d, 0x85845dd1,
+            0x6fa87e4f, 0xfe2ce6e0, 0xa3014314, 0x4e0811a1,
+            0xf7537e82, 0xbd3af235, 0x2ad7d2bb, 0xeb86d391
+    };
+
+    private final MessageDigest fallback;
+
+    // message words and state, one array per variable indexed by lane
+    private final int[][] x = new int[16][LANES];
+    private final int[] a = new int[LANES];
+    private final int[] b = new int[LANES];
+    private final int[] c = new int[LANES];
+    private final int[] d = new int[LANES];
+
+    /**
+     * Construct a new instance.
+     *
+     * @throws NoSuchAlgorithmException if no MD5 {@link MessageDigest} is available for longer inputs
+     */
+    public MultiLaneMD5() throws NoSuchAlgorithmException {
+        fallback = MessageDigest.getInstance("MD5");
+    }
+
+    /**
+     * Hash each input.
+     *
+     * @param inputs the inputs
+     * @return the 16 byte hash of each input
+     */
+    public byte[][] digest(final byte[][] inputs) {
+        final int[] lengths = new int[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            lengths[i] = inputs[i].length;
+        }
+        final byte[][] results = new byte[inputs.length][];
+        digest(inputs, lengths, inputs.length, results);
+        return results;
+    }
+
+    /**
+     * Hash the leading bytes of each of a number of arrays.
+     *
+     * @param inputs the arrays holding the inputs
+     * @param lengths the length of each input
+     * @param count the number of inputs
+     * @param results receives the 16 byte hash of each input
+     */
+    public void digest(final byte[][] inputs, final int[] lengths, final int count, final byte[][] results) {
+        final int[] lanes = new int[LANES];
+        int used = 0;
+        for (int i = 0; i < count; i++) {
+            if (lengths[i] > MAX_LANE_INPUT) {
+                fallback.update(inputs[i], 0, lengths[i]);
+                results[i] = fallback.digest();
+                continue;
+            }
+            load(used, inputs[i], lengths[i]);
+            lanes[used++] = i;
+            if (used == LANES) {
+                compress(lanes, used, results);
+                used = 0;
+            }
+        }
+        if (used > 0) {
+            compress(lanes, used, results);
+        }
+    }
+
+    /**
+     * Pad an input and load it into the message words of a lane.
+     */
+    private void load(final int lane, final byte[] input, final int length) {
+        final int[][] x = this.x;
+        for (int w = 0; w < 14; w++) {
+            int word = 0;
+            for (int i = 3; i >= 0; i--) {
+                final int pos = w * 4 + i;
+                word = word << 8 | (pos < length ? input[pos] & 0xFF : pos == length ? 0x80 : 0);
+            }
+            x[w][lane] = word;
+        }
+        x[14][lane] = length << 3;
+        x[15][lane] = 0;
+    }
+
+    private void compress(final int[] lanes, final int used, final byte[][] results) {
+        for (int l = 0; l < LANES; l++) {
+            a[l] = 0x67452301;
+            b[l] = 0xefcdab89;
+            c[l] = 0x98badcfe;
+            d[l] = 0x10325476;
+        }
+        final int[][] x = this.x;
+        int[] a = this.a;
+        int[] b = this.b;
+        int[] c = this.c;
+        int[] d = this.d;
+        int[] t;
+        for (int i = 0; i < 64; i++) {
+            final int k = K[i];
+            final int s = S[i];
+            final int round = i >> 4;
+            final int[] m;
+            if (round == 0) {
+                m = x[i];
+                for (int l = 0; l < LANES; l++) {
+                    final int f = a[l] + (b[l] & c[l] | ~b[l] & d[l]) + k + m[l];
+                    a[l] = b[l] + (f << s | f >>> 32 - s);
+                }
+            } else if (round == 1) {
+                m = x[5 * i + 1 & 15];
+                for (int l = 0; l < LANES; l++) {
+                    final int f = a[l] + (b[l] & d[l] | c[l] & ~d[l]) + k + m[l];
+                    a[l] = b[l] + (f << s | f >>> 32 - s);
+                }
+            } else if (round == 2) {
+                m = x[3 * i + 5 & 15];
+                for (int l = 0; l < LANES; l++) {
+                    final int f = a[l] + (b[l] ^ c[l] ^ d[l]) + k + m[l];
+                    a[l] = b[l] + (f << s | f >>> 32 - s);
+                }
+            } else {
+                m = x[7 * i & 15];
+                for (int l = 0; l < LANES; l++) {
+                    final int f = a[l] + (c[l] ^ (b[l] | ~d[l])) + k + m[l];
+                    a[l] = b[l] + (f << s | f >>> 32 - s);
+                }
+            }
+            // (a, b, c, d) = (d, a', b, c), only the references move
+            t = d;
+            d = c;
+            c = b;
+            b = a;
+            a = t;
+        }
+        // after 64 steps the references are back in place
+        for (int l = 0; l < used; l++) {
+            final byte[] result = new byte[16];
+            putInt(result, 0, a[l] + 0x67452301);
+            putInt(result, 4, b[l] + 0xefcdab89);
+            putInt(result, 8, c[l] + 0x98badcfe);
+            putInt(result, 12, d[l] + 0x10325476);
+            results[lanes[l]] = result;
+        }
+        // the message words hold the inputs, such as password hashes, do not keep them beyond the call
+        for (int w = 0; w < 16; w++) {
+            Arrays.fill(x[w], 0);
+        }
+        Arrays.fill(a, 0);
+        Arrays.fill(b, 0);
+        Arrays.fill(c, 0);
+        Arrays.fill(d, 0);
+    }
+
+    private static void putInt(final byte[] target, final int offs, final int value) {
+        target[offs] = (byte) value;
+        target[offs + 1] = (byte) (value >>> 8);
+        target[offs + 2] = (byte) (value >>> 16);
+        target[offs + 3] = (byte) (value >>> 24);
+    }
+}
@@ -21,20 +21,28 @@
  */
 package org.jboss.sasl.util;
 
-import static org.jboss.sasl.util.Charsets.LATIN_1;
 import static org.jboss.sasl.util.Charsets.UTF_8;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A utility class for generating both the {user-name : realm-value : passwd } hash
  * and the hex encoded version of the hash.
  * <p/>
- * This class makes use of the MessageDigest by single calls to the .digest(byte[]) method,
- * however beyond that there is no synchronisation so this should not be considered thread safe.
+ * This class feeds the MessageDigest and a scratch buffer held by the instance without any synchronisation so this
+ * should not be considered thread safe.
+ * <p/>
+ * Run with {@code --bulk} the whole of a users file is hashed in parallel, see {@link BulkHashGenerator}.
  *
  * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
  */
@@ -44,8 +52,17 @@ public class UsernamePasswordHashUtil {
 
     private static final byte COLON = ':';
 
+    private static final String BULK = "--bulk";
+    private static final String BINARY = "--binary";
+    private static final String THREADS = "--threads";
+
     private final MessageDigest digest;
 
+    private final byte[] scratch = new byte[256];
+
+    private MultiLaneMD5 multiLane;
+    private byte[][] blocks;
+
     /**
      * The default constructor for UsernamePasswordHashUtil, when instantiated
      * using this constructor a local MD5 MessageDigest will be used for the
@@ -69,81 +86,201 @@ public class UsernamePasswordHashUtil {
     }
 
     /**
-     * An interpretation of the stringToByte_8859_1 method previously from DigestMD5Base.
+     * Takes the supplied username, realm and password and generates the digested { username ':' realm ':' password}
      * <p/>
-     * Converts the supplied String to a byte array using 8859_1 encoding, however if any of the
-     * characters in the String are outside of the range for 8859_1 and if allowUTF8 is true the
-     * String will be converted to UTF-8.
+     * Each value is converted using 8859_1 encoding, however if any of its characters are outside of the range for 8859_1
+     * and if utf8StringConversion is true that value is converted to UTF-8 instead. The values are encoded a few bytes at a
+     * time into a scratch buffer which is passed to the digest and cleared afterwards, no copy of the password is made.
      *
-     * @param toConvert the raw String to convert.
-     * @param allowUTF8 should the conversion use UTF-8 if non 8859_1 chars are found.
-     * @return the resulting byte[]
+     * @param userName             The username to use in the generated hash.
+     * @param realm                The realm to use in the generated hash.
+     * @param password             The password to use in the generated hash.
+     * @param utf8StringConversion Should a conversion to UTF-8 be allowed if non 8859_1 chars are encountered.
+     * @return The generated hash.
      */
-    private byte[] stringToByte(final String toConvert, final boolean allowUTF8) {
-        // If UTF-8 encoding is not allowed at all there is no point checking
-        // for non 8859_1 characters.
-        if (allowUTF8) {
-            char[] theChars = toConvert.toCharArray();
+    public byte[] generateHashedURP(final String userName, final String realm, final char[] password,
+                                    final boolean utf8StringConversion) {
+        // discard anything left by an earlier call that failed part way
+        digest.reset();
+        try {
+            update(userName, null, userName.length(), utf8StringConversion);
+            digest.update(COLON);
+            update(realm, null, realm.length(), utf8StringConversion);
+            digest.update(COLON);
+            update(null, password, password.length, utf8StringConversion);
 
-            for (char c : theChars) {
-                if (c > '\u00FF') {
-                    return toConvert.getBytes(UTF_8);
-                }
-            }
+            return digest.digest();
+        } finally {
+            Arrays.fill(scratch, (byte) 0);
         }
+    }
 
-        return toConvert.getBytes(LATIN_1);
+    /**
+     * Encode either the String or the char[] into the digest, with the same result as String.getBytes.
+     */
+    private void update(final String string, final char[] chars, final int length, final boolean allowUTF8) {
+        final boolean utf8 = useUTF8(string, chars, length, allowUTF8);
+        final byte[] scratch = this.scratch;
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            if (pos > scratch.length - 4) {
+                digest.update(scratch, 0, pos);
+                pos = 0;
+            }
+            final char c = charAt(string, chars, i);
+            final char next = i + 1 < length ? charAt(string, chars, i + 1) : 0;
+            pos = encode(c, next, utf8, scratch, pos);
+            if (isPair(c, next)) {
+                i++;
+            }
+        }
+        digest.update(scratch, 0, pos);
     }
 
     /**
-     * A version of stringToByte that takes in a char[]
+     * Encode either the String or the char[] into the target, as {@link #update(String, char[], int, boolean)}.
      *
-     * @param toConvert the character array to convert.
-     * @param allowUTF8 should the conversion use UTF-8 if non 8859_1 chars are found.
-     * @return the resulting byte[]
+     * @return the position after the value, or {@code -1} if the value does not fit before the limit
      */
-    private byte[] stringToByte(final char[] toConvert, final boolean allowUTF8) {
-        if (allowUTF8) {
+    private static int encodeTo(final String string, final char[] chars, final int length, final boolean allowUTF8,
+            final byte[] target, int pos, final int limit) {
+        final boolean utf8 = useUTF8(string, chars, length, allowUTF8);
+        for (int i = 0; i < length; i++) {
+            if (pos > limit - 4) {
+                return -1;
+            }
+            final char c = charAt(string, chars, i);
+            final char next = i + 1 < length ? charAt(string, chars, i + 1) : 0;
+            pos = encode(c, next, utf8, target, pos);
+            if (isPair(c, next)) {
+                i++;
+            }
+        }
+        return pos;
+    }
 
-            for (char c : toConvert) {
-                if (c > '\u00FF') {
-                    // TODO - Is there a quicker conversion without going to String before to byte[]
-                    return String.valueOf(toConvert).getBytes(UTF_8);
+    private static boolean useUTF8(final String string, final char[] chars, final int length, final boolean allowUTF8) {
+        // If UTF-8 encoding is not allowed at all there is no point checking
+        // for non 8859_1 characters.
+        if (allowUTF8) {
+            for (int i = 0; i < length; i++) {
+                if (charAt(string, chars, i) > '\u00FF') {
+                    return true;
                 }
             }
         }
+        return false;
+    }
+
+    private static char charAt(final String string, final char[] chars, final int i) {
+        return string != null ? string.charAt(i) : chars[i];
+    }
 
-        return String.valueOf(toConvert).getBytes(LATIN_1);
+    private static boolean isPair(final char c, final char next) {
+        return Character.isHighSurrogate(c) && Character.isLowSurrogate(next);
     }
 
     /**
-     * Takes the supplied username, realm and password and generates the digested { username ':' realm ':' password}
+     * Encode a char, or the surrogate pair it starts, writing at most four bytes.
      *
-     * @param userName             The username to use in the generated hash.
-     * @param realm                The realm to use in the generated hash.
-     * @param password             The password to use in the generated hash.
-     * @param utf8StringConversion Should a conversion to UTF-8 be allowed if non 8859_1 chars are encountered.
-     * @return The generated hash.
+     * @return the position after the encoded bytes
      */
-    public byte[] generateHashedURP(final String userName, final String realm, final char[] password,
-                                    final boolean utf8StringConversion) {
-        byte[] userNameArray = stringToByte(userName, utf8StringConversion);
-        byte[] realmArray = stringToByte(realm, utf8StringConversion);
-        byte[] passwordArray = stringToByte(password, utf8StringConversion);
-
-        int requiredSize = userNameArray.length + realmArray.length + passwordArray.length + 2;
+    private static int encode(final char c, final char next, final boolean utf8, final byte[] target, int pos) {
+        if (utf8 == false) {
+            // unmappable chars, and a surrogate pair as a whole, are replaced by '?' as by String.getBytes
+            target[pos++] = c <= '\u00FF' ? (byte) c : (byte) '?';
+        } else if (c < 0x80) {
+            target[pos++] = (byte) c;
+        } else if (c < 0x800) {
+            target[pos++] = (byte) (0xC0 | c >> 6);
+            target[pos++] = (byte) (0x80 | c & 0x3F);
+        } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+            target[pos++] = (byte) (0xE0 | c >> 12);
+            target[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+            target[pos++] = (byte) (0x80 | c & 0x3F);
+        } else if (isPair(c, next)) {
+            final int cp = Character.toCodePoint(c, next);
+            target[pos++] = (byte) (0xF0 | cp >> 18);
+            target[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+            target[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+            target[pos++] = (byte) (0x80 | cp & 0x3F);
+        } else {
+            // an unpaired surrogate, replaced as by String.getBytes
+            target[pos++] = (byte) '?';
+        }
+        return pos;
+    }
 
+    /**
+     * Generates the digested { username ':' realm ':' password} of a batch of users of the same realm.
+     * <p/>
+     * Each value is converted as by {@link #generateHashedURP(String, String, char[], boolean)}, entries encoding to at most
+     * {@link MultiLaneMD5#MAX_LANE_INPUT} bytes are hashed {@link MultiLaneMD5#LANES} at a time by a {@link MultiLaneMD5},
+     * longer entries by the MessageDigest of this instance. The encoded entries are cleared afterwards.
+     *
+     * @param userNames            The usernames to use in the generated hashes.
+     * @param realm                The realm to use in the generated hashes.
+     * @param passwords            The password of each user.
+     * @param utf8StringConversion Should a conversion to UTF-8 be allowed if non 8859_1 chars are encountered.
+     * @return The generated hash of each user.
+     */
+    public byte[][] generateHashedURP(final String[] userNames, final String realm, final char[][] passwords,
+                                      final boolean utf8StringConversion) {
+        if (userNames.length != passwords.length) {
+            throw new IllegalArgumentException("userNames and passwords must be the same length");
+        }
+        if (multiLane == null) {
+            try {
+                multiLane = new MultiLaneMD5();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            blocks = new byte[MultiLaneMD5.LANES][MultiLaneMD5.MAX_LANE_INPUT + 4];
+        }
+        final byte[][] results = new byte[userNames.length][];
+        final int[] lengths = new int[MultiLaneMD5.LANES];
+        final int[] entries = new int[MultiLaneMD5.LANES];
+        final byte[][] laneResults = new byte[MultiLaneMD5.LANES][];
+        // encoding stops once a value can not fit, the block has room for the last char encoded before that
+        final int limit = MultiLaneMD5.MAX_LANE_INPUT + 4;
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(requiredSize);
-            baos.write(userNameArray);
-            baos.write(COLON);
-            baos.write(realmArray);
-            baos.write(COLON);
-            baos.write(passwordArray);
-
-            return digest.digest(baos.toByteArray());
-        } catch (IOException e) {
-            throw new IllegalStateException("The ByteArrayOutputStream should not be throwing this IOException", e);
+            int used = 0;
+            for (int i = 0; i < userNames.length; i++) {
+                final byte[] block = blocks[used];
+                int pos = encodeTo(userNames[i], null, userNames[i].length(), utf8StringConversion, block, 0, limit - 2);
+                if (pos >= 0) {
+                    block[pos++] = COLON;
+                    pos = encodeTo(realm, null, realm.length(), utf8StringConversion, block, pos, limit - 1);
+                }
+                if (pos >= 0) {
+                    block[pos++] = COLON;
+                    pos = encodeTo(null, passwords[i], passwords[i].length, utf8StringConversion, block, pos, limit);
+                }
+                if (pos < 0 || pos > MultiLaneMD5.MAX_LANE_INPUT) {
+                    results[i] = generateHashedURP(userNames[i], realm, passwords[i], utf8StringConversion);
+                    continue;
+                }
+                lengths[used] = pos;
+                entries[used++] = i;
+                if (used == MultiLaneMD5.LANES) {
+                    multiLane.digest(blocks, lengths, used, laneResults);
+                    for (int j = 0; j < used; j++) {
+                        results[entries[j]] = laneResults[j];
+                    }
+                    used = 0;
+                }
+            }
+            if (used > 0) {
+                multiLane.digest(blocks, lengths, used, laneResults);
+                for (int j = 0; j < used; j++) {
+                    results[entries[j]] = laneResults[j];
+                }
+            }
+            return results;
+        } finally {
+            for (byte[] block : blocks) {
+                Arrays.fill(block, (byte) 0);
+            }
         }
     }
 
@@ -162,7 +299,12 @@ public class UsernamePasswordHashUtil {
         return generateHashedHexURP(userName, realm, password, true);
     }
 
-    public static void main(String[] args) throws NoSuchAlgorithmException {
+    public static void main(String[] args) throws NoSuchAlgorithmException, IOException {
+        if (args.length > 0 && BULK.equals(args[0])) {
+            bulk(args);
+            return;
+        }
+
         String userName;
         String realm;
         char[] password;
@@ -177,6 +319,7 @@ public class UsernamePasswordHashUtil {
             password = args[2].toCharArray();
         } else {
             System.out.println("Usage : UsernamePasswordHashUtil UserName [Realm] Password");
+            System.out.println("        UsernamePasswordHashUtil " + BULK + " Realm UsersFile OutputFile [" + BINARY + "] [" + THREADS + " N]");
             return;
         }
 
@@ -185,4 +328,42 @@ public class UsernamePasswordHashUtil {
         System.out.println(userName + "=" + util.generateHashedHexURP(userName, realm, password));
     }
 
+    private static void bulk(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("Usage : UsernamePasswordHashUtil " + BULK + " Realm UsersFile OutputFile [" + BINARY + "] [" + THREADS + " N]");
+            return;
+        }
+        boolean binary = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 4; i < args.length; i++) {
+            if (BINARY.equals(args[i])) {
+                binary = true;
+            } else if (THREADS.equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                return;
+            }
+        }
+
+        BulkHashGenerator generator = new BulkHashGenerator(args[1], threads, binary);
+        long start = System.nanoTime();
+        long count;
+        Reader in = new InputStreamReader(new FileInputStream(args[2]), UTF_8);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(args[3]), 65536);
+            try {
+                count = generator.generate(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        System.out.println("Hashed " + count + " users in " + millis + " ms using " + threads + " threads ("
+                + count * 1000 / millis + " users/s)");
+    }
+
 }
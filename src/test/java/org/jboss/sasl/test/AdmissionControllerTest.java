@@ -0,0 +1,180 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslServer;
+
+import org.jboss.sasl.util.AdmissionController;
+import org.jboss.sasl.util.AdmissionRejectedException;
+import org.junit.Test;
+
+/**
+ * Test the limiting of authentications in progress by {@link AdmissionController}.
+ */
+public class AdmissionControllerTest extends BaseTestCase {
+
+    private static final String DIGEST = "DIGEST-MD5";
+    private static final String PLAIN = "PLAIN";
+
+    @Test
+    public void testDigestLimit() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 1, 1, 1, TimeUnit.MINUTES);
+        Map<String, Object> props = Collections.<String, Object>singletonMap(AdmissionController.ADMISSION_CONTROLLER, controller);
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray());
+
+        SaslServer server = Sasl.createSaslServer(DIGEST, "TestProtocol", "TestServer", props, serverCallback);
+        byte[] message = server.evaluateResponse(new byte[0]);
+        assertEquals(1, controller.getInProgress(DIGEST));
+
+        // the first authentication holds the only place until it completes
+        SaslServer other = Sasl.createSaslServer(DIGEST, "TestProtocol", "TestServer", props, serverCallback);
+        try {
+            other.evaluateResponse(new byte[0]);
+            fail("Expected AdmissionRejectedException not thrown.");
+        } catch (AdmissionRejectedException expected) {
+        }
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", "gpwd".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[]{DIGEST}, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+        server.evaluateResponse(client.evaluateChallenge(message));
+        assertTrue(server.isComplete());
+        assertEquals(0, controller.getInProgress(DIGEST));
+
+        // disposing of an authentication in progress releases its place
+        other = Sasl.createSaslServer(DIGEST, "TestProtocol", "TestServer", props, serverCallback);
+        other.evaluateResponse(new byte[0]);
+        assertEquals(1, controller.getInProgress(DIGEST));
+        other.dispose();
+        assertEquals(0, controller.getInProgress(DIGEST));
+    }
+
+    @Test
+    public void testAbandonedDigestReclaimed() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 1, 1, 200, TimeUnit.MILLISECONDS);
+        Map<String, Object> props = Collections.<String, Object>singletonMap(AdmissionController.ADMISSION_CONTROLLER, controller);
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray());
+
+        // the client never answers and the server is never disposed
+        Sasl.createSaslServer(DIGEST, "TestProtocol", "TestServer", props, serverCallback).evaluateResponse(new byte[0]);
+        assertEquals(1, controller.getInProgress(DIGEST));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (controller.getInProgress(DIGEST) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, controller.getInProgress(DIGEST));
+
+        SaslServer server = Sasl.createSaslServer(DIGEST, "TestProtocol", "TestServer", props, serverCallback);
+        server.evaluateResponse(new byte[0]);
+        assertEquals(1, controller.getInProgress(DIGEST));
+        server.dispose();
+    }
+
+    @Test
+    public void testCallbackHoldsPlace() throws Exception {
+        final AdmissionController controller = new AdmissionController(1, 1, 1, 1, TimeUnit.MINUTES);
+        Map<String, Object> props = Collections.<String, Object>singletonMap(AdmissionController.ADMISSION_CONTROLLER, controller);
+        final AtomicInteger inCallback = new AtomicInteger(-1);
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray()) {
+            @Override
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                inCallback.set(controller.getInProgress(PLAIN));
+                super.handle(callbacks);
+            }
+        };
+
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props, serverCallback);
+        server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+        assertTrue(server.isComplete());
+        assertEquals("The place is held while the callback handler is called.", 1, inCallback.get());
+        assertEquals(0, controller.getInProgress(PLAIN));
+    }
+
+    @Test
+    public void testPlainReleased() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 1, 1, 1, TimeUnit.MINUTES);
+        Map<String, Object> props = Collections.<String, Object>singletonMap(AdmissionController.ADMISSION_CONTROLLER, controller);
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray());
+
+        for (int i = 0; i < 2; i++) {
+            SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props, serverCallback);
+            try {
+                server.evaluateResponse("\0George\0bad".getBytes("UTF-8"));
+                fail("Expected SaslException not thrown.");
+            } catch (AdmissionRejectedException e) {
+                fail("Place of the failed authentication not released.");
+            } catch (javax.security.sasl.SaslException expected) {
+            }
+        }
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props, serverCallback);
+        server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+        assertTrue(server.isComplete());
+        assertEquals(0, controller.getInProgress(PLAIN));
+    }
+
+    @Test
+    public void testAdaptiveLimit() throws Exception {
+        // every authentication is slower than the target of zero
+        AdmissionController controller = new AdmissionController(10, 20, 0, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 5; i++) {
+            AdmissionController.Permit permit = controller.admit(DIGEST);
+            Thread.sleep(1);
+            permit.release();
+        }
+        assertEquals(5, controller.getLimit(DIGEST));
+
+        controller = new AdmissionController(2, 4, 1, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 20; i++) {
+            AdmissionController.Permit first = controller.admit(PLAIN);
+            AdmissionController.Permit second = controller.admit(PLAIN);
+            second.release();
+            first.release();
+        }
+        assertEquals(4, controller.getLimit(PLAIN));
+    }
+
+    @Test
+    public void testReclaimed() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 1, 1, 200, TimeUnit.MILLISECONDS);
+        controller.admit(DIGEST);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (controller.getInProgress(DIGEST) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, controller.getInProgress(DIGEST));
+    }
+}
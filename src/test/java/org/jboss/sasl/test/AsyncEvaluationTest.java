@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+
+import org.jboss.sasl.callback.AsyncCallbackHandler;
+import org.jboss.sasl.util.AsyncSaslServer;
+import org.jboss.sasl.util.SaslEvaluationListener;
+import org.jboss.sasl.util.UsernamePasswordHashUtil;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the asynchronous evaluation of the server mechanisms.
+ */
+public class AsyncEvaluationTest extends BaseTestCase {
+
+    private static final String PLAIN = "PLAIN";
+    private static final String DIGEST = "DIGEST-MD5";
+    private static final String LOCAL_USER = "JBOSS-LOCAL-USER";
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPlain() throws Exception {
+        AsyncHandler serverCallback = new AsyncHandler(new ServerCallbackHandler("George", "gpwd".toCharArray()));
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", "gpwd".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[]{PLAIN}, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+
+        Result result = evaluate(server, client.evaluateChallenge(new byte[0]));
+        assertNull(result.failure);
+        assertNull(result.message);
+        assertTrue(server.isComplete());
+        assertEquals("George", server.getAuthorizationID());
+        // the password and the authorization were each handled on the executor
+        assertEquals(2, serverCallback.rounds.get());
+        assertEquals(0, serverCallback.blocking.get());
+    }
+
+    @Test
+    public void testPlainBadPassword() throws Exception {
+        AsyncHandler serverCallback = new AsyncHandler(new ServerCallbackHandler("George", "bad".toCharArray()));
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", "gpwd".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[]{PLAIN}, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+
+        Result result = evaluate(server, client.evaluateChallenge(new byte[0]));
+        assertNotNull(result.failure);
+        assertFalse(server.isComplete());
+    }
+
+    @Test
+    public void testHandlerFailure() throws Exception {
+        // the username is rejected by the handler, the failure is reported as if the blocking handler threw it
+        AsyncHandler serverCallback = new AsyncHandler(new ServerCallbackHandler("Borris", "gpwd".toCharArray()));
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", "gpwd".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[]{PLAIN}, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+
+        Result result = evaluate(server, client.evaluateChallenge(new byte[0]));
+        assertNotNull(result.failure);
+        assertTrue(result.failure.getCause() instanceof IOException);
+        assertEquals(1, serverCallback.rounds.get());
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        AsyncHandler serverCallback = new AsyncHandler(new ServerCallbackHandler("George", "gpwd".toCharArray()));
+        SaslServer server = Sasl.createSaslServer(DIGEST, "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", "gpwd".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[]{DIGEST}, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+
+        Result result = evaluate(server, new byte[0]);
+        assertNull(result.failure);
+        result = evaluate(server, client.evaluateChallenge(result.message));
+        assertNull(result.failure);
+        assertTrue(server.isComplete());
+        assertEquals("George", server.getAuthorizationID());
+        assertEquals(2, serverCallback.rounds.get());
+
+        client.evaluateChallenge(result.message);
+        assertTrue(client.isComplete());
+    }
+
+    @Test
+    public void testDigestPreHashed() throws Exception {
+        String urpHexHash = new UsernamePasswordHashUtil().generateHashedHexURP("George", "TestServer", "gpwd".toCharArray());
+        AsyncHandler serverCallback = new AsyncHandler(new ServerCallbackHandler("George", urpHexHash));
+        Map<String, Object> serverProps = new HashMap<String, Object>();
+        serverProps.put("org.jboss.sasl.digest.pre_digested", "true");
+        SaslServer server = Sasl.createSaslServer(DIGEST, "TestProtocol", "TestServer", serverProps, serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", "gpwd".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[]{DIGEST}, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+
+        Result result = evaluate(server, new byte[0]);
+        result = evaluate(server, client.evaluateChallenge(result.message));
+        assertNull(result.failure);
+        assertTrue(server.isComplete());
+        assertEquals("George", server.getAuthorizationID());
+    }
+
+    @Test
+    public void testLocalUser() throws Exception {
+        AsyncHandler serverCallback = new AsyncHandler(new ServerCallbackHandler("George", (char[]) null));
+        SaslServer server = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", (char[]) null);
+        SaslClient client = Sasl.createSaslClient(new String[]{ LOCAL_USER }, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+
+        Result result = evaluate(server, client.evaluateChallenge(new byte[0]));
+        assertNull(result.failure);
+        result = evaluate(server, client.evaluateChallenge(result.message));
+        assertNull(result.failure);
+        assertTrue(server.isComplete());
+        assertEquals("George", server.getAuthorizationID());
+        assertEquals(1, serverCallback.rounds.get());
+    }
+
+    @Test
+    public void testBlockingHandler() throws Exception {
+        // without an AsyncCallbackHandler the listener is notified before evaluateResponse returns
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray());
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", "gpwd".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[]{PLAIN}, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+
+        Result result = new Result();
+        ((AsyncSaslServer) server).evaluateResponse(client.evaluateChallenge(new byte[0]), result);
+        assertEquals(0, result.latch.getCount());
+        assertNull(result.failure);
+        assertTrue(server.isComplete());
+    }
+
+    private static Result evaluate(final SaslServer server, final byte[] response) throws InterruptedException {
+        Result result = new Result();
+        ((AsyncSaslServer) server).evaluateResponse(response, result);
+        assertTrue("Evaluation not completed", result.latch.await(10, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static final class Result implements SaslEvaluationListener {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile byte[] message;
+        private volatile SaslException failure;
+
+        public void evaluated(final byte[] message) {
+            this.message = message;
+            latch.countDown();
+        }
+
+        public void failed(final SaslException cause) {
+            failure = cause;
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Handles the callbacks with the wrapped handler on the executor.
+     */
+    private final class AsyncHandler implements AsyncCallbackHandler {
+
+        private final CallbackHandler wrapped;
+        private final AtomicInteger rounds = new AtomicInteger();
+        private final AtomicInteger blocking = new AtomicInteger();
+
+        private AsyncHandler(final CallbackHandler wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        public void handle(final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+            blocking.incrementAndGet();
+            wrapped.handle(callbacks);
+        }
+
+        public void handle(final Callback[] callbacks, final Completion completion) {
+            rounds.incrementAndGet();
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        wrapped.handle(callbacks);
+                    } catch (Exception e) {
+                        completion.failed(e);
+                        return;
+                    }
+                    completion.handled();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.Properties;
+
+import org.jboss.sasl.util.BulkHashGenerator;
+import org.jboss.sasl.util.UsernamePasswordHashUtil;
+import org.junit.Test;
+
+/**
+ * Test the bulk hashing of a users file by {@link BulkHashGenerator}.
+ */
+public class BulkHashGeneratorTest {
+
+    private static final int USERS = 5000;
+
+    private static String users() {
+        StringBuilder sb = new StringBuilder("# users\n\n");
+        for (int i = 0; i < USERS; i++) {
+            sb.append("User").append(i).append("=pwd=").append(i).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testHex() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(USERS, new BulkHashGenerator("TestRealm", 4, false).generate(new StringReader(users()), out));
+
+        UsernamePasswordHashUtil util = new UsernamePasswordHashUtil();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(out.toByteArray()), "UTF-8"));
+        for (int i = 0; i < USERS; i++) {
+            // in input order, the password is everything after the first '='
+            assertEquals("User" + i + "=" + util.generateHashedHexURP("User" + i, "TestRealm", ("pwd=" + i).toCharArray()),
+                    reader.readLine());
+        }
+        assertEquals(null, reader.readLine());
+    }
+
+    @Test
+    public void testHexEscapedNames() throws Exception {
+        String[] names = { "DOMAIN\\alice", "a:b", "with space", "a#b", "!bang", "tab\tbed", "caf\u00e9" };
+        StringBuilder in = new StringBuilder();
+        for (String name : names) {
+            in.append(name).append("=pwd\n");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BulkHashGenerator("TestRealm", 2, false).generate(new StringReader(in.toString()), out);
+
+        // read back as CredentialIndex and DigestHashFileBuilder read the file
+        Properties users = new Properties();
+        users.load(new InputStreamReader(new ByteArrayInputStream(out.toByteArray()), "UTF-8"));
+        assertEquals(names.length, users.size());
+        UsernamePasswordHashUtil util = new UsernamePasswordHashUtil();
+        for (String name : names) {
+            assertEquals(util.generateHashedHexURP(name, "TestRealm", "pwd".toCharArray()), users.getProperty(name));
+        }
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(USERS, new BulkHashGenerator("TestRealm", 3, true).generate(new StringReader(users()), out));
+
+        UsernamePasswordHashUtil util = new UsernamePasswordHashUtil();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] hash = new byte[16];
+        for (int i = 0; i < USERS; i++) {
+            assertEquals("User" + i, in.readUTF());
+            in.readFully(hash);
+            assertArrayEquals(util.generateHashedURP("User" + i, "TestRealm", ("pwd=" + i).toCharArray()), hash);
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testInvalidEntry() throws Exception {
+        try {
+            new BulkHashGenerator("TestRealm", 2, false).generate(new StringReader("George=gpwd\nFred\n"), new ByteArrayOutputStream());
+            fail("Expected IOException not thrown.");
+        } catch (IOException expected) {
+            assertEquals("No '=' in the entry at line 2", expected.getMessage());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslServer;
+
+import org.jboss.sasl.callback.BulkheadCallbackHandler;
+import org.jboss.sasl.callback.CallbackBulkheadException;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the isolation of slow callback handlers by {@link BulkheadCallbackHandler}.
+ */
+public class BulkheadCallbackHandlerTest extends BaseTestCase {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private BulkheadCallbackHandler handler;
+
+    @After
+    public void shutdown() {
+        release.countDown();
+        if (handler != null) {
+            handler.shutdown();
+        }
+    }
+
+    @Test
+    public void testSuccessfulExchange() throws Exception {
+        handler = new BulkheadCallbackHandler(new ServerCallbackHandler("George", "gpwd".toCharArray()), "Test", 2, 10, TimeUnit.SECONDS);
+        SaslServer server = Sasl.createSaslServer("PLAIN", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), handler);
+
+        server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+        assertTrue(server.isComplete());
+        assertEquals("George", server.getAuthorizationID());
+        assertEquals(2, handler.getAvailable());
+    }
+
+    @Test
+    public void testHandlerFailure() throws Exception {
+        handler = new BulkheadCallbackHandler(new ServerCallbackHandler("Borris", "gpwd".toCharArray()), "Test", 2, 10, TimeUnit.SECONDS);
+        try {
+            handler.handle(new Callback[] { new NameCallback("Name", "George") });
+            fail("Expected IOException not thrown.");
+        } catch (CallbackBulkheadException e) {
+            fail("Unexpected " + e);
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testTimeoutAndSaturation() throws Exception {
+        handler = new BulkheadCallbackHandler(new BlockingHandler(), "Test", 1, 100, TimeUnit.MILLISECONDS);
+        SaslServer server = Sasl.createSaslServer("PLAIN", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), handler);
+        try {
+            server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+            fail("Expected CallbackBulkheadException not thrown.");
+        } catch (CallbackBulkheadException e) {
+            assertEquals(CallbackBulkheadException.Reason.TIMED_OUT, e.getReason());
+        }
+
+        // the call that timed out still holds the only place
+        server = Sasl.createSaslServer("PLAIN", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), handler);
+        try {
+            server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+            fail("Expected CallbackBulkheadException not thrown.");
+        } catch (CallbackBulkheadException e) {
+            assertEquals(CallbackBulkheadException.Reason.SATURATED, e.getReason());
+        }
+    }
+
+    /**
+     * Blocks until released.
+     */
+    private final class BlockingHandler implements CallbackHandler {
+
+        public void handle(final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+            // a hung backend ignores the interrupt sent on timeout
+            while (true) {
+                try {
+                    release.await();
+                    return;
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+
+import org.jboss.sasl.gssapi.CachingSubjectFactory;
+import org.jboss.sasl.gssapi.SubjectFactory;
+import org.jboss.sasl.gssapi.SubjectIdentity;
+import org.junit.Test;
+
+/**
+ * Test of the {@link CachingSubjectFactory} against a stand-in KDC issuing short lived tickets.
+ */
+public class CachingSubjectFactoryTest {
+
+    @Test
+    public void testIdentityShared() {
+        StandInKdc kdc = new StandInKdc(TimeUnit.HOURS.toMillis(1));
+        CachingSubjectFactory factory = new CachingSubjectFactory(kdc);
+        try {
+            SubjectIdentity first = factory.getSubjectIdentity("remote", "localhost");
+            SubjectIdentity second = factory.getSubjectIdentity("remote", "localhost");
+            assertEquals(1, kdc.logins.get());
+            assertSame(first.getSubject(), second.getSubject());
+
+            SubjectIdentity other = factory.getSubjectIdentity("remote", "otherhost");
+            assertEquals(2, kdc.logins.get());
+            assertNotSame(first.getSubject(), other.getSubject());
+
+            first.dispose();
+            try {
+                first.getSubject();
+                fail("Expected IllegalStateException not thrown");
+            } catch (IllegalStateException expected) {
+            }
+            second.dispose();
+            other.dispose();
+            assertEquals("Cached identities are not disposed of while current.", 0, kdc.disposed.get());
+        } finally {
+            factory.close();
+        }
+        assertEquals(2, kdc.disposed.get());
+    }
+
+    @Test
+    public void testBackgroundRenewal() throws Exception {
+        StandInKdc kdc = new StandInKdc(400);
+        CachingSubjectFactory factory = new CachingSubjectFactory(kdc, 0.5f, 50, TimeUnit.MILLISECONDS, null);
+        try {
+            SubjectIdentity first = factory.getSubjectIdentity("remote", "localhost");
+            Subject firstSubject = first.getSubject();
+
+            long timeout = System.currentTimeMillis() + 5000;
+            while (kdc.logins.get() < 2 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertTrue("Renewal took place in the background.", kdc.logins.get() >= 2);
+
+            // the login is counted just before the renewed identity is made current
+            SubjectIdentity second = factory.getSubjectIdentity("remote", "localhost");
+            while (second.getSubject() == firstSubject && System.currentTimeMillis() < timeout) {
+                second.dispose();
+                Thread.sleep(10);
+                second = factory.getSubjectIdentity("remote", "localhost");
+            }
+            assertNotSame(firstSubject, second.getSubject());
+            assertSame("Existing handle still references original Subject.", firstSubject, first.getSubject());
+            assertFalse(kdc.isDisposed(firstSubject));
+
+            first.dispose();
+            assertTrue("Replaced identity disposed with last handle.", kdc.isDisposed(firstSubject));
+            second.dispose();
+        } finally {
+            factory.close();
+        }
+    }
+
+    /**
+     * A {@link SubjectFactory} standing in for a KDC login, each identity holds a ticket of the configured lifetime.
+     */
+    private static class StandInKdc implements SubjectFactory {
+
+        private final long lifetime;
+        private final AtomicInteger logins = new AtomicInteger();
+        private final AtomicInteger disposed = new AtomicInteger();
+
+        private StandInKdc(final long lifetime) {
+            this.lifetime = lifetime;
+        }
+
+        @Override
+        public SubjectIdentity getSubjectIdentity(final String protocol, final String serverName) {
+            logins.incrementAndGet();
+            final Subject subject = new Subject();
+            KerberosPrincipal client = new KerberosPrincipal(protocol + "/" + serverName + "@EXAMPLE.COM");
+            KerberosPrincipal server = new KerberosPrincipal("krbtgt/EXAMPLE.COM@EXAMPLE.COM");
+            long now = System.currentTimeMillis();
+            subject.getPrivateCredentials().add(new KerberosTicket(new byte[] { 0 }, client, server, new byte[16], 23,
+                    new boolean[32], new Date(now), new Date(now), new Date(now + lifetime), null, null));
+
+            return new SubjectIdentity() {
+
+                @Override
+                public Subject getSubject() {
+                    return subject;
+                }
+
+                @Override
+                public void dispose() {
+                    subject.getPrivateCredentials().clear();
+                    disposed.incrementAndGet();
+                }
+            };
+        }
+
+        boolean isDisposed(final Subject subject) {
+            return subject.getPrivateCredentials().isEmpty();
+        }
+    }
+
+}
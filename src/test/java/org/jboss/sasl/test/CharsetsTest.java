@@ -0,0 +1,168 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jboss.sasl.util.Charsets;
+import org.junit.Test;
+
+/**
+ * Test the encoding and decoding of {@link Charsets}.
+ */
+public class CharsetsTest {
+
+    private static final String[] VALUES = {
+            "", "a", "George", "\u0000", "ab\u0000cd", "\u00E9t\u00E9", "\u4E2D\u6587 text", "\uD83D\uDE00",
+            "lone \ud83d high", "lone \ude00 low", "end \ud83d", "\u007f\u0080\u07FF\u0800\uFFFF"
+    };
+
+    /**
+     * The code point based encoding the {@code encode} methods replaced.
+     */
+    private static byte[] reference(final String src) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < src.length(); i = src.offsetByCodePoints(i, 1)) {
+            final int cp = src.codePointAt(i);
+            if (cp > 0 && cp <= 0x7f) {
+                out.write(cp);
+            } else if (cp <= 0x07ff) {
+                out.write(0xc0 | 0x1f & cp >> 6);
+                out.write(0x80 | 0x3f & cp);
+            } else if (cp <= 0xffff) {
+                out.write(0xe0 | 0x0f & cp >> 12);
+                out.write(0x80 | 0x3f & cp >> 6);
+                out.write(0x80 | 0x3f & cp);
+            } else {
+                out.write(0xf0 | 0x07 & cp >> 18);
+                out.write(0x80 | 0x3f & cp >> 12);
+                out.write(0x80 | 0x3f & cp >> 6);
+                out.write(0x80 | 0x3f & cp);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static String random(final Random random) {
+        final char[] chars = new char[random.nextInt(40)];
+        for (int i = 0; i < chars.length; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    chars[i] = (char) random.nextInt(0x80);
+                    break;
+                case 1:
+                    chars[i] = (char) (0xd800 + random.nextInt(0x800));
+                    break;
+                default:
+                    chars[i] = (char) random.nextInt(0x10000);
+            }
+        }
+        return new String(chars);
+    }
+
+    private static void check(final String value) {
+        final byte[] expected = reference(value);
+        assertArrayEquals(value, expected, Charsets.encode(value));
+        assertEquals(value, expected.length, Charsets.encodedLengthOf(value));
+        assertEquals(value, expected.length, Charsets.encodedLengthOf(value.toCharArray()));
+
+        final byte[] bytes = new byte[expected.length + 2];
+        assertTrue(Charsets.encodeTo(value.toCharArray(), bytes, 1));
+        assertArrayEquals(value, expected, Arrays.copyOfRange(bytes, 1, expected.length + 1));
+        if (expected.length > 0) {
+            assertFalse(Charsets.encodeTo(value, new byte[expected.length - 1], 0));
+            assertFalse(Charsets.encodeTo(value.toCharArray(), new byte[expected.length], 1));
+        }
+
+        // unpaired surrogates are written as three bytes and decode to themselves
+        assertEquals(value, Charsets.decode(expected, 0, expected.length));
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        for (String value : VALUES) {
+            check(value);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            check(random(random));
+        }
+    }
+
+    @Test
+    public void testByteBuffer() throws Exception {
+        for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(64), ByteBuffer.allocateDirect(64)}) {
+            buffer.position(3);
+            assertTrue(Charsets.encodeTo("\u4E2D George", buffer));
+            assertEquals(3 + 10, buffer.position());
+            assertEquals("\u4E2D George", Charsets.decode(buffer, 3, 10));
+
+            buffer.limit(16);
+            assertFalse(Charsets.encodeTo("abcd", buffer));
+            assertEquals(13, buffer.position());
+            assertTrue(Charsets.encodeTo("abc", buffer));
+            assertEquals(16, buffer.position());
+        }
+        ByteBuffer slice = ByteBuffer.wrap(new byte[] {'x', 'y', 'G', 'e', 'o'}, 1, 4).slice();
+        assertEquals("Geo", Charsets.decode(slice, 1, 3));
+    }
+
+    @Test
+    public void testMaxEncodedLength() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            String value = random(random);
+            byte[] expected = Charsets.encode(value);
+            for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.allocate(Charsets.maxEncodedLengthOf(value.length())),
+                    ByteBuffer.allocateDirect(Charsets.maxEncodedLengthOf(value.length()))}) {
+                assertTrue(Charsets.encodeTo(value.toCharArray(), buffer));
+                assertEquals(expected.length, buffer.position());
+                buffer.flip();
+                byte[] actual = new byte[buffer.remaining()];
+                buffer.get(actual);
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeMalformed() throws Exception {
+        // a lone continuation byte, a truncated sequence, an overlong '/' and an out of range code point
+        byte[] bytes = {'a', (byte) 0x80, 'b', (byte) 0xe4, (byte) 0xb8, (byte) 0xc0, (byte) 0xaf, (byte) 0xf4, (byte) 0x90,
+                (byte) 0x80, (byte) 0x80, 'c'};
+        assertEquals("a\uFFFDb\uFFFD\uFFFD\uFFFD\uFFFDc", Charsets.decode(bytes, 0, bytes.length));
+        // raw and two-byte character zero
+        bytes = new byte[] {0, (byte) 0xc0, (byte) 0x80};
+        assertEquals("\u0000\u0000", Charsets.decode(bytes, 0, bytes.length));
+        bytes = "plain UTF-8 \u00E9\uD83D\uDE00".getBytes("UTF-8");
+        assertEquals("plain UTF-8 \u00E9\uD83D\uDE00", Charsets.decode(bytes, 0, bytes.length));
+    }
+}
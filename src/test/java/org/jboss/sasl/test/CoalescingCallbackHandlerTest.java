@@ -0,0 +1,179 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.RealmCallback;
+
+import org.jboss.sasl.callback.CoalescingCallbackHandler;
+import org.jboss.sasl.callback.VerifyPasswordCharsCallback;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the coalescing of concurrent credential lookups by {@link CoalescingCallbackHandler}.
+ */
+public class CoalescingCallbackHandlerTest {
+
+    private static final int THREADS = 8;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPasswordLookupsCoalesced() throws Exception {
+        final BlockingHandler backend = new BlockingHandler(null);
+        final CallbackHandler handler = new CoalescingCallbackHandler(backend);
+
+        List<Future<char[]>> results = new ArrayList<Future<char[]>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<char[]>() {
+                public char[] call() throws Exception {
+                    PasswordCallback pcb = new PasswordCallback("Password", false);
+                    handler.handle(new Callback[] { new RealmCallback("Realm", "TestRealm"), new NameCallback("Name", "George"), pcb });
+                    return pcb.getPassword();
+                }
+            }));
+        }
+        assertTrue(backend.entered.await(10, TimeUnit.SECONDS));
+        // give the other lookups time to join the one in progress
+        Thread.sleep(200);
+        backend.release.countDown();
+
+        for (Future<char[]> result : results) {
+            assertArrayEquals("gpwd".toCharArray(), result.get(10, TimeUnit.SECONDS));
+        }
+        assertTrue("Expected lookups to be coalesced", backend.calls.get() < THREADS);
+
+        // nothing is cached once the lookup has completed
+        int calls = backend.calls.get();
+        PasswordCallback pcb = new PasswordCallback("Password", false);
+        handler.handle(new Callback[] { new RealmCallback("Realm", "TestRealm"), new NameCallback("Name", "George"), pcb });
+        assertEquals(calls + 1, backend.calls.get());
+    }
+
+    @Test
+    public void testVerifyDistinguishesPasswords() throws Exception {
+        final BlockingHandler backend = new BlockingHandler(null);
+        backend.release.countDown();
+        CallbackHandler handler = new CoalescingCallbackHandler(backend);
+
+        VerifyPasswordCharsCallback good = new VerifyPasswordCharsCallback("gpwd".toCharArray());
+        handler.handle(new Callback[] { new NameCallback("Name", "George"), good });
+        assertTrue(good.isVerified());
+
+        VerifyPasswordCharsCallback bad = new VerifyPasswordCharsCallback("bad".toCharArray());
+        handler.handle(new Callback[] { new NameCallback("Name", "George"), bad });
+        assertFalse(bad.isVerified());
+    }
+
+    @Test
+    public void testFailureFannedOut() throws Exception {
+        final BlockingHandler backend = new BlockingHandler(new IOException("Directory unavailable"));
+        final CallbackHandler handler = new CoalescingCallbackHandler(backend);
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    handler.handle(new Callback[] { new NameCallback("Name", "George"), new PasswordCallback("Password", false) });
+                    return null;
+                }
+            }));
+        }
+        assertTrue(backend.entered.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        backend.release.countDown();
+
+        for (Future<Void> result : results) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("Expected the lookup to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    /**
+     * Returns the password "gpwd" once released, or fails.
+     */
+    private static final class BlockingHandler implements CallbackHandler {
+
+        private final IOException failure;
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private BlockingHandler(final IOException failure) {
+            this.failure = failure;
+        }
+
+        public void handle(final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+            calls.incrementAndGet();
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            for (Callback current : callbacks) {
+                if (current instanceof PasswordCallback) {
+                    ((PasswordCallback) current).setPassword("gpwd".toCharArray());
+                } else if (current instanceof VerifyPasswordCharsCallback) {
+                    VerifyPasswordCharsCallback vpc = (VerifyPasswordCharsCallback) current;
+                    vpc.setVerified(new String(vpc.getPasswordChars()).equals("gpwd"));
+                }
+            }
+        }
+    }
+}
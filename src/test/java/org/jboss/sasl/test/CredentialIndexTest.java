@@ -0,0 +1,191 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+
+import org.jboss.sasl.callback.CredentialIndex;
+import org.jboss.sasl.callback.CredentialIndexCallbackHandler;
+import org.jboss.sasl.util.UsernamePasswordHashUtil;
+import org.junit.Test;
+
+/**
+ * Test the {@link CredentialIndex} and the reloading of the {@link CredentialIndexCallbackHandler}.
+ */
+public class CredentialIndexTest extends BaseTestCase {
+
+    private static final String REALM = "TestServer";
+
+    @Test
+    public void testIndex() throws Exception {
+        UsernamePasswordHashUtil util = new UsernamePasswordHashUtil();
+        Properties users = new Properties();
+        String[] names = {"George", "Geor", "Gëorge", "\u0000George", "中文", ""};
+        for (String name : names) {
+            users.setProperty(name, util.generateHashedHexURP(name, REALM, (name + "pwd").toCharArray()));
+        }
+        for (int i = 0; i < 1000; i++) {
+            users.setProperty("User" + i, util.generateHashedHexURP("User" + i, REALM, "pwd".toCharArray()));
+        }
+
+        CredentialIndex index = CredentialIndex.build(REALM, users);
+        assertEquals(names.length + 1000, index.size());
+        for (String name : names) {
+            assertTrue(name, index.contains(name));
+            assertTrue(name, index.verify(name, (name + "pwd").toCharArray()));
+            assertFalse(name, index.verify(name, (name + "x").toCharArray()));
+        }
+        assertTrue(index.verify("User999", "pwd".toCharArray()));
+        assertFalse(index.contains("User1000"));
+        assertFalse(index.contains("George\u0000"));
+        assertFalse(index.contains("Georg"));
+        assertNull(index.getHash("Gëorg"));
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        File file = File.createTempFile("users", ".properties");
+        file.deleteOnExit();
+        writeUsers(file, "gpwd");
+
+        CredentialIndexCallbackHandler serverCallback = new CredentialIndexCallbackHandler(file, REALM, 10,
+                TimeUnit.MILLISECONDS, null);
+        try {
+            assertTrue(plain(serverCallback, "gpwd"));
+            assertFalse(plain(serverCallback, "new password"));
+            assertTrue(digest(serverCallback, "gpwd"));
+
+            CredentialIndex first = serverCallback.getIndex();
+            writeUsers(file, "new password");
+            long timeout = System.currentTimeMillis() + 5000;
+            while (serverCallback.getIndex() == first && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertNotSame("Index reloaded in the background.", first, serverCallback.getIndex());
+
+            assertFalse(plain(serverCallback, "gpwd"));
+            assertTrue(plain(serverCallback, "new password"));
+            assertTrue(digest(serverCallback, "new password"));
+        } finally {
+            serverCallback.close();
+        }
+    }
+
+    @Test
+    public void testReloadAfterMalformedFile() throws Exception {
+        File file = File.createTempFile("users", ".properties");
+        file.deleteOnExit();
+        writeUsers(file, "gpwd");
+
+        CredentialIndexCallbackHandler serverCallback = new CredentialIndexCallbackHandler(file, REALM, 10,
+                TimeUnit.MILLISECONDS, null);
+        try {
+            CredentialIndex first = serverCallback.getIndex();
+            write(file, "George=\\uZZZZ\n");
+            try {
+                CredentialIndex.load(REALM, file);
+                fail("Expected IOException not thrown.");
+            } catch (IOException expected) {
+            }
+            Thread.sleep(100);
+            assertSame("Current index kept.", first, serverCallback.getIndex());
+
+            // the checks carry on once the file is fixed
+            writeUsers(file, "new password");
+            long timeout = System.currentTimeMillis() + 5000;
+            while (serverCallback.getIndex() == first && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            assertTrue(plain(serverCallback, "new password"));
+        } finally {
+            serverCallback.close();
+        }
+    }
+
+    private static void writeUsers(final File file, final String password) throws Exception {
+        write(file, "# users of " + REALM + "\n"
+                + "George=" + new UsernamePasswordHashUtil().generateHashedHexURP("George", REALM, password.toCharArray()) + "\n");
+    }
+
+    /**
+     * Replace the file in one step so the background check never loads it part written.
+     */
+    private static void write(final File file, final String content) throws Exception {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        assertTrue(temp.renameTo(file));
+    }
+
+    private static boolean plain(final CallbackHandler serverCallback, final String password) throws Exception {
+        SaslServer server = Sasl.createSaslServer("PLAIN", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), serverCallback);
+        try {
+            server.evaluateResponse(("\0George\0" + password).getBytes("UTF-8"));
+        } catch (SaslException e) {
+            return false;
+        }
+        return server.isComplete();
+    }
+
+    private static boolean digest(final CallbackHandler serverCallback, final String password) throws Exception {
+        Map<String, Object> serverProps = Collections.<String, Object>singletonMap("org.jboss.sasl.digest.pre_digested", "true");
+        SaslServer server = Sasl.createSaslServer("DIGEST-MD5", "TestProtocol", "TestServer", serverProps, serverCallback);
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", password.toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[]{"DIGEST-MD5"}, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+
+        byte[] message = server.evaluateResponse(new byte[0]);
+        message = client.evaluateChallenge(message);
+        try {
+            server.evaluateResponse(message);
+        } catch (SaslException e) {
+            return false;
+        }
+        return server.isComplete();
+    }
+}
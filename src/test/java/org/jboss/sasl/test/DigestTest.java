@@ -25,19 +25,34 @@ package org.jboss.sasl.test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
+import javax.security.sasl.RealmCallback;
 import javax.security.sasl.Sasl;
 import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
 import javax.security.sasl.SaslServer;
 import javax.security.sasl.SaslServerFactory;
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.sasl.callback.AuthorizationCache;
+import org.jboss.sasl.callback.DigestHashFileBuilder;
+import org.jboss.sasl.callback.MappedDigestHashCallbackHandler;
+import org.jboss.sasl.digest.DigestHashCache;
 import org.jboss.sasl.digest.DigestMD5Server;
 import org.jboss.sasl.digest.DigestMD5ServerFactory;
 import org.jboss.sasl.util.UsernamePasswordHashUtil;
@@ -506,6 +521,191 @@ public class DigestTest extends BaseTestCase {
     }
 
 
+    /**
+     * Test that a cached hash skips the callback handler and that a changed password is picked up.
+     */
+    @Test
+    public void testHashCache() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicReference<char[]> password = new AtomicReference<char[]>("gpwd".toCharArray());
+        CallbackHandler serverCallback = new CallbackHandler() {
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                if (callbacks[0] instanceof RealmCallback) {
+                    lookups.incrementAndGet();
+                }
+                new ServerCallbackHandler("George", password.get()).handle(callbacks);
+            }
+        };
+        Map<String, Object> serverProps = new HashMap<String, Object>();
+        serverProps.put(DigestHashCache.HASH_CACHE, new DigestHashCache(1, TimeUnit.HOURS, 16));
+
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertEquals(1, lookups.get());
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertEquals(1, lookups.get());
+
+        // the cached hash no longer matches, it is looked up again
+        password.set("newpwd".toCharArray());
+        assertTrue(exchange(serverProps, serverCallback, "newpwd"));
+        assertEquals(2, lookups.get());
+        assertFalse(exchange(serverProps, serverCallback, "gpwd"));
+        assertEquals(3, lookups.get());
+    }
+
+    /**
+     * Test that the cache is invalidated when the version of the credentials changes.
+     */
+    @Test
+    public void testHashCacheVersions() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        CallbackHandler serverCallback = new CallbackHandler() {
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                if (callbacks[0] instanceof RealmCallback) {
+                    lookups.incrementAndGet();
+                }
+                new ServerCallbackHandler("George", "gpwd".toCharArray()).handle(callbacks);
+            }
+        };
+        final AtomicLong version = new AtomicLong();
+        DigestHashCache cache = new DigestHashCache(1, TimeUnit.HOURS, 16, new DigestHashCache.CredentialVersions() {
+            public long getVersion(String realm, String username) {
+                return version.get();
+            }
+        });
+        Map<String, Object> serverProps = new HashMap<String, Object>();
+        serverProps.put(DigestHashCache.HASH_CACHE, cache);
+
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertEquals(1, lookups.get());
+
+        version.incrementAndGet();
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertEquals(2, lookups.get());
+
+        cache.invalidateAll();
+        assertNull(cache.get("TestServer", "George"));
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertEquals(3, lookups.get());
+    }
+
+    /**
+     * Test that a hash looked up while the credentials change is not cached under the new version.
+     */
+    @Test
+    public void testHashCacheVersionChangedDuringLookup() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicLong version = new AtomicLong();
+        CallbackHandler serverCallback = new CallbackHandler() {
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                new ServerCallbackHandler("George", "gpwd".toCharArray()).handle(callbacks);
+                if (callbacks[0] instanceof RealmCallback && lookups.incrementAndGet() == 1) {
+                    // the password is changed after the old one has been read
+                    version.incrementAndGet();
+                }
+            }
+        };
+        DigestHashCache cache = new DigestHashCache(1, TimeUnit.HOURS, 16, new DigestHashCache.CredentialVersions() {
+            public long getVersion(String realm, String username) {
+                return version.get();
+            }
+        });
+        Map<String, Object> serverProps = new HashMap<String, Object>();
+        serverProps.put(DigestHashCache.HASH_CACHE, cache);
+
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertNull("Hash cached under the old version.", cache.get("TestServer", "George"));
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertEquals(2, lookups.get());
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertEquals(2, lookups.get());
+
+        // an invalidation during the lookup is not undone either
+        DigestHashCache.Stamp stamp = cache.stamp("TestServer", "Fred");
+        cache.invalidate("TestServer", "Fred");
+        cache.put("TestServer", "Fred", new byte[16], stamp);
+        assertNull(cache.get("TestServer", "Fred"));
+    }
+
+    /**
+     * Test that authorization decisions are cached and that a decision made while the cache is invalidated is not.
+     */
+    @Test
+    public void testAuthorizationCache() throws Exception {
+        final AuthorizationCache cache = new AuthorizationCache(1, 1, TimeUnit.MINUTES, 10);
+        final AtomicInteger authorizations = new AtomicInteger();
+        CallbackHandler serverCallback = new CallbackHandler() {
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                if (callbacks[0] instanceof AuthorizeCallback && authorizations.incrementAndGet() == 1) {
+                    // the permissions change while the first decision is being made
+                    cache.invalidate("George");
+                }
+                new ServerCallbackHandler("George", "gpwd".toCharArray()).handle(callbacks);
+            }
+        };
+        Map<String, Object> serverProps = new HashMap<String, Object>();
+        serverProps.put(AuthorizationCache.AUTHORIZATION_CACHE, cache);
+
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertEquals("Decision cached over an invalidation.", 0, cache.size());
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertEquals(2, authorizations.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    /**
+     * Test pre-digested hashes supplied from a memory mapped file.
+     */
+    @Test
+    public void testMappedDigestHashFile() throws Exception {
+        UsernamePasswordHashUtil util = new UsernamePasswordHashUtil();
+        DigestHashFileBuilder builder = new DigestHashFileBuilder();
+        builder.add("TestServer", "George", util.generateHashedURP("George", "TestServer", "old".toCharArray()));
+        builder.add("TestServer", "George", util.generateHashedHexURP("George", "TestServer", "gpwd".toCharArray()));
+        builder.add("OtherRealm", "George", util.generateHashedURP("George", "OtherRealm", "other".toCharArray()));
+        for (int i = 0; i < 100; i++) {
+            builder.add("TestServer", "User" + i, util.generateHashedURP("User" + i, "TestServer", "pwd".toCharArray()));
+        }
+        File file = File.createTempFile("digest", ".hashes");
+        file.deleteOnExit();
+        assertEquals(102, builder.write(file));
+
+        MappedDigestHashCallbackHandler serverCallback = new MappedDigestHashCallbackHandler(file);
+        assertEquals(102, serverCallback.size());
+        assertTrue(serverCallback.contains("TestServer", "User99"));
+        assertFalse(serverCallback.contains("TestServer", "User100"));
+        assertFalse(serverCallback.contains("OtherRealm", "User1"));
+
+        Map<String, Object> serverProps = new HashMap<String, Object>();
+        serverProps.put(PRE_DIGESTED_PROPERTY, "true");
+        assertTrue(exchange(serverProps, serverCallback, "gpwd"));
+        assertFalse(exchange(serverProps, serverCallback, "old"));
+        assertFalse(exchange(serverProps, serverCallback, "other"));
+
+        builder = new DigestHashFileBuilder();
+        builder.add("TestServer", "Fred", util.generateHashedURP("Fred", "TestServer", "gpwd".toCharArray()));
+        builder.write(file);
+        assertFalse(exchange(serverProps, new MappedDigestHashCallbackHandler(file), "gpwd"));
+    }
+
+    private boolean exchange(Map<String, Object> serverProps, CallbackHandler serverCallback, String clientPassword) throws Exception {
+        SaslServer server = Sasl.createSaslServer(DIGEST, "TestProtocol", "TestServer", serverProps, serverCallback);
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", clientPassword.toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[]{DIGEST}, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+
+        byte[] message = server.evaluateResponse(new byte[0]);
+        message = client.evaluateChallenge(message);
+        try {
+            server.evaluateResponse(message);
+        } catch (SaslException e) {
+            return false;
+        }
+        return server.isComplete();
+    }
+
+
 
    /*
     *  Advanced Client/Server interaction.
@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslServer;
+
+import org.jboss.sasl.JBossSaslFactories;
+import org.jboss.sasl.plain.PlainSaslServer;
+import org.junit.Test;
+
+/**
+ * Test of the direct factory access in {@link JBossSaslFactories}, the provider is deliberately not registered.
+ */
+public class FactoriesTest {
+
+    private static final String PLAIN = "PLAIN";
+    private static final String DIGEST = "DIGEST-MD5";
+
+    @Test
+    public void testMechanismIndex() {
+        for (String name : JBossSaslFactories.getMechanismNames()) {
+            int index = JBossSaslFactories.getMechanismIndex(name);
+            assertTrue(index >= 0);
+            assertSame(JBossSaslFactories.getServerFactory(name), JBossSaslFactories.getServerFactory(index));
+        }
+        assertEquals(-1, JBossSaslFactories.getMechanismIndex("CRAM-MD5"));
+        assertNull(JBossSaslFactories.getServerFactory("CRAM-MD5"));
+    }
+
+    @Test
+    public void testPolicy() throws Exception {
+        Map<String, Object> props = new HashMap<String, Object>();
+
+        SaslServer server = JBossSaslFactories.createServer(PLAIN, "TestProtocol", "TestServer", props, null);
+        assertEquals(PlainSaslServer.class, server.getClass());
+
+        props.put(Sasl.POLICY_NOPLAINTEXT, true);
+        server = JBossSaslFactories.createServer(PLAIN, "TestProtocol", "TestServer", props, null);
+        assertNull(server);
+    }
+
+    @Test
+    public void testNullProperties() throws Exception {
+        for (String name : JBossSaslFactories.getMechanismNames()) {
+            int index = JBossSaslFactories.getMechanismIndex(name);
+            JBossSaslFactories.createServer(index, "TestProtocol", "TestServer", null, null);
+        }
+        SaslServer server = JBossSaslFactories.createServer(PLAIN, "TestProtocol", "TestServer", null, null);
+        assertEquals(PlainSaslServer.class, server.getClass());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidIndex() throws Exception {
+        JBossSaslFactories.createServer(JBossSaslFactories.getMechanismNames().length, "TestProtocol", "TestServer", null,
+                null);
+    }
+
+    @Test
+    public void testSuccessfulExchange() throws Exception {
+        int index = JBossSaslFactories.getMechanismIndex(DIGEST);
+
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray());
+        SaslServer server = JBossSaslFactories.createServer(index, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), serverCallback);
+        assertNotNull(server);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", "gpwd".toCharArray());
+        SaslClient client = JBossSaslFactories.createClient(new String[] { "CRAM-MD5", DIGEST }, "George", "TestProtocol",
+                "TestServer", Collections.<String, Object> emptyMap(), clientCallback);
+        assertNotNull(client);
+        assertEquals(DIGEST, client.getMechanismName());
+
+        byte[] message = server.evaluateResponse(new byte[0]);
+        message = client.evaluateChallenge(message);
+        server.evaluateResponse(message);
+        assertTrue(server.isComplete());
+        assertEquals("George", server.getAuthorizationID());
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.security.AccessController;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.sasl.Sasl;
+import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslClientFactory;
+import javax.security.sasl.SaslException;
+
+import org.jboss.sasl.gssapi.CachingSubjectFactory;
+import org.jboss.sasl.gssapi.GssapiClient;
+import org.jboss.sasl.gssapi.GssapiClientFactory;
+import org.jboss.sasl.gssapi.SubjectFactory;
+import org.jboss.sasl.gssapi.SubjectIdentity;
+import org.junit.Test;
+
+/**
+ * Test of the GSSAPI client wrapper, a stand-in delegate factory is used as no KDC is available.
+ */
+public class GssapiClientTest extends BaseTestCase {
+
+    private static final String GSSAPI = "GSSAPI";
+    private static final String SUBJECT_FACTORY = "org.jboss.sasl.gssapi.subject_factory";
+    private static final String DELEGATE_FACTORY = "org.jboss.sasl.gssapi.delegate_factory";
+
+    @Test
+    public void testNoSubjectFactory() throws Exception {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(DELEGATE_FACTORY, new StandInClientFactory());
+        assertNull(new GssapiClientFactory().createSaslClient(new String[] { GSSAPI }, null, "remote", "localhost", props, null));
+    }
+
+    @Test
+    public void testSharedSubject() throws Exception {
+        CountingSubjectFactory subjectFactory = new CountingSubjectFactory();
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(SUBJECT_FACTORY, subjectFactory);
+        props.put(DELEGATE_FACTORY, new StandInClientFactory());
+        SaslClient first = Sasl.createSaslClient(new String[] { GSSAPI }, null, "remote", "localhost", props, null);
+        SaslClient second = Sasl.createSaslClient(new String[] { GSSAPI }, null, "remote", "localhost", props, null);
+        assertEquals(GssapiClient.class, first.getClass());
+        assertEquals(1, subjectFactory.logins.get());
+
+        assertSame(subjectFactory.subject, toSubject(first.evaluateChallenge(new byte[0])));
+        assertSame(subjectFactory.subject, toSubject(second.evaluateChallenge(new byte[0])));
+
+        first.dispose();
+        second.dispose();
+        assertEquals("The shared identity is retained after its last client.", 0, subjectFactory.disposed.get());
+
+        SaslClient third = Sasl.createSaslClient(new String[] { GSSAPI }, null, "remote", "localhost", props, null);
+        assertSame(subjectFactory.subject, toSubject(third.evaluateChallenge(new byte[0])));
+        assertEquals(1, subjectFactory.logins.get());
+        third.dispose();
+        assertEquals(0, subjectFactory.disposed.get());
+    }
+
+    @Test
+    public void testRetainedForTicketLifetime() throws Exception {
+        CountingSubjectFactory subjectFactory = new CountingSubjectFactory();
+        long now = System.currentTimeMillis();
+        KerberosPrincipal client = new KerberosPrincipal("client@TEST.ORG");
+        KerberosPrincipal server = new KerberosPrincipal("remote/localhost@TEST.ORG");
+        subjectFactory.subject.getPrivateCredentials().add(new KerberosTicket(new byte[] { 0 }, client, server, new byte[16],
+                23, new boolean[32], new Date(now), new Date(now), new Date(now + 1000), null, null));
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(SUBJECT_FACTORY, subjectFactory);
+        props.put(DELEGATE_FACTORY, new StandInClientFactory());
+
+        Sasl.createSaslClient(new String[] { GSSAPI }, null, "remote", "localhost", props, null).dispose();
+        Sasl.createSaslClient(new String[] { GSSAPI }, null, "remote", "localhost", props, null).dispose();
+        assertEquals(1, subjectFactory.logins.get());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (subjectFactory.disposed.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("The shared cache is closed once its ticket expires.", 1, subjectFactory.disposed.get());
+
+        Sasl.createSaslClient(new String[] { GSSAPI }, null, "remote", "localhost", props, null).dispose();
+        assertEquals(2, subjectFactory.logins.get());
+    }
+
+    @Test
+    public void testNoIdentity() throws Exception {
+        CountingSubjectFactory subjectFactory = new CountingSubjectFactory();
+        subjectFactory.available = false;
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(SUBJECT_FACTORY, subjectFactory);
+        props.put(DELEGATE_FACTORY, new StandInClientFactory());
+        assertNull(new GssapiClientFactory().createSaslClient(new String[] { GSSAPI }, null, "remote", "localhost", props, null));
+
+        subjectFactory.available = true;
+        SaslClient client = Sasl.createSaslClient(new String[] { GSSAPI }, null, "remote", "localhost", props, null);
+        assertSame(subjectFactory.subject, toSubject(client.evaluateChallenge(new byte[0])));
+        client.dispose();
+        assertEquals(2, subjectFactory.logins.get());
+        assertEquals(0, subjectFactory.disposed.get());
+    }
+
+    @Test
+    public void testCallerOwnedCache() throws Exception {
+        CountingSubjectFactory subjectFactory = new CountingSubjectFactory();
+        CachingSubjectFactory caching = new CachingSubjectFactory(subjectFactory);
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(SUBJECT_FACTORY, caching);
+        props.put(DELEGATE_FACTORY, new StandInClientFactory());
+        try {
+            for (int i = 0; i < 2; i++) {
+                SaslClient client = Sasl.createSaslClient(new String[] { GSSAPI }, null, "remote", "localhost", props, null);
+                assertSame(subjectFactory.subject, toSubject(client.evaluateChallenge(new byte[0])));
+                client.dispose();
+            }
+            assertEquals(1, subjectFactory.logins.get());
+            assertEquals("The identity is retained until the cache is closed.", 0, subjectFactory.disposed.get());
+        } finally {
+            caching.close();
+        }
+        assertEquals(1, subjectFactory.disposed.get());
+    }
+
+    private static Subject toSubject(final byte[] marker) {
+        return StandInClientFactory.SUBJECTS.get(Integer.valueOf(marker[0]));
+    }
+
+    private static class CountingSubjectFactory implements SubjectFactory {
+
+        private final Subject subject = new Subject();
+        private final AtomicInteger logins = new AtomicInteger();
+        private final AtomicInteger disposed = new AtomicInteger();
+        private volatile boolean available = true;
+
+        @Override
+        public SubjectIdentity getSubjectIdentity(final String protocol, final String serverName) {
+            logins.incrementAndGet();
+            if (available == false) {
+                return null;
+            }
+            return new SubjectIdentity() {
+
+                @Override
+                public Subject getSubject() {
+                    return subject;
+                }
+
+                @Override
+                public void dispose() {
+                    disposed.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    /**
+     * A delegate whose clients report the {@link Subject} they were called as.
+     */
+    private static class StandInClientFactory implements SaslClientFactory {
+
+        static final Map<Integer, Subject> SUBJECTS = new HashMap<Integer, Subject>();
+
+        @Override
+        public SaslClient createSaslClient(String[] mechanisms, String authorizationId, String protocol, String serverName,
+                Map<String, ?> props, CallbackHandler cbh) throws SaslException {
+            return new SaslClient() {
+
+                @Override
+                public byte[] wrap(byte[] outgoing, int offset, int len) throws SaslException {
+                    return outgoing;
+                }
+
+                @Override
+                public byte[] unwrap(byte[] incoming, int offset, int len) throws SaslException {
+                    return incoming;
+                }
+
+                @Override
+                public boolean isComplete() {
+                    return true;
+                }
+
+                @Override
+                public boolean hasInitialResponse() {
+                    return true;
+                }
+
+                @Override
+                public Object getNegotiatedProperty(String propName) {
+                    return null;
+                }
+
+                @Override
+                public String getMechanismName() {
+                    return GSSAPI;
+                }
+
+                @Override
+                public byte[] evaluateChallenge(byte[] challenge) throws SaslException {
+                    synchronized (SUBJECTS) {
+                        int marker = SUBJECTS.size();
+                        SUBJECTS.put(Integer.valueOf(marker), Subject.getSubject(AccessController.getContext()));
+                        return new byte[] { (byte) marker };
+                    }
+                }
+
+                @Override
+                public void dispose() throws SaslException {
+                }
+            };
+        }
+
+        @Override
+        public String[] getMechanismNames(Map<String, ?> props) {
+            return new String[] { GSSAPI };
+        }
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.security.AccessController;
+import java.security.Provider;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.sasl.SaslException;
+import javax.security.sasl.SaslServer;
+import javax.security.sasl.SaslServerFactory;
+
+import org.jboss.sasl.gssapi.GssapiServer;
+import org.jboss.sasl.gssapi.GssapiServerFactory;
+import org.jboss.sasl.gssapi.SubjectFactory;
+import org.jboss.sasl.gssapi.SubjectIdentity;
+import org.junit.Test;
+
+/**
+ * Test of the GSSAPI server wrapper, a stand-in delegate factory is used as no KDC is available.
+ */
+public class GssapiServerTest extends BaseTestCase {
+
+    private static final String GSSAPI = "GSSAPI";
+
+    // the markers returned by the stand-in wrap and unwrap
+    private static final byte NO_SUBJECT = 0;
+    private static final byte AS_SUBJECT = 1;
+
+    private static final Subject SUBJECT = new Subject();
+
+    @Test
+    public void testWrapWithoutSubject() throws Exception {
+        SaslServer server = createServer(new HashMap<String, Object>());
+        assertEquals(GssapiServer.class, server.getClass());
+        assertEquals(NO_SUBJECT, server.wrap(new byte[1], 0, 1)[0]);
+        assertEquals(NO_SUBJECT, server.unwrap(new byte[1], 0, 1)[0]);
+        server.dispose();
+    }
+
+    @Test
+    public void testWrapAsSubject() throws Exception {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(GssapiServerFactory.WRAP_AS_SUBJECT, "true");
+        SaslServer server = createServer(props);
+        assertEquals(AS_SUBJECT, server.wrap(new byte[1], 0, 1)[0]);
+        assertEquals(AS_SUBJECT, server.unwrap(new byte[1], 0, 1)[0]);
+        server.dispose();
+    }
+
+    @Test
+    public void testDelegateFactoryProperty() throws Exception {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("org.jboss.sasl.gssapi.subject_factory", new FixedSubjectFactory());
+        props.put(GssapiServerFactory.DELEGATE_FACTORY, new StandInServerFactory() {
+            @Override
+            public String[] getMechanismNames(Map<String, ?> props) {
+                return new String[] { "PLAIN" };
+            }
+        });
+        // a supplied delegate without GSSAPI does not fall back to the GSSAPI factories of the installed providers
+        assertEquals(0, new GssapiServerFactory().getMechanismNames(props).length);
+        assertNull(new GssapiServerFactory().createSaslServer(GSSAPI, "remote", "localhost", props, null));
+    }
+
+    @Test
+    public void testProviderChange() throws Exception {
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put("org.jboss.sasl.gssapi.subject_factory", new FixedSubjectFactory());
+        GssapiServerFactory factory = new GssapiServerFactory();
+
+        Provider first = new StandInProvider("StandInFirst", First.class);
+        Provider second = new StandInProvider("StandInSecond", Second.class);
+        try {
+            Security.insertProviderAt(first, 1);
+            factory.createSaslServer(GSSAPI, "remote", "localhost", props, null).dispose();
+            factory.createSaslServer(GSSAPI, "remote", "localhost", props, null).dispose();
+            assertEquals(2, First.CREATED.get());
+
+            // the cached delegate is replaced once the providers change
+            Security.removeProvider(first.getName());
+            Security.insertProviderAt(second, 1);
+            factory.createSaslServer(GSSAPI, "remote", "localhost", props, null).dispose();
+            assertEquals(2, First.CREATED.get());
+            assertEquals(1, Second.CREATED.get());
+        } finally {
+            Security.removeProvider(first.getName());
+            Security.removeProvider(second.getName());
+        }
+    }
+
+    private static SaslServer createServer(final Map<String, Object> props) throws SaslException {
+        props.put("org.jboss.sasl.gssapi.subject_factory", new FixedSubjectFactory());
+        props.put(GssapiServerFactory.DELEGATE_FACTORY, new StandInServerFactory());
+        SaslServer server = new GssapiServerFactory().createSaslServer(GSSAPI, "remote", "localhost", props, null);
+        // the context is established as the subject whatever the configuration
+        assertSame(SUBJECT, StandInServerFactory.subjectOf(server.evaluateResponse(new byte[0])));
+        return server;
+    }
+
+    private static class FixedSubjectFactory implements SubjectFactory {
+
+        @Override
+        public SubjectIdentity getSubjectIdentity(final String protocol, final String serverName) {
+            return new SubjectIdentity() {
+
+                @Override
+                public Subject getSubject() {
+                    return SUBJECT;
+                }
+
+                @Override
+                public void dispose() {
+                }
+            };
+        }
+    }
+
+    private static class StandInProvider extends Provider {
+
+        private static final long serialVersionUID = 1L;
+
+        StandInProvider(final String name, final Class<? extends SaslServerFactory> factory) {
+            super(name, 1.0, "Stand-in GSSAPI provider");
+            put("SaslServerFactory.GSSAPI", factory.getName());
+        }
+    }
+
+    /**
+     * The delegate of the first stand-in provider, instantiated by the provider lookup.
+     */
+    public static class First extends StandInServerFactory {
+
+        static final AtomicInteger CREATED = new AtomicInteger();
+
+        @Override
+        public SaslServer createSaslServer(String mechanism, String protocol, String serverName, Map<String, ?> props,
+                CallbackHandler cbh) throws SaslException {
+            CREATED.incrementAndGet();
+            return super.createSaslServer(mechanism, protocol, serverName, props, cbh);
+        }
+    }
+
+    /**
+     * The delegate of the second stand-in provider, instantiated by the provider lookup.
+     */
+    public static class Second extends StandInServerFactory {
+
+        static final AtomicInteger CREATED = new AtomicInteger();
+
+        @Override
+        public SaslServer createSaslServer(String mechanism, String protocol, String serverName, Map<String, ?> props,
+                CallbackHandler cbh) throws SaslException {
+            CREATED.incrementAndGet();
+            return super.createSaslServer(mechanism, protocol, serverName, props, cbh);
+        }
+    }
+
+    /**
+     * A delegate whose servers report whether they were called as {@link #SUBJECT}.
+     */
+    public static class StandInServerFactory implements SaslServerFactory {
+
+        static Subject subjectOf(final byte[] marker) {
+            return marker[0] == AS_SUBJECT ? SUBJECT : null;
+        }
+
+        private static byte marker() {
+            return Subject.getSubject(AccessController.getContext()) == SUBJECT ? AS_SUBJECT : NO_SUBJECT;
+        }
+
+        @Override
+        public SaslServer createSaslServer(String mechanism, String protocol, String serverName, Map<String, ?> props,
+                CallbackHandler cbh) throws SaslException {
+            return new SaslServer() {
+
+                @Override
+                public String getMechanismName() {
+                    return GSSAPI;
+                }
+
+                @Override
+                public byte[] evaluateResponse(byte[] response) throws SaslException {
+                    return new byte[] { marker() };
+                }
+
+                @Override
+                public boolean isComplete() {
+                    return true;
+                }
+
+                @Override
+                public String getAuthorizationID() {
+                    return null;
+                }
+
+                @Override
+                public byte[] unwrap(byte[] incoming, int offset, int len) throws SaslException {
+                    return new byte[] { marker() };
+                }
+
+                @Override
+                public byte[] wrap(byte[] outgoing, int offset, int len) throws SaslException {
+                    return new byte[] { marker() };
+                }
+
+                @Override
+                public Object getNegotiatedProperty(String propName) {
+                    return null;
+                }
+
+                @Override
+                public void dispose() throws SaslException {
+                }
+            };
+        }
+
+        @Override
+        public String[] getMechanismNames(Map<String, ?> props) {
+            return new String[] { GSSAPI };
+        }
+    }
+
+}
@@ -23,14 +23,24 @@
 package org.jboss.sasl.test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.jboss.sasl.callback.AuthorizationCache;
+import org.jboss.sasl.localuser.ChallengeReadException;
 import org.jboss.sasl.util.Charsets;
 import org.junit.Test;
 
+import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
 import javax.security.sasl.Sasl;
 import javax.security.sasl.SaslClient;
 import javax.security.sasl.SaslException;
@@ -41,6 +51,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 /**
  * Test for the local user SASL mechanism, this will test both the client and server side.
@@ -396,4 +407,442 @@ public class LocalUserTest extends BaseTestCase {
         assertFalse("Temporary file was deleted.", file.exists());
     }
 
+    /**
+     * Test exchanges using slots of the challenge slab, falling back to a file once every slot is in use or if the client did
+     * not ask for a slot.
+     */
+
+    @Test
+    public void testChallengeSlab() throws Exception {
+        File basePath = createTempDirectory();
+        Map<String, String> serverOptions = new HashMap<String, String>();
+        serverOptions.put("jboss.sasl.local-user.challenge-path", basePath.getAbsolutePath());
+        serverOptions.put("jboss.sasl.local-user.challenge-slab", "true");
+        serverOptions.put("jboss.sasl.local-user.challenge-slab-size", "1");
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", (char[]) null);
+        SaslServer legacy = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", serverOptions, serverCallback);
+        SaslServer first = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", serverOptions, serverCallback);
+        SaslServer second = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", serverOptions, serverCallback);
+
+        Map<String, String> clientOptions = new HashMap<String, String>();
+        clientOptions.put("jboss.sasl.local-user.challenge-path", basePath.getAbsolutePath());
+        clientOptions.put("jboss.sasl.local-user.challenge-slab", "true");
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", (char[]) null);
+        SaslClient[] clients = new SaslClient[2];
+        byte[][] initial = new byte[2][];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = Sasl.createSaslClient(new String[] { LOCAL_USER }, null, "TestProtocol", "TestServer", clientOptions,
+                    clientCallback);
+            initial[i] = clients[i].evaluateChallenge(new byte[0]);
+        }
+
+        // A client that did not ask for a slot is sent a file it understands.
+        assertEquals("Client without the slab extension.", -1, Charsets.indexOf(legacy.evaluateResponse(new byte[] { 0 }), 0));
+        legacy.dispose();
+
+        byte[] firstChallenge = first.evaluateResponse(initial[0]);
+        byte[] secondChallenge = second.evaluateResponse(initial[1]);
+        assertTrue("Slot in the slab.", Charsets.indexOf(firstChallenge, 0) > 0);
+        assertEquals("Slab exhausted.", -1, Charsets.indexOf(secondChallenge, 0));
+
+        SaslServer[] servers = { first, second };
+        byte[][] challenges = { firstChallenge, secondChallenge };
+        for (int i = 0; i < servers.length; i++) {
+            SaslClient client = clients[i];
+            byte[] response = client.evaluateChallenge(challenges[i]);
+            assertNull(servers[i].evaluateResponse(response));
+            assertTrue(servers[i].isComplete());
+            assertEquals("George", servers[i].getAuthorizationID());
+            servers[i].dispose();
+        }
+
+        // The slot is free again.
+        SaslServer third = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", serverOptions, serverCallback);
+        assertTrue(Charsets.indexOf(third.evaluateResponse(initial[0]), 0) > 0);
+        third.dispose();
+    }
+
+    /**
+     * Test that the client refuses to read a slab slot from anything but a slab in its challenge directory.
+     */
+
+    @Test
+    public void testSlabReplyRefused() throws Exception {
+        File basePath = createTempDirectory();
+        File secret = new File(basePath, "secret.txt");
+        FileOutputStream fos = new FileOutputStream(secret);
+        fos.write("0123456789abcdef".getBytes("US-ASCII"));
+        fos.close();
+        File otherPath = createTempDirectory();
+        File otherSlab = File.createTempFile("local", ".slab", otherPath);
+        fos = new FileOutputStream(otherSlab);
+        fos.write(new byte[16]);
+        fos.close();
+        File slab = File.createTempFile("local", ".slab", basePath);
+        fos = new FileOutputStream(slab);
+        fos.write(new byte[16]);
+        fos.close();
+
+        assertEquals(ChallengeReadException.Reason.REFUSED, slabReadFailure(basePath, secret, 8));
+        assertEquals(ChallengeReadException.Reason.REFUSED, slabReadFailure(basePath, otherSlab, 8));
+        assertEquals(ChallengeReadException.Reason.REFUSED, slabReadFailure(basePath,
+                new File(otherPath, "../" + basePath.getName() + "/../" + otherPath.getName() + "/" + otherSlab.getName()), 0));
+        assertEquals(ChallengeReadException.Reason.REFUSED, slabReadFailure(basePath, slab, 3));
+        assertEquals(ChallengeReadException.Reason.REFUSED, slabReadFailure(basePath, slab, -8));
+        // outside the slab
+        assertEquals(ChallengeReadException.Reason.REFUSED, slabReadFailure(basePath, slab, 16));
+        assertEquals(ChallengeReadException.Reason.REFUSED, slabReadFailure(basePath, slab, Long.MAX_VALUE - 7));
+        secret.delete();
+        otherSlab.delete();
+        slab.delete();
+    }
+
+    /**
+     * Test an exchange where the client runs in the same JVM, no file should be used for the challenge.
+     */
+
+    @Test
+    public void testInJvmChallenge() throws Exception {
+        File basePath = createTempDirectory();
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", (char[]) null);
+        SaslServer server = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer",
+                Collections.singletonMap("jboss.sasl.local-user.challenge-path", basePath.getAbsolutePath()), serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", (char[]) null);
+        SaslClient client = Sasl.createSaslClient(new String[] { LOCAL_USER }, "George", "TestProtocol", "TestServer",
+                Collections.singletonMap("jboss.sasl.local-user.in-jvm", "true"), clientCallback);
+
+        byte[] response = client.evaluateChallenge(new byte[0]);
+        byte[] challenge = server.evaluateResponse(response);
+        assertEquals("Challenge token.", 0, challenge[0]);
+        assertEquals("No challenge file.", 0, basePath.list().length);
+        response = client.evaluateChallenge(challenge);
+        assertNull(server.evaluateResponse(response));
+        assertTrue(server.isComplete());
+        assertTrue(client.isComplete());
+        assertEquals("George", server.getAuthorizationID());
+
+        server.dispose();
+    }
+
+    /**
+     * Test that a client from another JVM offering the in-JVM challenge is sent a file.
+     */
+
+    @Test
+    public void testInJvmChallengeOtherJvm() throws Exception {
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", (char[]) null);
+        SaslServer server = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), serverCallback);
+
+        byte[] initial = new byte[] { 'G', 'e', 'o', 'r', 'g', 'e', 0, 'J', 0, 16, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+        byte[] challenge = server.evaluateResponse(initial);
+        File file = new File(new String(challenge, Charsets.UTF_8));
+        assertTrue("Challenge file was created.", file.exists());
+
+        server.dispose();
+        assertFalse(file.exists());
+    }
+
+    /**
+     * Test that a challenge that is not answered in time is deleted and the handshake fails.
+     */
+
+    @Test
+    public void testChallengeExpired() throws Exception {
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", (char[]) null);
+        SaslServer server = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer",
+                Collections.singletonMap("jboss.sasl.local-user.challenge-timeout", "200"), serverCallback);
+
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", (char[]) null);
+        SaslClient client = Sasl.createSaslClient(new String[] { LOCAL_USER }, "George", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+
+        byte[] challenge = server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        byte[] response = client.evaluateChallenge(challenge);
+        File file = new File(new String(challenge, Charsets.UTF_8));
+        assertTrue("Deleted by the reaper.", waitForDeletion(file));
+
+        try {
+            server.evaluateResponse(response);
+            fail("Expected SaslException not thrown.");
+        } catch (SaslException expected) {
+        }
+        assertFalse(server.isComplete());
+
+        server.dispose();
+    }
+
+    /**
+     * Test that challenge files and slabs left behind by another process are removed once older than a day, a file older
+     * than the timeout of this server may still be answered by a server with a longer timeout.
+     */
+
+    @Test
+    public void testStaleChallengeSwept() throws Exception {
+        final long twoDays = TimeUnit.DAYS.toMillis(2);
+        File basePath = createTempDirectory();
+        File stale = File.createTempFile("local", ".challenge", basePath);
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - twoDays));
+        File fresh = File.createTempFile("local", ".challenge", basePath);
+        assertTrue(fresh.setLastModified(System.currentTimeMillis() - 3600000));
+        File other = new File(basePath, "other.challenge");
+        assertTrue(other.createNewFile());
+        assertTrue(other.setLastModified(System.currentTimeMillis() - twoDays));
+        File staleSlab = File.createTempFile("local", ".slab", basePath);
+        assertTrue(staleSlab.setLastModified(System.currentTimeMillis() - twoDays));
+
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", (char[]) null);
+        SaslServer server = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer",
+                Collections.singletonMap("jboss.sasl.local-user.challenge-path", basePath.getAbsolutePath()), serverCallback);
+
+        assertTrue("Stale file removed.", waitForDeletion(stale));
+        assertTrue("Abandoned slab removed.", waitForDeletion(staleSlab));
+        assertTrue(fresh.exists());
+        assertTrue(other.exists());
+        server.dispose();
+        fresh.delete();
+        other.delete();
+    }
+
+    /**
+     * Test that nothing is swept when challenges never expire, a file of any age may still be answered.
+     */
+
+    @Test
+    public void testNoSweepWithoutTimeout() throws Exception {
+        File basePath = createTempDirectory();
+        File old = File.createTempFile("local", ".challenge", basePath);
+        assertTrue(old.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+
+        Map<String, String> serverOptions = new HashMap<String, String>();
+        serverOptions.put("jboss.sasl.local-user.challenge-path", basePath.getAbsolutePath());
+        serverOptions.put("jboss.sasl.local-user.challenge-timeout", "0");
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", (char[]) null);
+        SaslServer server = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", serverOptions, serverCallback);
+
+        assertFalse("File kept.", waitForDeletion(old));
+        server.dispose();
+        old.delete();
+    }
+
+    /**
+     * Test that authorization decisions are cached and that a decision made while the cache is invalidated is not.
+     */
+
+    @Test
+    public void testAuthorizationCache() throws Exception {
+        final AuthorizationCache cache = new AuthorizationCache(1, 1, TimeUnit.MINUTES, 10);
+        final AtomicInteger authorizations = new AtomicInteger();
+        final CallbackHandler delegate = new ServerCallbackHandler("George", (char[]) null);
+        CallbackHandler serverCallback = new CallbackHandler() {
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                for (Callback current : callbacks) {
+                    if (current instanceof AuthorizeCallback && authorizations.incrementAndGet() == 1) {
+                        // the permissions change while the first decision is being made
+                        cache.invalidate("George");
+                    }
+                }
+                delegate.handle(callbacks);
+            }
+        };
+        Map<String, Object> serverOptions = Collections.<String, Object>singletonMap(AuthorizationCache.AUTHORIZATION_CACHE, cache);
+
+        for (int i = 0; i < 3; i++) {
+            SaslServer server = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", serverOptions, serverCallback);
+            CallbackHandler clientCallback = new ClientCallbackHandler("George", (char[]) null);
+            SaslClient client = Sasl.createSaslClient(new String[] { LOCAL_USER }, "George", "TestProtocol", "TestServer",
+                    Collections.<String, Object> emptyMap(), clientCallback);
+            byte[] challenge = server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+            assertNull(server.evaluateResponse(client.evaluateChallenge(challenge)));
+            assertEquals("George", server.getAuthorizationID());
+            server.dispose();
+            if (i == 0) {
+                assertEquals("Decision cached over an invalidation.", 0, cache.size());
+            }
+        }
+        assertEquals(2, authorizations.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    /**
+     * Test that a resumption ticket completes authentication in a single message without any callbacks.
+     */
+
+    @Test
+    public void testResumptionTicket() throws Exception {
+        Map<String, String> serverOptions = new HashMap<String, String>();
+        serverOptions.put("jboss.sasl.local-user.issue-tickets", "true");
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", (char[]) null);
+        SaslServer server = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", serverOptions, serverCallback);
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", (char[]) null);
+        SaslClient client = Sasl.createSaslClient(new String[] { LOCAL_USER }, null, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+        byte[] challenge = server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        assertNull(server.evaluateResponse(client.evaluateChallenge(challenge)));
+        byte[] ticket = (byte[]) server.getNegotiatedProperty("jboss.sasl.local-user.resumption-ticket");
+        server.dispose();
+
+        SaslServer resumed = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", serverOptions, new CallbackHandler() {
+            public void handle(Callback[] callbacks) {
+                fail("No callbacks expected");
+            }
+        });
+        Map<String, Object> clientOptions = new HashMap<String, Object>();
+        clientOptions.put("jboss.sasl.local-user.resumption-ticket", ticket);
+        client = Sasl.createSaslClient(new String[] { LOCAL_USER }, null, "TestProtocol", "TestServer", clientOptions, null);
+        challenge = resumed.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        assertEquals(0, challenge.length);
+        assertTrue(resumed.isComplete());
+        assertNull(client.evaluateChallenge(challenge));
+        assertTrue(client.isComplete());
+        assertEquals("George", resumed.getAuthorizationID());
+        assertTrue(resumed.getNegotiatedProperty("jboss.sasl.local-user.resumption-ticket") instanceof byte[]);
+        resumed.dispose();
+    }
+
+    /**
+     * Test that no ticket is issued if it would be too long to present in the initial message.
+     */
+
+    @Test
+    public void testResumptionTicketTooLong() throws Exception {
+        char[] chars = new char[33000];
+        Arrays.fill(chars, 'p');
+        String protocol = new String(chars);
+        Arrays.fill(chars, 's');
+        String serverName = new String(chars);
+        Map<String, String> serverOptions = new HashMap<String, String>();
+        serverOptions.put("jboss.sasl.local-user.issue-tickets", "true");
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", (char[]) null);
+        SaslServer server = Sasl.createSaslServer(LOCAL_USER, protocol, serverName, serverOptions, serverCallback);
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", (char[]) null);
+        SaslClient client = Sasl.createSaslClient(new String[] { LOCAL_USER }, null, protocol, serverName,
+                Collections.<String, Object> emptyMap(), clientCallback);
+        byte[] challenge = server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        assertNull(server.evaluateResponse(client.evaluateChallenge(challenge)));
+        assertTrue(server.isComplete());
+        assertNull(server.getNegotiatedProperty("jboss.sasl.local-user.resumption-ticket"));
+        server.dispose();
+    }
+
+    /**
+     * Test that a rejected resumption ticket falls back to the challenge.
+     */
+
+    @Test
+    public void testResumptionTicketRejected() throws Exception {
+        Map<String, String> serverOptions = new HashMap<String, String>();
+        serverOptions.put("jboss.sasl.local-user.issue-tickets", "true");
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", (char[]) null);
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", (char[]) null);
+        SaslServer server = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", serverOptions, serverCallback);
+        SaslClient client = Sasl.createSaslClient(new String[] { LOCAL_USER }, null, "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+        byte[] challenge = server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        assertNull(server.evaluateResponse(client.evaluateChallenge(challenge)));
+        byte[] ticket = (byte[]) server.getNegotiatedProperty("jboss.sasl.local-user.resumption-ticket");
+        server.dispose();
+        ticket[ticket.length - 1] ^= 1;
+
+        Map<String, Object> clientOptions = new HashMap<String, Object>();
+        clientOptions.put("jboss.sasl.local-user.resumption-ticket", ticket);
+        server = Sasl.createSaslServer(LOCAL_USER, "TestProtocol", "TestServer", serverOptions, serverCallback);
+        client = Sasl.createSaslClient(new String[] { LOCAL_USER }, null, "TestProtocol", "TestServer", clientOptions, clientCallback);
+        challenge = server.evaluateResponse(client.evaluateChallenge(new byte[0]));
+        assertTrue("Challenge file sent.", new File(new String(challenge, Charsets.UTF_8)).exists());
+        assertNull(server.evaluateResponse(client.evaluateChallenge(challenge)));
+        assertTrue(server.isComplete());
+        assertTrue(client.isComplete());
+        assertEquals("George", server.getAuthorizationID());
+        server.dispose();
+    }
+
+    /**
+     * Test the reasons reported when the challenge file can not be read.
+     */
+
+    @Test
+    public void testChallengeReadFailures() throws Exception {
+        File basePath = createTempDirectory();
+        assertEquals(ChallengeReadException.Reason.MISSING, readFailure(new File(basePath, "missing.challenge")));
+
+        File shortFile = new File(basePath, "short.challenge");
+        FileOutputStream fos = new FileOutputStream(shortFile);
+        fos.write(new byte[4]);
+        fos.close();
+        assertEquals(ChallengeReadException.Reason.SHORT, readFailure(shortFile));
+        shortFile.delete();
+
+        File unreadable = new File(basePath, "unreadable.challenge");
+        fos = new FileOutputStream(unreadable);
+        fos.write(new byte[8]);
+        fos.close();
+        assertTrue(unreadable.setReadable(false, false));
+        try {
+            assumeTrue(unreadable.canRead() == false); // the file is still readable by a privileged user
+            assertEquals(ChallengeReadException.Reason.PERMISSION_DENIED, readFailure(unreadable));
+        } finally {
+            unreadable.delete();
+        }
+    }
+
+    private static ChallengeReadException.Reason readFailure(final File file) throws Exception {
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", (char[]) null);
+        SaslClient client = Sasl.createSaslClient(new String[] { LOCAL_USER }, "George", "TestProtocol", "TestServer",
+                Collections.<String, Object> emptyMap(), clientCallback);
+        client.evaluateChallenge(new byte[0]);
+        String path = file.getAbsolutePath();
+        byte[] challenge = new byte[Charsets.encodedLengthOf(path)];
+        Charsets.encodeTo(path, challenge, 0);
+        try {
+            client.evaluateChallenge(challenge);
+            fail("Expected ChallengeReadException not thrown.");
+            return null;
+        } catch (ChallengeReadException expected) {
+            assertEquals(path, expected.getPath());
+            return expected.getReason();
+        }
+    }
+
+    private static ChallengeReadException.Reason slabReadFailure(final File basePath, final File file, final long offset) throws Exception {
+        Map<String, String> clientOptions = new HashMap<String, String>();
+        clientOptions.put("jboss.sasl.local-user.challenge-path", basePath.getAbsolutePath());
+        clientOptions.put("jboss.sasl.local-user.challenge-slab", "true");
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", (char[]) null);
+        SaslClient client = Sasl.createSaslClient(new String[] { LOCAL_USER }, "George", "TestProtocol", "TestServer",
+                clientOptions, clientCallback);
+        client.evaluateChallenge(new byte[0]);
+        String path = file.getPath();
+        String slot = Long.toString(offset);
+        int pathLength = Charsets.encodedLengthOf(path);
+        byte[] challenge = new byte[pathLength + 1 + slot.length()];
+        Charsets.encodeTo(path, challenge, 0);
+        Charsets.encodeTo(slot, challenge, pathLength + 1);
+        try {
+            client.evaluateChallenge(challenge);
+            fail("Expected ChallengeReadException not thrown.");
+            return null;
+        } catch (ChallengeReadException expected) {
+            assertEquals(path, expected.getPath());
+            return expected.getReason();
+        }
+    }
+
+    private static boolean waitForDeletion(final File file) throws InterruptedException {
+        for (int i = 0; i < 100 && file.exists(); i++) {
+            Thread.sleep(50);
+        }
+        return file.exists() == false;
+    }
+
+    private static File createTempDirectory() throws Exception {
+        File dir = File.createTempFile("local-user", ".test");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        dir.deleteOnExit();
+        return dir;
+    }
+
 }
@@ -28,25 +28,35 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.sasl.AuthorizeCallback;
 import javax.security.sasl.Sasl;
 import javax.security.sasl.SaslClient;
+import javax.security.sasl.SaslException;
 import javax.security.sasl.SaslServer;
 import javax.security.sasl.SaslServerFactory;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.sasl.callback.AuthorizationCache;
+import org.jboss.sasl.callback.VerifyPasswordCallback;
+import org.jboss.sasl.callback.VerifyPasswordCharsCallback;
+import org.jboss.sasl.plain.PlainClientFactory;
+import org.jboss.sasl.plain.PlainSaslClient;
 import org.jboss.sasl.plain.PlainSaslServer;
 import org.jboss.sasl.plain.PlainServerFactory;
+import org.jboss.sasl.plain.VerifiedCredentialCache;
 import org.junit.Test;
 
 /**
- * Test the server side of the Plain SASL mecanism.
- * <p/>
- * (The client side is provided by the JDK so this test case will be testing interoperability
- * with the JDK supplied implementation)
+ * Test the client and server side of the Plain SASL mecanism.
  *
  * @author <a href="mailto:darran.lofthouse@jboss.com">Darran Lofthouse</a>
  */
@@ -175,5 +185,242 @@ public class PlainTest extends BaseTestCase {
         assertEquals("George", server.getAuthorizationID());
     }
 
+    /**
+     * Test that the password passed to the CallbackHandler is cleared once verified.
+     */
+    @Test
+    public void testPasswordCleared() throws Exception {
+        final char[][] seen = new char[1][];
+        CallbackHandler serverCallback = new CallbackHandler() {
+            public void handle(Callback[] callbacks) {
+                for (Callback current : callbacks) {
+                    if (current instanceof VerifyPasswordCharsCallback) {
+                        VerifyPasswordCharsCallback vpc = (VerifyPasswordCharsCallback) current;
+                        seen[0] = vpc.getPasswordChars();
+                        vpc.setVerified(Arrays.equals("gpwd".toCharArray(), vpc.getPasswordChars()));
+                    } else if (current instanceof AuthorizeCallback) {
+                        ((AuthorizeCallback) current).setAuthorized(true);
+                    }
+                }
+            }
+        };
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), serverCallback);
+        server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+        assertTrue(server.isComplete());
+        assertTrue(Arrays.equals(new char[4], seen[0]));
+    }
+
+    /**
+     * Test parsing of fields of every length either side of the word boundaries used when searching for delimiters.
+     */
+    @Test
+    public void testFieldLengths() throws Exception {
+        for (int i = 1; i < 20; i++) {
+            StringBuilder builder = new StringBuilder();
+            for (int j = 0; j < i; j++) {
+                builder.append(j % 3 == 0 ? '\u00e9' : (char) ('a' + j));
+            }
+            String field = builder.toString();
+            // { authzid, authcid, password }
+            String[][] variants = { { field, field, "x" }, { "", field, field }, { "", "George", field + "\u20ac" } };
+            for (String[] variant : variants) {
+                CallbackHandler serverCallback = new ServerCallbackHandler(variant[1], variant[2].toCharArray());
+                SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), serverCallback);
+                server.evaluateResponse((variant[0] + "\0" + variant[1] + "\0" + variant[2]).getBytes("UTF-8"));
+                assertTrue(server.isComplete());
+                assertEquals(variant[1], server.getAuthorizationID());
+            }
+        }
+    }
+
+    /**
+     * Test that messages with the wrong number of delimiters are rejected.
+     */
+    @Test
+    public void testBadDelimiters() throws Exception {
+        String[] messages = { "George", "George\0gpwd", "\0George\0gpwd\0", "a\0George\0gp\0wd" };
+        for (String message : messages) {
+            CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray());
+            SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), serverCallback);
+            try {
+                server.evaluateResponse(message.getBytes("UTF-8"));
+                fail("Expected SaslException not thrown.");
+            } catch (SaslException expected) {
+            }
+        }
+    }
+
+    /**
+     * Test that a verified credential cache skips the CallbackHandler for repeated logins with the same password.
+     */
+    @Test
+    public void testCredentialCache() throws Exception {
+        final AtomicInteger verifications = new AtomicInteger();
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray()) {
+            @Override
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                for (Callback current : callbacks) {
+                    if (current instanceof VerifyPasswordCallback) {
+                        verifications.incrementAndGet();
+                    }
+                }
+                super.handle(callbacks);
+            }
+        };
+        VerifiedCredentialCache cache = new VerifiedCredentialCache(1, TimeUnit.MINUTES, 10);
+        Map<String, Object> props = Collections.<String, Object>singletonMap(VerifiedCredentialCache.CREDENTIAL_CACHE, cache);
+
+        for (int i = 0; i < 3; i++) {
+            SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props, serverCallback);
+            server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+            assertEquals("George", server.getAuthorizationID());
+        }
+        assertEquals(1, verifications.get());
+
+        // A different password is always passed to the CallbackHandler.
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props, serverCallback);
+        try {
+            server.evaluateResponse("\0George\0bad".getBytes("UTF-8"));
+            fail("Expected SaslException not thrown.");
+        } catch (SaslException expected) {
+        }
+        assertEquals(2, verifications.get());
+
+        cache.invalidate("George");
+        server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props, serverCallback);
+        server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+        assertEquals(3, verifications.get());
+
+        // A server with another name may verify against another identity store, it verifies the password itself.
+        server = Sasl.createSaslServer(PLAIN, "TestProtocol", "OtherServer", props, serverCallback);
+        server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+        assertEquals(4, verifications.get());
+        assertEquals(2, cache.size());
+    }
+
+    /**
+     * Test that a verification is not cached if the cache was invalidated while the CallbackHandler was verifying it.
+     */
+    @Test
+    public void testCredentialCacheInvalidatedDuringVerification() throws Exception {
+        final VerifiedCredentialCache cache = new VerifiedCredentialCache(1, TimeUnit.MINUTES, 10);
+        final AtomicInteger verifications = new AtomicInteger();
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray()) {
+            @Override
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                for (Callback current : callbacks) {
+                    if (current instanceof VerifyPasswordCallback && verifications.incrementAndGet() == 1) {
+                        cache.invalidate("George");
+                    }
+                }
+                super.handle(callbacks);
+            }
+        };
+        Map<String, Object> props = Collections.<String, Object>singletonMap(VerifiedCredentialCache.CREDENTIAL_CACHE, cache);
+
+        for (int i = 0; i < 3; i++) {
+            SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props, serverCallback);
+            server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+            assertEquals("George", server.getAuthorizationID());
+        }
+        assertEquals(2, verifications.get());
+    }
+
+    /**
+     * Test that authorization decisions, granted and refused, are cached.
+     */
+    @Test
+    public void testAuthorizationCache() throws Exception {
+        final AtomicInteger authorizations = new AtomicInteger();
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray()) {
+            @Override
+            public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+                for (Callback current : callbacks) {
+                    if (current instanceof AuthorizeCallback) {
+                        authorizations.incrementAndGet();
+                    }
+                }
+                super.handle(callbacks);
+            }
+        };
+        AuthorizationCache cache = new AuthorizationCache(1, 1, TimeUnit.MINUTES, 10);
+        Map<String, Object> props = Collections.<String, Object>singletonMap(AuthorizationCache.AUTHORIZATION_CACHE, cache);
+
+        for (int i = 0; i < 3; i++) {
+            SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props, serverCallback);
+            server.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+            assertEquals("George", server.getAuthorizationID());
+        }
+        assertEquals(1, authorizations.get());
+
+        // Refusals are cached as well.
+        for (int i = 0; i < 2; i++) {
+            SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props, serverCallback);
+            try {
+                server.evaluateResponse("Borris\0George\0gpwd".getBytes("UTF-8"));
+                fail("Expected SaslException not thrown.");
+            } catch (SaslException expected) {
+            }
+        }
+        assertEquals(2, authorizations.get());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // A server with another name may have another policy, it makes its own decision.
+        SaslServer other = Sasl.createSaslServer(PLAIN, "TestProtocol", "OtherServer", props, serverCallback);
+        other.evaluateResponse("\0George\0gpwd".getBytes("UTF-8"));
+        assertEquals(3, authorizations.get());
+        assertEquals(3, cache.size());
+
+        cache.invalidate("George");
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Test that refusals are not cached without a negative time to live.
+     */
+    @Test
+    public void testAuthorizationCacheNoNegative() throws Exception {
+        AuthorizationCache cache = new AuthorizationCache(1, 0, TimeUnit.MINUTES, 10);
+        Map<String, Object> props = Collections.<String, Object>singletonMap(AuthorizationCache.AUTHORIZATION_CACHE, cache);
+        CallbackHandler serverCallback = new ServerCallbackHandler("George", "gpwd".toCharArray());
+
+        SaslServer server = Sasl.createSaslServer(PLAIN, "TestProtocol", "TestServer", props, serverCallback);
+        try {
+            server.evaluateResponse("Borris\0George\0gpwd".getBytes("UTF-8"));
+            fail("Expected SaslException not thrown.");
+        } catch (SaslException expected) {
+        }
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Test that our client is used and sends the credentials as its initial response.
+     */
+    @Test
+    public void testClientInitialResponse() throws Exception {
+        CallbackHandler clientCallback = new ClientCallbackHandler("George", "gpwd\u20ac".toCharArray());
+        SaslClient client = Sasl.createSaslClient(new String[]{PLAIN}, "George", "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+        assertEquals(PlainSaslClient.class, client.getClass());
+        assertTrue(client.hasInitialResponse());
+
+        byte[] message = client.evaluateChallenge(new byte[0]);
+        assertTrue(client.isComplete());
+        assertTrue(Arrays.equals("George\0George\0gpwd\u20ac".getBytes("UTF-8"), message));
+
+        clientCallback = new ClientCallbackHandler("George", "gpwd".toCharArray());
+        client = Sasl.createSaslClient(new String[]{PLAIN}, null, "TestProtocol", "TestServer", Collections.<String, Object>emptyMap(), clientCallback);
+        assertTrue(Arrays.equals("\0George\0gpwd".getBytes("UTF-8"), client.evaluateChallenge(new byte[0])));
+    }
+
+    /**
+     * Test that no client is created when plain text mechanisms are excluded.
+     */
+    @Test
+    public void testClientPolicy() throws Exception {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(Sasl.POLICY_NOPLAINTEXT, "true");
+        assertNull(new PlainClientFactory().createSaslClient(new String[]{PLAIN}, null, "TestProtocol", "TestServer", props, null));
+    }
 
 }
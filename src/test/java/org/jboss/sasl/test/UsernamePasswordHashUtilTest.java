@@ -0,0 +1,123 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2014, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.sasl.test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.jboss.sasl.util.MultiLaneMD5;
+import org.jboss.sasl.util.UsernamePasswordHashUtil;
+import org.junit.Test;
+
+/**
+ * Test that {@link UsernamePasswordHashUtil} hashes exactly the bytes of the original String based conversion, and that
+ * {@link MultiLaneMD5} matches MessageDigest.
+ */
+public class UsernamePasswordHashUtilTest {
+
+    private static final String[] VALUES = {
+            "", "George", "gpwd", "G\u00EB\u00F6rge", "\u00FF\u0000:", "\u4E2D\u6587", "\uD83D\uDE00 pair", "lone \uD83D high", "lone \uDE00 low",
+            "end \uD83D", repeat("a\u00E9", 300), repeat("\u4E2D", 200), repeat("x\uD83D\uDE00", 150)
+    };
+
+    private static String repeat(final String part, final int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] toBytes(final String value, final boolean allowUTF8) throws Exception {
+        for (char c : value.toCharArray()) {
+            if (allowUTF8 && c > '\u00FF') {
+                return value.getBytes("UTF-8");
+            }
+        }
+        return value.getBytes("ISO-8859-1");
+    }
+
+    private static byte[] expected(final String user, final String realm, final String password, final boolean allowUTF8)
+            throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(toBytes(user, allowUTF8));
+        md5.update((byte) ':');
+        md5.update(toBytes(realm, allowUTF8));
+        md5.update((byte) ':');
+        return md5.digest(toBytes(password, allowUTF8));
+    }
+
+    @Test
+    public void testEncoding() throws Exception {
+        UsernamePasswordHashUtil util = new UsernamePasswordHashUtil();
+        for (String user : VALUES) {
+            for (String password : VALUES) {
+                for (boolean allowUTF8 : new boolean[] {true, false}) {
+                    String realm = user.length() > 0 ? password : "TestRealm";
+                    assertArrayEquals(user + " / " + password, expected(user, realm, password, allowUTF8),
+                            util.generateHashedURP(user, realm, password.toCharArray(), allowUTF8));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMultiLaneMD5() throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        // every length a lane can hold, either side of the limit, and longer inputs
+        byte[][] inputs = new byte[130][];
+        Random random = new Random(1234);
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new byte[i];
+            random.nextBytes(inputs[i]);
+        }
+        byte[][] results = new MultiLaneMD5().digest(inputs);
+        for (int i = 0; i < inputs.length; i++) {
+            assertArrayEquals("length " + i, md5.digest(inputs[i]), results[i]);
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        UsernamePasswordHashUtil util = new UsernamePasswordHashUtil();
+        String[] users = new String[VALUES.length * VALUES.length];
+        char[][] passwords = new char[users.length][];
+        for (int i = 0; i < VALUES.length; i++) {
+            for (int j = 0; j < VALUES.length; j++) {
+                users[i * VALUES.length + j] = VALUES[i];
+                passwords[i * VALUES.length + j] = VALUES[j].toCharArray();
+            }
+        }
+        for (boolean allowUTF8 : new boolean[] {true, false}) {
+            for (String realm : new String[] {"", "TestRealm", "R\u00E9alm \u4E2D"}) {
+                byte[][] results = util.generateHashedURP(users, realm, passwords, allowUTF8);
+                for (int i = 0; i < users.length; i++) {
+                    assertArrayEquals(users[i] + " / " + String.valueOf(passwords[i]),
+                            expected(users[i], realm, String.valueOf(passwords[i]), allowUTF8), results[i]);
+                }
+            }
+        }
+    }
+}